@@ -0,0 +1,278 @@
+package com.minepath.login.db;
+
+import com.minepath.login.MinepathLogin;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Non-blocking facade over {@link DatabaseManager}. Every call runs on a dedicated executor and
+ * returns a {@link CompletableFuture}, so the main server thread never waits on JDBC.
+ *
+ * At most {@code database.async.threads} calls (default: the connection pool size) touch the database
+ * at once, and at most {@code database.async.queue-capacity} more may wait for a slot. Calls beyond
+ * that fail fast with a {@link RejectedExecutionException} instead of piling up. With
+ * {@code database.async.virtual-threads} on Java 21+, each call gets its own virtual thread and the
+ * thread limit is enforced by a semaphore.
+ *
+ * Use {@link #thenSync} to continue on the main thread once a result is ready.
+ */
+public class AsyncDatabaseManager {
+
+    private final MinepathLogin plugin;
+    private final DatabaseManager database;
+    private final ExecutorService executor;
+    private final Semaphore concurrency; // only used with virtual threads
+    private final int threads;
+    private final int queueCapacity;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waitNanosTotal = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public AsyncDatabaseManager(MinepathLogin plugin, DatabaseManager database) {
+        this.plugin = plugin;
+        this.database = database;
+
+        FileConfiguration config = plugin.getConfig();
+        this.threads = Math.max(1, config.getInt("database.async.threads", database.getMaximumPoolSize()));
+        this.queueCapacity = Math.max(0, config.getInt("database.async.queue-capacity", 1000));
+
+        ExecutorService virtualExecutor = config.getBoolean("database.async.virtual-threads", false) ? newVirtualThreadExecutor() : null;
+        if (virtualExecutor != null) {
+            this.executor = virtualExecutor;
+            this.concurrency = new Semaphore(threads);
+        } else {
+            AtomicInteger threadId = new AtomicInteger();
+            // Admission is bounded by outstanding, so the queue itself can be unbounded
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "Minepath-DB-Async-" + threadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.concurrency = null;
+        }
+    }
+
+    /**
+     * Runs an arbitrary DatabaseManager call on the database executor.
+     */
+    public <T> CompletableFuture<T> supply(Function<DatabaseManager, T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        submitted.increment();
+        if (outstanding.incrementAndGet() > threads + queueCapacity) {
+            outstanding.decrementAndGet();
+            rejected.increment();
+            future.completeExceptionally(new RejectedExecutionException("Database queue is full (" + queueCapacity + " waiting calls)"));
+            return future;
+        }
+
+        long enqueuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                boolean acquired = false;
+                try {
+                    if (concurrency != null) {
+                        concurrency.acquire();
+                        acquired = true;
+                    }
+                    recordWait(System.nanoTime() - enqueuedAt);
+                    running.incrementAndGet();
+                    try {
+                        future.complete(call.apply(database));
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    future.completeExceptionally(e);
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                } finally {
+                    if (acquired) {
+                        concurrency.release();
+                    }
+                    outstanding.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Executor already shut down
+            outstanding.decrementAndGet();
+            rejected.increment();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public CompletableFuture<Void> run(Consumer<DatabaseManager> call) {
+        return supply(db -> {
+            call.accept(db);
+            return null;
+        });
+    }
+
+    /**
+     * Runs {@code action} on the main server thread once {@code future} completes successfully.
+     * Failures are logged; nothing is scheduled after the plugin has been disabled.
+     */
+    public <T> void thenSync(CompletableFuture<T> future, Consumer<T> action) {
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                plugin.getLogger().severe("Async database call failed: " + error.getMessage());
+                return;
+            }
+            if (plugin.isEnabled()) {
+                plugin.getServer().getScheduler().runTask(plugin, () -> action.accept(result));
+            }
+        });
+    }
+
+    // --- Hot-path shortcuts ---
+
+    public CompletableFuture<Long> getMineBalance(UUID uuid) {
+        return supply(db -> db.getMineBalance(uuid));
+    }
+
+    public CompletableFuture<DatabaseManager.PlayerProfile> loadPlayerProfile(UUID uuid) {
+        return supply(db -> db.loadPlayerProfile(uuid));
+    }
+
+    public CompletableFuture<DatabaseManager.UpgradeState> loadUpgradeState(UUID playerUUID) {
+        return supply(db -> db.loadUpgradeState(playerUUID));
+    }
+
+    public CompletableFuture<Map<UUID, DatabaseManager.UpgradeState>> loadUpgradeStates(java.util.Collection<UUID> playerUUIDs) {
+        return supply(db -> db.loadUpgradeStates(playerUUIDs));
+    }
+
+    public CompletableFuture<Integer> incrementUpgradeLevel(UUID playerUUID, String upgradeName) {
+        return supply(db -> db.incrementUpgradeLevel(playerUUID, upgradeName));
+    }
+
+    public CompletableFuture<Void> addMineBalance(UUID uuid, long amountToAdd) {
+        return run(db -> db.addMineBalance(uuid, amountToAdd));
+    }
+
+    public CompletableFuture<Void> addMineBalanceWithCommission(UUID playerUUID, long amountToAdd) {
+        return run(db -> db.addMineBalanceWithCommission(playerUUID, amountToAdd));
+    }
+
+    public CompletableFuture<DatabaseManager.RewardResult> addMineBalanceWithCommission(UUID playerUUID, long amountToAdd, String requestKey) {
+        return supply(db -> db.addMineBalanceWithCommission(playerUUID, amountToAdd, requestKey));
+    }
+
+    public CompletableFuture<DatabaseManager.RewardResult> distributeSolFeeShare(UUID f1PlayerUUID, java.math.BigDecimal solAmountPaid, String requestKey) {
+        return supply(db -> db.distributeSolFeeShare(f1PlayerUUID, solAmountPaid, requestKey));
+    }
+
+    public CompletableFuture<Void> batchAddPassiveIncome(Map<UUID, Integer> incomeMap) {
+        return run(db -> db.batchAddPassiveIncome(incomeMap));
+    }
+
+    public CompletableFuture<Boolean> registerPlayerWithReferral(UUID playerUUID, String username, String hashedPassword, UUID referrerUUID, String refCode) {
+        return supply(db -> db.registerPlayerWithReferral(playerUUID, username, hashedPassword, referrerUUID, refCode));
+    }
+
+    public CompletableFuture<List<DatabaseManager.TransactionLogEntry>> getTransactionLogs(UUID playerUUID, int limit) {
+        return supply(db -> db.getTransactionLogs(playerUUID, limit));
+    }
+
+    public CompletableFuture<DatabaseManager.TransactionLogPage> getTransactionLogsAfter(UUID playerUUID, DatabaseManager.TransactionLogCursor cursor, int pageSize) {
+        return supply(db -> db.getTransactionLogsAfter(playerUUID, cursor, pageSize));
+    }
+
+    public CompletableFuture<Map<UUID, DatabaseManager.ReferralStats>> getReferralStats(UUID referrerUUID) {
+        return supply(db -> db.getReferralStats(referrerUUID));
+    }
+
+    // --- Metrics ---
+
+    /**
+     * @return calls accepted but not started yet
+     */
+    public int getQueueDepth() {
+        return Math.max(0, outstanding.get() - running.get());
+    }
+
+    public int getRunningCount() {
+        return running.get();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return average time calls waited for a database slot, in milliseconds
+     */
+    public double getAverageWaitMillis() {
+        long count = started.sum();
+        return count == 0 ? 0 : waitNanosTotal.sum() / (count * 1_000_000.0);
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    /**
+     * Stops accepting calls and waits up to {@code timeoutSeconds} for queued ones to finish.
+     * Call before {@link DatabaseManager#disconnect()}.
+     */
+    public void shutdown(long timeoutSeconds) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutSeconds, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Async database executor did not finish within " + timeoutSeconds + " seconds, " + getQueueDepth() + " calls dropped.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void recordWait(long waitNanos) {
+        started.increment();
+        waitNanosTotal.add(waitNanos);
+        long max = maxWaitNanos.get();
+        while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() exists from Java 21; looked up reflectively so the
+     * plugin still runs on older servers.
+     */
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            plugin.getLogger().warning("Virtual threads are not available on this Java version, using a platform thread pool.");
+            return null;
+        }
+    }
+}
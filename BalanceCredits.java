@@ -0,0 +1,160 @@
+package com.minepath.login.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * The mine_balance / total_ref_reward credits of one transaction, collected first and applied together.
+ *
+ * Credits are applied in UUID order, the same order {@link DeltaAccumulator} and batchAddPassiveIncome lock
+ * player rows in, so two commission chains that share referrers can no longer deadlock by walking them in
+ * different orders. Credits for hot accounts (large KOLs at the top of many chains) are not applied to the
+ * players row at all: they are appended to pending_credits, which takes no lock on the row, and
+ * {@link #merge} folds them in periodically. Readers of those accounts add the pending sum, see {@link #readTotals}.
+ */
+final class BalanceCredits {
+
+    // Inserts nothing for a player without a row, so a dangling referred_by is skipped like a 0-row UPDATE
+    private static final String ADD_PENDING_SQL = "INSERT INTO pending_credits (player_uuid, mine_delta, ref_reward_delta) " +
+                                                  "SELECT uuid, ?, ? FROM players WHERE uuid = ?;";
+    private static final String CREDIT_SQL = "UPDATE players SET mine_balance = mine_balance + ?, total_ref_reward = total_ref_reward + ? WHERE uuid = ?;";
+    private static final String MERGE_SQL = "WITH moved AS (" +
+                                            "DELETE FROM pending_credits WHERE id IN (SELECT id FROM pending_credits ORDER BY id LIMIT ?) " +
+                                            "RETURNING player_uuid, mine_delta, ref_reward_delta), " +
+                                            "totals AS (SELECT player_uuid, SUM(mine_delta) AS mine_delta, SUM(ref_reward_delta) AS ref_reward_delta " +
+                                            "FROM moved GROUP BY player_uuid) " +
+                                            "UPDATE players p SET mine_balance = p.mine_balance + t.mine_delta, " +
+                                            "total_ref_reward = p.total_ref_reward + t.ref_reward_delta " +
+                                            "FROM totals t WHERE p.uuid = t.player_uuid RETURNING p.uuid;";
+    private static final String READ_TOTALS_SQL = "SELECT p.mine_balance + COALESCE(SUM(c.mine_delta), 0) AS mine_balance, " +
+                                                  "p.total_ref_reward + COALESCE(SUM(c.ref_reward_delta), 0) AS total_ref_reward " +
+                                                  "FROM players p LEFT JOIN pending_credits c ON c.player_uuid = p.uuid " +
+                                                  "WHERE p.uuid = ? GROUP BY p.uuid, p.mine_balance, p.total_ref_reward;";
+    // One merge at a time across servers, so two merges never lock the hot rows in different orders
+    private static final long MERGE_LOCK_KEY = SchemaMigrator.ADVISORY_LOCK_KEY + 2;
+    private static final int MERGE_CHUNK = 10000;
+
+    // [0] = mine_balance, [1] = total_ref_reward
+    private final Map<UUID, long[]> credits = new TreeMap<>(Comparator.comparing(UUID::toString));
+
+    void add(UUID playerUUID, long mineBalance, long totalRefReward) {
+        long[] credit = credits.computeIfAbsent(playerUUID, k -> new long[2]);
+        credit[0] += mineBalance;
+        credit[1] += totalRefReward;
+    }
+
+    Set<UUID> playerUUIDs() {
+        return credits.keySet();
+    }
+
+    /**
+     * Applies every credit on the given connection. Does not commit; the caller owns the transaction.
+     * @param hotAccounts players whose credits go to pending_credits instead of their row
+     * @return the players that have no players row and were not credited
+     */
+    Set<UUID> apply(Connection conn, UuidBinding uuids, Set<UUID> hotAccounts) throws SQLException {
+        List<UUID> updated = new ArrayList<>();
+        List<UUID> queued = new ArrayList<>();
+        try (PreparedStatement update = conn.prepareStatement(CREDIT_SQL);
+             PreparedStatement pending = conn.prepareStatement(ADD_PENDING_SQL)) {
+            for (Map.Entry<UUID, long[]> credit : credits.entrySet()) {
+                boolean hot = hotAccounts.contains(credit.getKey());
+                PreparedStatement pstmt = hot ? pending : update;
+                pstmt.setLong(1, credit.getValue()[0]);
+                pstmt.setLong(2, credit.getValue()[1]);
+                uuids.bind(pstmt, 3, credit.getKey());
+                pstmt.addBatch();
+                (hot ? queued : updated).add(credit.getKey());
+            }
+
+            Set<UUID> missing = new LinkedHashSet<>();
+            collectMissing(updated.isEmpty() ? new int[0] : update.executeBatch(), updated, missing);
+            collectMissing(queued.isEmpty() ? new int[0] : pending.executeBatch(), queued, missing);
+            return missing;
+        }
+    }
+
+    private static void collectMissing(int[] counts, List<UUID> players, Set<UUID> missing) {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                missing.add(players.get(i));
+            }
+        }
+    }
+
+    /**
+     * Folds every pending credit into its players row, one chunk per transaction.
+     * Skips the run if another server is merging.
+     * @return the players whose row changed
+     */
+    static Set<UUID> merge(Connection conn, UuidBinding uuids) throws SQLException {
+        Set<UUID> merged = new LinkedHashSet<>();
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            while (true) {
+                try (Statement statement = conn.createStatement();
+                     ResultSet rs = statement.executeQuery("SELECT pg_try_advisory_xact_lock(" + MERGE_LOCK_KEY + ");")) {
+                    if (!rs.next() || !rs.getBoolean(1)) {
+                        conn.rollback();
+                        return merged;
+                    }
+                }
+                int moved = 0;
+                try (PreparedStatement pstmt = conn.prepareStatement(MERGE_SQL)) {
+                    pstmt.setInt(1, MERGE_CHUNK);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            merged.add(uuids.read(rs, "uuid"));
+                            moved++;
+                        }
+                    }
+                }
+                conn.commit();
+                // RETURNING counts players, not pending rows, so look for leftovers instead of comparing with the chunk size
+                if (moved == 0 || !hasPending(conn)) {
+                    return merged;
+                }
+            }
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static boolean hasPending(Connection conn) throws SQLException {
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT EXISTS (SELECT 1 FROM pending_credits);")) {
+            boolean pending = rs.next() && rs.getBoolean(1);
+            conn.commit();
+            return pending;
+        }
+    }
+
+    /**
+     * Reads mine_balance and total_ref_reward including the credits not merged yet, in one snapshot,
+     * so a concurrent merge is counted exactly once.
+     * @return {mine_balance, total_ref_reward}, or null if the player has no row
+     */
+    static long[] readTotals(Connection conn, UuidBinding uuids, UUID playerUUID) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(READ_TOTALS_SQL)) {
+            uuids.bind(pstmt, 1, playerUUID);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? new long[]{rs.getLong("mine_balance"), rs.getLong("total_ref_reward")} : null;
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.minepath.login.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CSV records in the format {@code COPY ... FROM STDIN WITH (FORMAT csv)} reads by default:
+ * comma separated, every non-null value double-quoted with embedded quotes doubled, and NULL
+ * written as an unquoted empty field, so NULL and the empty string stay distinct.
+ */
+final class CopyCsv {
+
+    private CopyCsv() {
+    }
+
+    /**
+     * Appends one record and its line break.
+     */
+    static void appendRecord(StringBuilder out, String... fields) {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            String field = fields[i];
+            if (field != null) {
+                out.append('"');
+                for (int c = 0; c < field.length(); c++) {
+                    char ch = field.charAt(c);
+                    if (ch == '"') {
+                        out.append('"');
+                    }
+                    out.append(ch);
+                }
+                out.append('"');
+            }
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Parses records written by {@link #appendRecord}. A trailing record without its line break,
+     * as left by a write interrupted mid-record, is dropped.
+     */
+    static List<String[]> parse(CharSequence text) {
+        List<String[]> records = new ArrayList<>();
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean inQuotes = false;
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (inQuotes) {
+                if (ch != '"') {
+                    field.append(ch);
+                } else if (i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    inQuotes = false;
+                }
+            } else if (ch == '"') {
+                inQuotes = true;
+                quoted = true;
+            } else if (ch == ',' || ch == '\n') {
+                fields.add(quoted || field.length() > 0 ? field.toString() : null);
+                field.setLength(0);
+                quoted = false;
+                if (ch == '\n') {
+                    records.add(fields.toArray(new String[0]));
+                    fields.clear();
+                }
+            } else if (ch != '\r') {
+                field.append(ch);
+            }
+        }
+        return records;
+    }
+}
@@ -7,7 +7,6 @@ import org.bukkit.configuration.file.FileConfiguration;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.sql.Statement;
 
 import java.util.UUID;
 import java.util.Map;
@@ -15,9 +14,52 @@ public class DatabaseManager {
 
     private final MinepathLogin plugin;
     private HikariDataSource dataSource;
+    private final ReferralGraphCache referralGraph;
+    private boolean referralCacheEnabled;
+    private CommissionStrategy commissionStrategy = CommissionStrategy.ITERATIVE;
+    private java.util.concurrent.ScheduledExecutorService scheduler;
+    private DeltaAccumulator mineBalanceWriteBehind; // null unless write-behind is enabled
+    private DeltaAccumulator allReferredWriteBehind; // null unless all_referred write-behind is enabled
+    private PlayerProfileCache profileCache; // null unless the profile cache is enabled
+    private UpgradeStateCache upgradeStates; // null unless the upgrade cache is enabled
+    private TransactionLogPartitions transactionLogPartitions; // null unless partitioning is enabled
+    private LedgerAggregator ledger; // null unless ledger mode is enabled
+    private LogIngestor logIngestor; // null unless the COPY log ingestor is enabled
+    private int logIngestorFlushRows;
+    // Players whose credits are appended to pending_credits instead of locking their row; empty unless configured
+    private volatile java.util.Set<UUID> hotAccounts = java.util.Collections.emptySet();
+    private final java.util.concurrent.atomic.AtomicBoolean logIngestorFlushQueued = new java.util.concurrent.atomic.AtomicBoolean();
+    private long writeBehindMaxStalenessMillis;
+    // How long idempotency keys of reward calls are remembered; retries after that apply again
+    private int rewardRequestRetentionHours;
+    private final DatabaseMetrics metrics;
+    // How player UUID columns are stored; switches to NATIVE after the opt-in uuid migration
+    private volatile UuidBinding uuidBinding = UuidBinding.VARCHAR;
+
+    // Safety limit for referral chain walks, guards against cycles in referred_by
+    private static final int MAX_REFERRAL_DEPTH = 100;
+
+    private static final String REF_CODE_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+    private static final int REF_CODE_LENGTH = 6;
+    // 36^6 codes, so even a mostly full space rarely needs more than a few attempts
+    private static final int MAX_REF_CODE_ATTEMPTS = 8;
+    // Shared and thread-safe; ref codes are handed out publicly, so they should not be predictable
+    private static final java.security.SecureRandom REF_CODE_RANDOM = new java.security.SecureRandom();
+    private static final String UNIQUE_VIOLATION = "23505";
+
+    // Locks the ancestors in text order, the order BalanceCredits and DeltaAccumulator lock player rows in,
+    // then bumps all_referred for all of them and total_referred for the direct referrer
+    private static final String INCREMENT_REFERRED_COUNTS_SQL = "WITH targets AS (" +
+            "SELECT p.uuid, a.depth FROM referral_ancestry a JOIN players p ON p.uuid = a.ancestor_uuid " +
+            "WHERE a.descendant_uuid = ? ORDER BY p.uuid::text COLLATE \"C\" FOR NO KEY UPDATE OF p) " +
+            "UPDATE players p SET all_referred = p.all_referred + 1, " +
+            "total_referred = p.total_referred + CASE WHEN t.depth = 1 THEN 1 ELSE 0 END " +
+            "FROM targets t WHERE p.uuid = t.uuid RETURNING p.uuid;";
 
     public DatabaseManager(MinepathLogin plugin) {
         this.plugin = plugin;
+        this.referralGraph = new ReferralGraphCache(plugin.getLogger());
+        this.metrics = new DatabaseMetrics(plugin.getLogger());
     }
 
     public void connect() {
@@ -35,267 +77,760 @@ public class DatabaseManager {
         hikariConfig.setPassword(password);
         hikariConfig.setDriverClassName("org.postgresql.Driver");
 
-        // Production-ready settings
-        hikariConfig.setMaximumPoolSize(10); // Max 10 connections
-        hikariConfig.setMinimumIdle(5); // Keep at least 5 idle connections
-        hikariConfig.setConnectionTimeout(30000); // 30 seconds to get a connection
-        hikariConfig.setIdleTimeout(600000); // 10 minutes for an idle connection to be retired
-        hikariConfig.setMaxLifetime(1800000); // 30 minutes max lifetime for a connection
+        // Pool sizing, all overridable under database.pool.*
+        // Default follows the usual (cores * 2) + 1 rule for a single database host
+        int cores = Runtime.getRuntime().availableProcessors();
+        int maximumPoolSize = Math.max(2, config.getInt("database.pool.maximum-pool-size", Math.max(4, cores * 2 + 1)));
+        hikariConfig.setPoolName(config.getString("database.pool.name", "Minepath-DB"));
+        hikariConfig.setMaximumPoolSize(maximumPoolSize);
+        hikariConfig.setMinimumIdle(Math.min(maximumPoolSize, config.getInt("database.pool.minimum-idle", Math.max(2, maximumPoolSize / 2))));
+        hikariConfig.setConnectionTimeout(config.getLong("database.pool.connection-timeout-ms", 30000)); // 30 seconds to get a connection
+        hikariConfig.setIdleTimeout(config.getLong("database.pool.idle-timeout-ms", 600000)); // 10 minutes for an idle connection to be retired
+        hikariConfig.setMaxLifetime(config.getLong("database.pool.max-lifetime-ms", 1800000)); // 30 minutes max lifetime for a connection
+        hikariConfig.setKeepaliveTime(config.getLong("database.pool.keepalive-time-ms", 0)); // 0 = disabled
+        hikariConfig.setLeakDetectionThreshold(config.getLong("database.pool.leak-detection-threshold-ms", 0)); // 0 = disabled
+
+        // PostgreSQL driver settings, overridable under database.driver.*
+        // Server-side prepared statements from the first execution, with a per-connection statement cache
+        hikariConfig.addDataSourceProperty("prepareThreshold", config.getInt("database.driver.prepare-threshold", 1));
+        hikariConfig.addDataSourceProperty("preparedStatementCacheQueries", config.getInt("database.driver.prepared-statement-cache-queries", 512));
+        hikariConfig.addDataSourceProperty("preparedStatementCacheSizeMiB", config.getInt("database.driver.prepared-statement-cache-size-mib", 10));
+        // Collapses executeBatch() of INSERTs into multi-row statements; every batch path relies on this
+        hikariConfig.addDataSourceProperty("reWriteBatchedInserts", config.getBoolean("database.driver.rewrite-batched-inserts", true));
+        hikariConfig.addDataSourceProperty("ApplicationName", config.getString("database.driver.application-name", "minepath-plugin"));
+        hikariConfig.addDataSourceProperty("tcpKeepAlive", config.getBoolean("database.driver.tcp-keep-alive", true));
+        // Any other driver property, passed through verbatim (e.g. database.driver-properties.sslmode: require)
+        org.bukkit.configuration.ConfigurationSection extraProperties = config.getConfigurationSection("database.driver-properties");
+        if (extraProperties != null) {
+            for (String key : extraProperties.getKeys(false)) {
+                hikariConfig.addDataSourceProperty(key, extraProperties.getString(key));
+            }
+        }
 
         try {
             this.dataSource = new HikariDataSource(hikariConfig);
-            plugin.getLogger().info("Successfully connected to the database using HikariCP!");
+            plugin.getLogger().info("Successfully connected to the database using HikariCP! (pool size " + maximumPoolSize + ")");
         } catch (Exception e) {
             plugin.getLogger().severe("Could not create database connection pool: " + e.getMessage());
             throw new RuntimeException("Database connection failed.", e);
         }
+
+        try (Connection conn = getConnection()) {
+            uuidBinding = UuidBinding.detect(conn);
+        } catch (SQLException e) {
+            plugin.getLogger().warning("Could not detect the player uuid column type, assuming VARCHAR: " + e.getMessage());
+        }
+
+        // Per-call latency metrics; calls at or above slow-query-ms are logged as warnings (0 = off)
+        metrics.configure(config.getBoolean("database.metrics.enabled", true), config.getLong("database.metrics.slow-query-ms", 250));
+
+        commissionStrategy = CommissionStrategy.fromConfig(config.getString("database.commission-strategy", "iterative"));
+        if (commissionStrategy == null) {
+            plugin.getLogger().warning("Unknown database.commission-strategy '" + config.getString("database.commission-strategy") + "', using iterative.");
+            commissionStrategy = CommissionStrategy.ITERATIVE;
+        }
+
+        // Referral graph cache: referred_by + commission_rate for every player, kept in memory
+        referralCacheEnabled = config.getBoolean("database.referral-cache.enabled", true);
+        if (referralCacheEnabled) {
+            reloadReferralGraph();
+            if (config.getBoolean("database.referral-cache.listen-for-changes", true)) {
+                referralGraph.startListener(this);
+            }
+        }
+
+        // Player profile cache: whole players row per player, served to the single-column getters.
+        // Off by default: rows changed outside this plugin (admin backend, other servers) stay stale for up to the TTL
+        if (config.getBoolean("database.profile-cache.enabled", false)) {
+            profileCache = new PlayerProfileCache(
+                    config.getInt("database.profile-cache.maximum-size", 2000),
+                    config.getLong("database.profile-cache.ttl-seconds", 60) * 1000L);
+        }
+
+        // Upgrade levels of players loaded with loadUpgradeState(s), kept until evictUpgradeState
+        if (config.getBoolean("database.upgrade-cache.enabled", true)) {
+            upgradeStates = new UpgradeStateCache();
+        }
+
+        // Write-behind MINE balance: addMineBalance only accumulates, a scheduler flushes the deltas
+        if (config.getBoolean("database.write-behind.enabled", false)) {
+            writeBehindMaxStalenessMillis = Math.max(100, config.getLong("database.write-behind.max-staleness-ms", 5000));
+            long flushIntervalMillis = Math.max(50, Math.min(config.getLong("database.write-behind.flush-interval-ms", 1000), writeBehindMaxStalenessMillis));
+            mineBalanceWriteBehind = new DeltaAccumulator("mine_balance",
+                    flushed -> invalidateProfiles(flushed, PlayerProfileCache.Field.MINE_BALANCE));
+            getScheduler().scheduleWithFixedDelay(this::flushPendingMineBalances, flushIntervalMillis, flushIntervalMillis, java.util.concurrent.TimeUnit.MILLISECONDS);
+            plugin.getLogger().info("MINE balance write-behind enabled, flushing every " + flushIntervalMillis + " ms.");
+        }
+
+        // all_referred write-behind: registrations only count their ancestors in memory, a scheduler applies the counts
+        if (config.getBoolean("database.all-referred.write-behind", false)) {
+            long flushIntervalMillis = Math.max(50, config.getLong("database.all-referred.flush-interval-ms", 1000));
+            allReferredWriteBehind = new DeltaAccumulator("all_referred",
+                    flushed -> invalidateProfiles(flushed, PlayerProfileCache.Field.ALL_REFERRED));
+            getScheduler().scheduleWithFixedDelay(this::flushPendingAllReferred, flushIntervalMillis, flushIntervalMillis, java.util.concurrent.TimeUnit.MILLISECONDS);
+            plugin.getLogger().info("all_referred write-behind enabled, flushing every " + flushIntervalMillis + " ms.");
+        }
+
+        // Ledger mode: MINING / REFERRAL_REWARD log rows are coalesced in memory and written once per interval
+        if (config.getBoolean("database.ledger.enabled", false)) {
+            long flushIntervalMillis = Math.max(1000, config.getLong("database.ledger.flush-interval-ms", 60000));
+            ledger = new LedgerAggregator();
+            getScheduler().scheduleWithFixedDelay(this::flushLedger, flushIntervalMillis, flushIntervalMillis, java.util.concurrent.TimeUnit.MILLISECONDS);
+            plugin.getLogger().info("Ledger mode enabled, writing aggregated MINING / REFERRAL_REWARD logs every " + flushIntervalMillis + " ms.");
+        }
+
+        // COPY log ingestor: standalone logTransaction / logReferral rows are buffered, spilled to disk and
+        // written with COPY once flush-rows are buffered or every flush-interval-ms
+        if (config.getBoolean("database.log-ingestor.enabled", false)) {
+            LogIngestor ingestor = new LogIngestor(plugin.getLogger(),
+                    new java.io.File(plugin.getDataFolder(), config.getString("database.log-ingestor.spill-directory", "log-spill")),
+                    config.getInt("database.log-ingestor.buffer-capacity", 50000));
+            try {
+                int recovered = ingestor.replay();
+                logIngestor = ingestor;
+                if (recovered > 0) {
+                    plugin.getLogger().info("Replaying " + recovered + " log rows from the spill directory.");
+                    flushLogIngestor();
+                }
+            } catch (java.io.IOException e) {
+                plugin.getLogger().severe("Could not open the log spill directory, writing logs directly: " + e.getMessage());
+            }
+            if (logIngestor != null) {
+                logIngestorFlushRows = Math.max(1, config.getInt("database.log-ingestor.flush-rows", 5000));
+                long flushIntervalMillis = Math.max(50, config.getLong("database.log-ingestor.flush-interval-ms", 1000));
+                getScheduler().scheduleWithFixedDelay(this::flushLogIngestor, flushIntervalMillis, flushIntervalMillis, java.util.concurrent.TimeUnit.MILLISECONDS);
+            }
+        }
+
+        // Hot accounts: credits to these players (typically large KOLs) go to pending_credits and are merged periodically
+        java.util.Set<UUID> hot = new java.util.HashSet<>();
+        for (String value : config.getStringList("database.hot-accounts.players")) {
+            try {
+                hot.add(UUID.fromString(value.trim()));
+            } catch (IllegalArgumentException e) {
+                plugin.getLogger().warning("Ignoring invalid UUID in database.hot-accounts.players: " + value);
+            }
+        }
+        if (!hot.isEmpty()) {
+            hotAccounts = java.util.Collections.unmodifiableSet(hot);
+            long mergeIntervalMillis = Math.max(100, config.getLong("database.hot-accounts.merge-interval-ms", 1000));
+            getScheduler().scheduleWithFixedDelay(this::mergePendingCredits, mergeIntervalMillis, mergeIntervalMillis, java.util.concurrent.TimeUnit.MILLISECONDS);
+            plugin.getLogger().info(hot.size() + " hot accounts configured, merging their pending credits every " + mergeIntervalMillis + " ms.");
+        }
+
+        // Consistency check of the referral_stats rollup against the logs (0 = off)
+        long referralStatsCheckMinutes = config.getLong("database.referral-stats.check-interval-minutes", 1440);
+        if (referralStatsCheckMinutes > 0) {
+            boolean repair = config.getBoolean("database.referral-stats.repair", true);
+            getScheduler().scheduleWithFixedDelay(() -> checkReferralStats(repair), referralStatsCheckMinutes, referralStatsCheckMinutes, java.util.concurrent.TimeUnit.MINUTES);
+        }
+
+        // Idempotency keys of keyed reward calls are purged once they are older than the retention
+        rewardRequestRetentionHours = Math.max(1, config.getInt("database.idempotency.retention-hours", 168));
+        getScheduler().scheduleWithFixedDelay(this::purgeRewardRequests, 1, 1, java.util.concurrent.TimeUnit.HOURS);
     }
 
     public void disconnect() {
+        referralGraph.stopListener();
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(10, java.util.concurrent.TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            scheduler = null;
+        }
+        // Pending deltas must reach the database before the pool goes away
+        if (mineBalanceWriteBehind != null) {
+            flushPendingMineBalances();
+        }
+        if (allReferredWriteBehind != null) {
+            flushPendingAllReferred();
+        }
+        if (ledger != null) {
+            flushLedger();
+        }
+        if (logIngestor != null) {
+            flushLogIngestor();
+            logIngestor.close();
+        }
+        if (!hotAccounts.isEmpty()) {
+            mergePendingCredits();
+        }
         if (dataSource != null && !dataSource.isClosed()) {
             dataSource.close();
             plugin.getLogger().info("Database connection pool has been closed.");
         }
     }
 
+    /**
+     * Brings the schema up to date through {@link SchemaMigrator}; a single query when nothing is pending.
+     */
     public void createTable() {
-        String createTableSql = "CREATE TABLE IF NOT EXISTS players (" +
-                "uuid VARCHAR(36) PRIMARY KEY," +
-                "password VARCHAR(255) NOT NULL" +
-                ");";
-
-        String addWalletIdSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS fystack_wallet_id VARCHAR(255);";
-        String addSolanaAddressSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS solana_address VARCHAR(255);";
-        String addMineBalanceSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS mine_balance BIGINT NOT NULL DEFAULT 0;";
-        String addSolBalanceSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS sol_balance NUMERIC(38, 18) NOT NULL DEFAULT 0.0;";
-        String alterSolBalanceTypeSql = "ALTER TABLE players ALTER COLUMN sol_balance TYPE NUMERIC(38, 18) USING sol_balance::NUMERIC(38, 18);"; // For existing installations
-        String addLastLoginSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS last_login TIMESTAMPTZ;";
-        String addUsernameSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS username VARCHAR(16);";
-
-        // Referral system columns
-        String addRefCodeSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS ref_code VARCHAR(6);";
-        String addReferredBySql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS referred_by VARCHAR(36);"; // UUID of referrer
-        String addTotalRefRewardSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS total_ref_reward BIGINT NOT NULL DEFAULT 0;";
-        String addTotalReferredSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS total_referred INTEGER NOT NULL DEFAULT 0;"; // F1 only
-        String addAllReferredSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS all_referred INTEGER NOT NULL DEFAULT 0;"; // F1 + F2 + F3 + ... (all levels)
-
-        // Role and Commission Rate Columns
-        String addRoleSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS role VARCHAR(10) NOT NULL DEFAULT 'USER';";
-        String addCommissionRateSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS commission_rate DOUBLE PRECISION NOT NULL DEFAULT 0.3;";
-        String addSolFeeShareSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS sol_fee_share DOUBLE PRECISION NOT NULL DEFAULT 0.0;";
-        String addTotalSolShareSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS total_sol_share NUMERIC(38, 18) NOT NULL DEFAULT 0.0;";
-        String addTotalPayoutSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS total_payout NUMERIC(38, 18) NOT NULL DEFAULT 0.0;";
-        String addManagedByUUIDColumnSql = "ALTER TABLE players ADD COLUMN IF NOT EXISTS managed_by_uuid VARCHAR(36) NULL;";
-        String addManagedByUUIDConstraintSql = "DO $$ BEGIN IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'fk_managed_by') THEN ALTER TABLE players ADD CONSTRAINT fk_managed_by FOREIGN KEY (managed_by_uuid) REFERENCES players(uuid) ON DELETE SET NULL; END IF; END $$;";
-
-        // Add source_player_uuid to transaction_logs if it doesn't exist (for existing databases)
-        String addSourcePlayerUUIDColumnSql = "ALTER TABLE transaction_logs ADD COLUMN IF NOT EXISTS source_player_uuid VARCHAR(36) NULL;";
-        String addSourcePlayerUUIDConstraintSql = "DO $$ BEGIN IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'fk_source_player') THEN ALTER TABLE transaction_logs ADD CONSTRAINT fk_source_player FOREIGN KEY (source_player_uuid) REFERENCES players(uuid) ON DELETE SET NULL; END IF; END $$;";
-
-        // Create ref_logs table - Lưu lịch sử referral
-        String createRefLogsTable = "CREATE TABLE IF NOT EXISTS ref_logs (" +
-                "id SERIAL PRIMARY KEY," +
-                "referrer_uuid VARCHAR(36) NOT NULL," +
-                "referred_uuid VARCHAR(36) NOT NULL," +
-                "ref_code VARCHAR(6) NOT NULL," +
-                "created_at TIMESTAMPTZ NOT NULL DEFAULT (now() at time zone 'utc')," +
-                "FOREIGN KEY (referrer_uuid) REFERENCES players(uuid) ON DELETE CASCADE," +
-                "FOREIGN KEY (referred_uuid) REFERENCES players(uuid) ON DELETE CASCADE" +
-                ");";
-
-        // Create transaction_logs table - Lưu lịch sử giao dịch SOL
-        String createTransactionLogsTable = "CREATE TABLE IF NOT EXISTS transaction_logs (" +
-                "id SERIAL PRIMARY KEY," +
-                "player_uuid VARCHAR(36) NOT NULL," +
-                "transaction_type VARCHAR(50) NOT NULL," +
-                "method VARCHAR(50) NOT NULL," +
-                "amount BIGINT NOT NULL," +
-                "sol_amount DECIMAL(20, 9)," +
-                "transaction_hash VARCHAR(255)," +
-                "status VARCHAR(20) NOT NULL DEFAULT 'PENDING'," +
-                "source_player_uuid VARCHAR(36)," + // Who generated this transaction (for commissions)
-                "created_at TIMESTAMPTZ NOT NULL DEFAULT (now() at time zone 'utc')," +
-                "FOREIGN KEY (player_uuid) REFERENCES players(uuid) ON DELETE CASCADE," +
-                "FOREIGN KEY (source_player_uuid) REFERENCES players(uuid) ON DELETE SET NULL" + // Set null if source player is deleted
-                ");";
-
-        // Create commission_logs table - Lưu lịch sử payout SOL cho KOL (sử dụng ngoài plugin)
-        String createCommissionLogsTable = "CREATE TABLE IF NOT EXISTS commission_logs (" +
-                "id SERIAL PRIMARY KEY," +
-                "kol_uuid VARCHAR(36)," +
-                "amount NUMERIC(38, 18) NOT NULL," +
-                "asset VARCHAR(16) NOT NULL DEFAULT 'SOL'," +
-                "method VARCHAR(50)," +
-                "tx_hash VARCHAR(255)," +
-                "paid_by VARCHAR(36)," +
-                "note TEXT," +
-                "status VARCHAR(20) NOT NULL DEFAULT 'SUCCESS'," +
-                "created_at TIMESTAMPTZ NOT NULL DEFAULT (now() at time zone 'utc')" +
-                ");";
-
-        // Create mine_to_earn table for player upgrades
-        String createMineToEarnTable = "CREATE TABLE IF NOT EXISTS mine_to_earn (" +
-                "player_uuid VARCHAR(36) PRIMARY KEY," +
-                "upgrade_speed INTEGER NOT NULL DEFAULT 0," +
-                "upgrade_inventory INTEGER NOT NULL DEFAULT 0," +
-                "upgrade_reset_cooldown INTEGER NOT NULL DEFAULT 0," +
-                "upgrade_passive_income INTEGER NOT NULL DEFAULT 0," +
-                "upgrade_mining_area INTEGER NOT NULL DEFAULT 0," +
-                "FOREIGN KEY (player_uuid) REFERENCES players(uuid) ON DELETE CASCADE" +
-                ");";
-
-        // Create indexes for better query performance
-        String createRefLogsIndexReferrer = "CREATE INDEX IF NOT EXISTS idx_ref_logs_referrer ON ref_logs(referrer_uuid);";
-        String createRefLogsIndexReferred = "CREATE INDEX IF NOT EXISTS idx_ref_logs_referred ON ref_logs(referred_uuid);";
-        String createRefLogsIndexCreatedAt = "CREATE INDEX IF NOT EXISTS idx_ref_logs_created_at ON ref_logs(created_at);";
-
-        String createTransactionLogsIndexPlayer = "CREATE INDEX IF NOT EXISTS idx_transaction_logs_player ON transaction_logs(player_uuid);";
-        String createTransactionLogsIndexMethod = "CREATE INDEX IF NOT EXISTS idx_transaction_logs_method ON transaction_logs(method);";
-        String createTransactionLogsIndexCreatedAt = "CREATE INDEX IF NOT EXISTS idx_transaction_logs_created_at ON transaction_logs(created_at);";
-        String createTransactionLogsIndexSourcePlayer = "CREATE INDEX IF NOT EXISTS idx_transaction_logs_source_player ON transaction_logs(source_player_uuid);";
-
-        try (Connection conn = getConnection(); Statement statement = conn.createStatement()) {
-            statement.execute(createTableSql);
-            statement.execute(addWalletIdSql);
-            statement.execute(addSolanaAddressSql);
-            statement.execute(addMineBalanceSql);
-            statement.execute(addSolBalanceSql);
-            statement.execute(alterSolBalanceTypeSql);
-            statement.execute(addLastLoginSql);
-            statement.execute(addUsernameSql);
-            statement.execute(addRefCodeSql);
-            statement.execute(addReferredBySql);
-            statement.execute(addTotalRefRewardSql);
-            statement.execute(addTotalReferredSql);
-            statement.execute(addAllReferredSql);
-            statement.execute(addRoleSql);
-            statement.execute(addCommissionRateSql);
-            statement.execute(addSolFeeShareSql);
-            statement.execute(addTotalSolShareSql);
-            statement.execute(addManagedByUUIDColumnSql);
-            statement.execute(addTotalPayoutSql);
-            statement.execute(addManagedByUUIDConstraintSql);
-            statement.execute(addSourcePlayerUUIDColumnSql);
-            statement.execute(addSourcePlayerUUIDConstraintSql);
-
-            // Create new tables
-            statement.execute(createMineToEarnTable);
-            statement.execute(createRefLogsTable);
-            statement.execute(createTransactionLogsTable);
-            statement.execute(createCommissionLogsTable);
-
-            // Create indexes
-            statement.execute(createRefLogsIndexReferrer);
-            statement.execute(createRefLogsIndexReferred);
-            statement.execute(createRefLogsIndexCreatedAt);
-            statement.execute(createTransactionLogsIndexPlayer);
-            statement.execute(createTransactionLogsIndexMethod);
-            statement.execute(createTransactionLogsIndexCreatedAt);
-            statement.execute(createTransactionLogsIndexSourcePlayer);
-            // Indexes for commission_logs
-            statement.execute("CREATE INDEX IF NOT EXISTS idx_commission_logs_kol ON commission_logs(kol_uuid);");
-            statement.execute("CREATE INDEX IF NOT EXISTS idx_commission_logs_created_at ON commission_logs(created_at);");
-            statement.execute("CREATE INDEX IF NOT EXISTS idx_commission_logs_status ON commission_logs(status);");
-
-            plugin.getLogger().info("Database schema is up to date.");
+        FileConfiguration config = plugin.getConfig();
+        int applied;
+        try (Connection conn = getConnection()) {
+            applied = new SchemaMigrator(plugin.getLogger(), config.getBoolean("database.indexes.concurrently", true), uuidBinding).migrate(conn);
+
+            // Opt-in: move every player key from VARCHAR(36) to the native uuid type
+            if (uuidBinding == UuidBinding.VARCHAR && config.getBoolean("database.native-uuid.migrate", false)) {
+                try {
+                    if (NativeUuidMigration.migrate(conn, plugin.getLogger())) {
+                        uuidBinding = UuidBinding.NATIVE;
+                    }
+                } catch (SQLException e) {
+                    plugin.getLogger().severe("Native uuid migration failed, keeping VARCHAR keys: " + e.getMessage());
+                }
+            }
+
+            plugin.getLogger().info(applied > 0 ? "Database schema updated (" + applied + " migrations applied)." : "Database schema is up to date.");
         } catch (SQLException e) {
             plugin.getLogger().severe("Could not update database schema: " + e.getMessage());
             throw new RuntimeException("Failed to initialize database schema.", e);
         }
+
+        // Opt-in: monthly partitions of transaction_logs, with optional retention that archives and drops old months
+        if (config.getBoolean("database.transaction-logs.partitioning.enabled", false)) {
+            TransactionLogPartitions partitions = new TransactionLogPartitions(plugin.getLogger(),
+                    config.getInt("database.transaction-logs.partitioning.months-ahead", 3),
+                    config.getInt("database.transaction-logs.partitioning.retention-months", 0),
+                    new java.io.File(plugin.getDataFolder(), config.getString("database.transaction-logs.partitioning.archive-directory", "archive/transaction_logs")));
+            try (Connection conn = getConnection()) {
+                partitions.convert(conn);
+                transactionLogPartitions = partitions;
+            } catch (SQLException e) {
+                plugin.getLogger().severe("Could not partition transaction_logs, keeping the plain table: " + e.getMessage());
+            }
+            if (transactionLogPartitions != null) {
+                maintainTransactionLogPartitions();
+                long intervalHours = Math.max(1, config.getLong("database.transaction-logs.partitioning.maintenance-interval-hours", 24));
+                getScheduler().scheduleWithFixedDelay(this::maintainTransactionLogPartitions, intervalHours, intervalHours, java.util.concurrent.TimeUnit.HOURS);
+            }
+        }
+
+        // Credits left over from a run that had hot accounts configured, or from one that did not shut down cleanly
+        mergePendingCredits();
+
+        // On a fresh database the cache could not be loaded in connect()
+        if (referralCacheEnabled && !referralGraph.isLoaded()) {
+            reloadReferralGraph();
+        }
+
+        // The query plans only change with the schema, so by default the advisor only runs after a migration
+        if (config.getBoolean("database.schema-advisor.enabled", true)
+                && (applied > 0 || config.getBoolean("database.schema-advisor.every-start", false))) {
+            try (Connection conn = getConnection()) {
+                for (String warning : SchemaAdvisor.check(conn, uuidBinding)) {
+                    plugin.getLogger().warning("Schema advisor: " + warning);
+                }
+            } catch (SQLException e) {
+                plugin.getLogger().warning("Schema advisor could not run: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates upcoming transaction_logs partitions and archives and drops the ones past the retention.
+     * No-op unless partitioning is enabled; runs at startup and on the scheduler.
+     */
+    public void maintainTransactionLogPartitions() {
+        if (transactionLogPartitions == null) {
+            return;
+        }
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            transactionLogPartitions.maintain(conn);
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.MAINTAIN_TRANSACTION_LOG_PARTITIONS);
+            plugin.getLogger().severe("Could not maintain transaction_logs partitions: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.MAINTAIN_TRANSACTION_LOG_PARTITIONS, started);
+        }
+    }
+
+    /**
+     * Folds the credits queued in pending_credits for hot accounts into their players rows.
+     * Runs on the scheduler while hot accounts are configured, at startup and at shutdown.
+     */
+    public void mergePendingCredits() {
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            java.util.Set<UUID> merged = BalanceCredits.merge(conn, uuidBinding);
+            invalidateProfiles(merged, PlayerProfileCache.Field.MINE_BALANCE, PlayerProfileCache.Field.TOTAL_REF_REWARD);
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.MERGE_PENDING_CREDITS);
+            plugin.getLogger().severe("Could not merge pending credits, will retry: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.MERGE_PENDING_CREDITS, started);
+        }
+    }
+
+    /**
+     * Deletes idempotency keys older than database.idempotency.retention-hours. Runs hourly on the scheduler.
+     */
+    public void purgeRewardRequests() {
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            int purged = RewardRequests.purge(conn, rewardRequestRetentionHours);
+            if (purged > 0) {
+                plugin.getLogger().info("Purged " + purged + " expired reward request keys.");
+            }
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.PURGE_REWARD_REQUESTS);
+            plugin.getLogger().severe("Could not purge reward request keys: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.PURGE_REWARD_REQUESTS, started);
+        }
+    }
+
+    /**
+     * Single background thread for periodic database work (write-behind flushes and similar).
+     */
+    private synchronized java.util.concurrent.ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Minepath-DB-Scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * @return the configured maximum number of pooled connections
+     */
+    public int getMaximumPoolSize() {
+        return dataSource != null ? dataSource.getMaximumPoolSize() : 10;
     }
 
     public Connection getConnection() throws SQLException {
         if (dataSource == null) {
             throw new SQLException("Database connection pool is not initialized.");
         }
-        return dataSource.getConnection();
+        long started = metrics.start();
+        try {
+            return dataSource.getConnection();
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.ACQUIRE_CONNECTION);
+            throw e;
+        } finally {
+            metrics.record(DatabaseMetrics.Op.ACQUIRE_CONNECTION, started);
+        }
     }
 
-    public String getFystackWalletId(UUID uuid) {
-        String sql = "SELECT fystack_wallet_id FROM players WHERE uuid = ?;";
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, uuid.toString());
+    UuidBinding getUuidBinding() {
+        return uuidBinding;
+    }
+
+    public DatabaseMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return active/idle/total/waiting counts of the connection pool, or null if it is not running
+     */
+    public DatabaseMetrics.PoolStats getPoolStats() {
+        return dataSource != null && !dataSource.isClosed() ? DatabaseMetrics.PoolStats.of(dataSource.getHikariPoolMXBean()) : null;
+    }
+
+    /**
+     * @return pool stats and per-call latency summary, one line per entry, for an admin command
+     */
+    public java.util.List<String> getMetricsReport() {
+        java.util.List<String> lines = metrics.report(dataSource != null && !dataSource.isClosed() ? dataSource.getHikariPoolMXBean() : null);
+        DatabaseMetrics.IngestStats ingest = getLogIngestorStats();
+        if (ingest != null) {
+            lines.add(0, String.format(java.util.Locale.ROOT, "Log ingestor: %d rows in %d flushes (%d failed), %.0f rows/s, %d buffered, last flush %d rows in %d ms",
+                    ingest.rowsIngested, ingest.flushes, ingest.failedFlushes, ingest.rowsPerSecond, ingest.buffered, ingest.lastFlushRows, ingest.lastFlushMillis));
+        }
+        return lines;
+    }
+
+    // --- Player Profile ---
+
+    /**
+     * Loads a player's whole players row and caches it. Call on join so the getters below are served from memory.
+     * @return the profile, or null if the player does not exist or the query failed
+     */
+    public PlayerProfile loadPlayerProfile(UUID uuid) {
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            return loadProfile(uuid, conn);
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.LOAD_PLAYER_PROFILE);
+            plugin.getLogger().severe("Could not load profile for player " + uuid + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.LOAD_PLAYER_PROFILE, started);
+        }
+        return null;
+    }
+
+    /**
+     * Drops a player's cached profile. Call on quit.
+     */
+    public void evictPlayerProfile(UUID uuid) {
+        if (profileCache != null) {
+            profileCache.remove(uuid);
+        }
+    }
+
+    public long getProfileCacheHits() {
+        return profileCache != null ? profileCache.hits() : 0;
+    }
+
+    public long getProfileCacheMisses() {
+        return profileCache != null ? profileCache.misses() : 0;
+    }
+
+    /**
+     * Returns the player's profile from the cache when {@code field} is fresh there, otherwise reads the row.
+     * @return the profile, or null if the player does not exist
+     */
+    private PlayerProfile getProfile(UUID uuid, PlayerProfileCache.Field field) throws SQLException {
+        if (profileCache != null) {
+            PlayerProfile cached = profileCache.get(uuid, field);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        try (Connection conn = getConnection()) {
+            return loadProfile(uuid, conn);
+        }
+    }
+
+    private PlayerProfile loadProfile(UUID uuid, Connection conn) throws SQLException {
+        String sql = "SELECT username, fystack_wallet_id, solana_address, mine_balance, sol_balance, last_login, ref_code, referred_by, " +
+                     "total_ref_reward, total_referred, all_referred, role, commission_rate, sol_fee_share, total_sol_share, total_payout " +
+                     "FROM players WHERE uuid = ?;";
+        long version = profileCache != null ? profileCache.version(uuid) : 0;
+        try (java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            uuidBinding.bind(pstmt, 1, uuid);
             try (java.sql.ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getString("fystack_wallet_id");
+                if (!rs.next()) {
+                    return null;
                 }
+                PlayerProfile profile = new PlayerProfile(
+                    uuid,
+                    rs.getString("username"),
+                    rs.getString("fystack_wallet_id"),
+                    rs.getString("solana_address"),
+                    rs.getLong("mine_balance"),
+                    rs.getDouble("sol_balance"),
+                    rs.getTimestamp("last_login"),
+                    rs.getString("ref_code"),
+                    uuidBinding.read(rs, "referred_by"),
+                    rs.getLong("total_ref_reward"),
+                    rs.getInt("total_referred"),
+                    rs.getInt("all_referred"),
+                    rs.getString("role"),
+                    rs.getDouble("commission_rate"),
+                    rs.getDouble("sol_fee_share"),
+                    rs.getBigDecimal("total_sol_share"),
+                    rs.getBigDecimal("total_payout")
+                );
+                if (profileCache != null) {
+                    profileCache.put(uuid, profile, version);
+                }
+                return profile;
+            }
+        }
+    }
+
+    private void invalidateProfile(UUID uuid, PlayerProfileCache.Field... fields) {
+        if (profileCache != null) {
+            profileCache.invalidate(uuid, fields);
+        }
+    }
+
+    private void invalidateProfiles(java.util.Collection<UUID> uuids, PlayerProfileCache.Field... fields) {
+        if (profileCache != null) {
+            profileCache.invalidate(uuids, fields);
+        }
+    }
+
+    public String getFystackWalletId(UUID uuid) {
+        long started = metrics.start();
+        try {
+            PlayerProfile profile = getProfile(uuid, PlayerProfileCache.Field.FYSTACK_WALLET_ID);
+            if (profile != null) {
+                return profile.fystackWalletId;
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_FYSTACK_WALLET_ID);
             plugin.getLogger().severe("Could not get Fystack wallet ID for player " + uuid + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_FYSTACK_WALLET_ID, started);
         }
         return null;
     }
 
     public void addMineBalance(UUID uuid, long amountToAdd) {
+        if (mineBalanceWriteBehind != null) {
+            mineBalanceWriteBehind.add(uuid, amountToAdd);
+            return;
+        }
         String sql = "UPDATE players SET mine_balance = mine_balance + ? WHERE uuid = ?;";
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setLong(1, amountToAdd);
-            pstmt.setString(2, uuid.toString());
+            uuidBinding.bind(pstmt, 2, uuid);
             pstmt.executeUpdate();
+            invalidateProfile(uuid, PlayerProfileCache.Field.MINE_BALANCE);
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.ADD_MINE_BALANCE);
             plugin.getLogger().severe("Could not update MINE balance for player " + uuid + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.ADD_MINE_BALANCE, started);
         }
     }
 
     /**
      * Adds MINE balance to a player without any commission logic.
-     * This is a simple, direct update.
+     * This is a simple, direct update, or a deferred one when write-behind is enabled.
      */
     public void addMineBalanceSimple(UUID uuid, long amountToAdd) {
+        if (mineBalanceWriteBehind != null) {
+            mineBalanceWriteBehind.add(uuid, amountToAdd);
+            return;
+        }
         String sql = "UPDATE players SET mine_balance = mine_balance + ? WHERE uuid = ?;";
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setLong(1, amountToAdd);
-            pstmt.setString(2, uuid.toString());
+            uuidBinding.bind(pstmt, 2, uuid);
             pstmt.executeUpdate();
+            invalidateProfile(uuid, PlayerProfileCache.Field.MINE_BALANCE);
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.ADD_MINE_BALANCE_SIMPLE);
             plugin.getLogger().severe("Could not update MINE balance for player " + uuid + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.ADD_MINE_BALANCE_SIMPLE, started);
+        }
+    }
+
+
+    /**
+     * Writes every pending write-behind MINE balance delta to the database.
+     * Runs on the scheduler; also called from disconnect().
+     */
+    public void flushPendingMineBalances() {
+        if (mineBalanceWriteBehind == null) {
+            return;
+        }
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            mineBalanceWriteBehind.flush(conn, uuidBinding);
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.FLUSH_PENDING_MINE_BALANCES);
+            plugin.getLogger().severe("Could not flush pending MINE balances: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.FLUSH_PENDING_MINE_BALANCES, started);
+        }
+        long staleness = mineBalanceWriteBehind.oldestPendingAgeMillis();
+        if (staleness > writeBehindMaxStalenessMillis) {
+            plugin.getLogger().warning("Pending MINE balance deltas are " + staleness + " ms old, above the " + writeBehindMaxStalenessMillis + " ms limit.");
+        }
+    }
+
+    /**
+     * Writes every pending write-behind all_referred count. Runs on the scheduler; also called from disconnect().
+     */
+    public void flushPendingAllReferred() {
+        if (allReferredWriteBehind == null) {
+            return;
+        }
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            allReferredWriteBehind.flush(conn, uuidBinding);
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.FLUSH_PENDING_ALL_REFERRED);
+            plugin.getLogger().severe("Could not flush pending all_referred counts, will retry: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.FLUSH_PENDING_ALL_REFERRED, started);
+        }
+    }
+
+    /**
+     * Writes the ledger-mode aggregates collected since the last flush. Runs on the scheduler and at shutdown.
+     */
+    public void flushLedger() {
+        if (ledger == null) {
+            return;
+        }
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            ledger.flush(conn, uuidBinding);
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.FLUSH_LEDGER);
+            plugin.getLogger().severe("Could not flush ledger transaction logs, will retry: " + e.getMessage()
+                    + " (oldest pending " + ledger.oldestPendingAgeMillis() + " ms)");
+        } finally {
+            metrics.record(DatabaseMetrics.Op.FLUSH_LEDGER, started);
+        }
+    }
+
+    /**
+     * Writes the rows buffered by the COPY log ingestor. Runs on the scheduler, when flush-rows are buffered,
+     * and at shutdown; rows of a failed flush stay in the spill directory and are retried.
+     */
+    public void flushLogIngestor() {
+        if (logIngestor == null) {
+            return;
+        }
+        logIngestorFlushQueued.set(false);
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            logIngestor.flush(conn, uuidBinding);
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.FLUSH_LOG_INGESTOR);
+            plugin.getLogger().severe("Could not flush buffered log rows, will retry: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.FLUSH_LOG_INGESTOR, started);
+        }
+    }
+
+    /**
+     * @return throughput of the COPY log ingestor, or null if it is disabled
+     */
+    public DatabaseMetrics.IngestStats getLogIngestorStats() {
+        return logIngestor != null ? logIngestor.stats() : null;
+    }
+
+    /**
+     * Hands a row to the log ingestor and queues a flush on the scheduler once flush-rows are buffered.
+     * @return false if the ingestor is disabled or its buffer is full; the caller writes the row directly then
+     */
+    private boolean ingest(java.util.function.BooleanSupplier add) {
+        if (logIngestor == null) {
+            return false;
         }
+        boolean added = add.getAsBoolean();
+        // A full buffer means the scheduled flushes fall behind; never flush on the caller's thread
+        if ((!added || logIngestor.buffered() >= logIngestorFlushRows) && logIngestorFlushQueued.compareAndSet(false, true)) {
+            getScheduler().execute(this::flushLogIngestor);
+        }
+        return added;
     }
 
+    /**
+     * Log batch for one unit of work; diverts coalescible rows to the ledger when ledger mode is on.
+     */
+    private TransactionLogBatch newTransactionLogBatch() {
+        return new TransactionLogBatch(uuidBinding, ledger);
+    }
+
+    /**
+     * Writes one player's pending write-behind MINE balance delta. Call on player quit.
+     */
+    public void flushPendingMineBalance(UUID uuid) {
+        if (mineBalanceWriteBehind == null) {
+            return;
+        }
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            mineBalanceWriteBehind.flush(uuid, conn, uuidBinding);
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.FLUSH_PENDING_MINE_BALANCE);
+            plugin.getLogger().severe("Could not flush pending MINE balance for player " + uuid + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.FLUSH_PENDING_MINE_BALANCE, started);
+        }
+    }
 
     /**
      * Adds MINE balance to a player and distributes referral commission if applicable.
      */
     public void addMineBalanceWithCommission(UUID playerUUID, long amountToAdd) {
+        addMineBalanceWithCommission(playerUUID, amountToAdd, null);
+    }
+
+    /**
+     * Keyed variant of {@link #addMineBalanceWithCommission(UUID, long)}: the credit and its commissions are
+     * applied at most once per request key, so a caller that timed out can retry with the same key.
+     * @param requestKey caller-chosen key of at most 128 characters, unique per reward; null applies unconditionally
+     * @return APPLIED, DUPLICATE if the key was already used (nothing changed), or FAILED (nothing changed, safe to retry)
+     */
+    public RewardResult addMineBalanceWithCommission(UUID playerUUID, long amountToAdd, String requestKey) {
+        long started = metrics.start();
         try (Connection conn = getConnection()) {
             conn.setAutoCommit(false);
-            try {
+            try (TransactionStatements statements = new TransactionStatements(conn)) {
+                if (requestKey != null && !RewardRequests.claim(conn, uuidBinding, requestKey, "MINE_WITH_COMMISSION", playerUUID)) {
+                    conn.rollback();
+                    return RewardResult.DUPLICATE;
+                }
                 // The original player is the source of the transaction chain
-                addMineBalanceWithCommission(playerUUID, amountToAdd, conn, playerUUID);
+                BalanceCredits credits = new BalanceCredits();
+                TransactionLogBatch logs = newTransactionLogBatch();
+                addMineBalanceWithCommission(playerUUID, amountToAdd, statements, playerUUID, credits, logs);
+                applyCredits(conn, credits, logs);
+                logs.flush(conn);
                 conn.commit();
+                logs.committed();
+                invalidateProfiles(logs.playerUUIDs(), PlayerProfileCache.Field.MINE_BALANCE, PlayerProfileCache.Field.TOTAL_REF_REWARD);
+                return RewardResult.APPLIED;
             } catch (SQLException e) {
+                metrics.error(DatabaseMetrics.Op.ADD_MINE_BALANCE_WITH_COMMISSION);
                 plugin.getLogger().severe("Error during commission transaction for player " + playerUUID + ", rolling back. Error: " + e.getMessage());
                 conn.rollback();
             } finally {
                 conn.setAutoCommit(true);
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.ADD_MINE_BALANCE_WITH_COMMISSION);
             plugin.getLogger().severe("Failed to get connection or manage transaction for commission: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.ADD_MINE_BALANCE_WITH_COMMISSION, started);
         }
+        return RewardResult.FAILED;
     }
 
-    private void addMineBalanceWithCommission(UUID initialPlayerUUID, long initialAmount, Connection conn, UUID sourcePlayerUUID) throws SQLException {
+    private void addMineBalanceWithCommission(UUID initialPlayerUUID, long initialAmount, TransactionStatements statements, UUID sourcePlayerUUID,
+                                              BalanceCredits credits, TransactionLogBatch logs) throws SQLException {
         // Step 1: Add the initial amount to the first player's balance
-        String addBalanceSql = "UPDATE players SET mine_balance = mine_balance + ? WHERE uuid = ?;";
-        try (java.sql.PreparedStatement pstmt = conn.prepareStatement(addBalanceSql)) {
-            pstmt.setLong(1, initialAmount);
-            pstmt.setString(2, initialPlayerUUID.toString());
-            pstmt.executeUpdate();
-        }
+        credits.add(initialPlayerUUID, initialAmount, 0);
 
         // Step 2: Log the initial transaction (e.g., MINING, PASSIVE_INCOME)
         String initialMethod = initialPlayerUUID.equals(sourcePlayerUUID) ? "MINING" : "REFERRAL_REWARD";
-        logTransaction(initialPlayerUUID, "IN", initialMethod, initialAmount, null, null, "SUCCESS", sourcePlayerUUID);
+        logs.add(initialPlayerUUID, "IN", initialMethod, initialAmount, null, null, "SUCCESS", sourcePlayerUUID);
+
+        // Step 3: Process the referral chain
+        distributeCommissions(initialPlayerUUID, initialAmount, statements, sourcePlayerUUID, credits, logs);
+    }
+
+    /**
+     * Applies the collected balance credits in lock order and drops the log rows of players that have no row.
+     */
+    private void applyCredits(Connection conn, BalanceCredits credits, TransactionLogBatch logs) throws SQLException {
+        logs.discard(credits.apply(conn, uuidBinding, hotAccounts));
+    }
+
+    /**
+     * Pays the decaying referral commissions on {@code baseAmount} to every ancestor of the player,
+     * using the configured {@link CommissionStrategy}. Credits are collected on {@code credits} and
+     * log rows queued on {@code logs}; the caller applies both.
+     */
+    private void distributeCommissions(UUID playerUUID, long baseAmount, TransactionStatements statements, UUID sourcePlayerUUID,
+                                       BalanceCredits credits, TransactionLogBatch logs) throws SQLException {
+        if (commissionStrategy == CommissionStrategy.RECURSIVE_CTE) {
+            distributeCommissionsSetBased(playerUUID, baseAmount, statements.connection(), sourcePlayerUUID, credits, logs);
+            return;
+        }
+        if (commissionStrategy == CommissionStrategy.CLOSURE) {
+            distributeCommissionsFromAncestry(playerUUID, baseAmount, statements.connection(), sourcePlayerUUID, credits, logs);
+            return;
+        }
 
-        // Step 3: Iteratively process the referral chain
-        UUID currentPlayerUUID = initialPlayerUUID;
-        long currentCommissionBase = initialAmount;
+        // One node lookup per level: the referrer's node carries both its rate and the next referrer
+        ReferralGraphCache.Node current = getReferralNode(playerUUID, statements);
+        long currentCommissionBase = baseAmount;
 
         while (true) {
-            UUID referrerUUID = getReferredBy(currentPlayerUUID, conn);
+            UUID referrerUUID = current.referredBy;
 
             // Stop if there's no referrer
             if (referrerUUID == null) {
@@ -303,7 +838,8 @@ public class DatabaseManager {
             }
 
             // Calculate commission for this level
-            double commissionRate = getCommissionRate(referrerUUID, conn);
+            ReferralGraphCache.Node referrer = getReferralNode(referrerUUID, statements);
+            double commissionRate = referrer.commissionRate;
             long commissionAmount = (long) (currentCommissionBase * commissionRate);
 
             // Stop if the commission is negligible
@@ -312,10 +848,10 @@ public class DatabaseManager {
             }
 
             // Add the commission to the referrer's balance and update their total reward stat
-            addReferralReward(referrerUUID, commissionAmount, conn, sourcePlayerUUID);
+            addReferralReward(referrerUUID, commissionAmount, sourcePlayerUUID, credits, logs);
 
             // Prepare for the next iteration
-            currentPlayerUUID = referrerUUID;
+            current = referrer;
             currentCommissionBase = commissionAmount;
         }
     }
@@ -326,91 +862,195 @@ public class DatabaseManager {
      * @param baseAmount The base amount from which commissions are calculated.
      */
     public void distributeReferralCommissions(UUID playerUUID, long baseAmount) {
+        long started = metrics.start();
         try (Connection conn = getConnection()) {
             conn.setAutoCommit(false);
-            try {
-                UUID currentPlayerUUID = playerUUID;
-                long currentCommissionBase = baseAmount;
-
-                while (true) {
-                    UUID referrerUUID = getReferredBy(currentPlayerUUID, conn);
-                    if (referrerUUID == null) {
-                        break;
-                    }
-
-                    double commissionRate = getCommissionRate(referrerUUID, conn);
-                    long commissionAmount = (long) (currentCommissionBase * commissionRate);
-
-                    if (commissionAmount <= 0) {
-                        break;
-                    }
-
-                    addReferralReward(referrerUUID, commissionAmount, conn, playerUUID);
-
-                    currentPlayerUUID = referrerUUID;
-                    currentCommissionBase = commissionAmount;
-                }
+            try (TransactionStatements statements = new TransactionStatements(conn)) {
+                BalanceCredits credits = new BalanceCredits();
+                TransactionLogBatch logs = newTransactionLogBatch();
+                distributeCommissions(playerUUID, baseAmount, statements, playerUUID, credits, logs);
+                applyCredits(conn, credits, logs);
+                logs.flush(conn);
                 conn.commit();
+                logs.committed();
+                invalidateProfiles(logs.playerUUIDs(), PlayerProfileCache.Field.MINE_BALANCE, PlayerProfileCache.Field.TOTAL_REF_REWARD);
             } catch (SQLException e) {
+                metrics.error(DatabaseMetrics.Op.DISTRIBUTE_REFERRAL_COMMISSIONS);
                 plugin.getLogger().severe("Error during commission distribution for player " + playerUUID + ", rolling back. Error: " + e.getMessage());
                 conn.rollback();
             } finally {
                 conn.setAutoCommit(true);
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.DISTRIBUTE_REFERRAL_COMMISSIONS);
             plugin.getLogger().severe("Failed to get connection or manage transaction for commission distribution: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.DISTRIBUTE_REFERRAL_COMMISSIONS, started);
         }
     }
 
     /**
-     * Distributes the SOL fee share to the direct referrer (F1) if they are a KOL.
-     * @param f1PlayerUUID The player who made the claim.
-     * @param solAmountPaid The amount of SOL paid for the claim.
+     * Server-side variant of the referral chain walk: one recursive query fetches every ancestor of
+     * the player together with its commission_rate, the decaying commission amounts are computed here,
+     * and the credits are collected on {@code credits}. Log rows are queued on {@code logs}.
+     * Does not use the referral graph cache, so it stays correct when several servers share the database.
      */
-    public void distributeSolFeeShare(UUID f1PlayerUUID, java.math.BigDecimal solAmountPaid) {
-        UUID referrerUUID = getReferredBy(f1PlayerUUID);
-        if (referrerUUID == null) {
-            return; // No referrer, no commission.
+    private void distributeCommissionsSetBased(UUID playerUUID, long baseAmount, Connection conn, UUID sourcePlayerUUID,
+                                               BalanceCredits credits, TransactionLogBatch logs) throws SQLException {
+        String chainSql = "WITH RECURSIVE chain (uuid, depth) AS (" +
+                          "SELECT referred_by, 1 FROM players WHERE uuid = ? AND referred_by IS NOT NULL " +
+                          "UNION ALL " +
+                          "SELECT p.referred_by, c.depth + 1 FROM chain c JOIN players p ON p.uuid = c.uuid " +
+                          "WHERE p.referred_by IS NOT NULL AND c.depth < ?) " +
+                          "SELECT c.uuid, p.commission_rate, p.uuid IS NOT NULL AS present " +
+                          "FROM chain c LEFT JOIN players p ON p.uuid = c.uuid ORDER BY c.depth;";
+
+        try (java.sql.PreparedStatement pstmt = conn.prepareStatement(chainSql)) {
+            uuidBinding.bind(pstmt, 1, playerUUID);
+            pstmt.setInt(2, MAX_REFERRAL_DEPTH);
+            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
+                long currentCommissionBase = baseAmount;
+                while (rs.next()) {
+                    boolean present = rs.getBoolean("present");
+                    double commissionRate = present ? rs.getDouble("commission_rate") : ReferralGraphCache.DEFAULT_COMMISSION_RATE;
+                    long commissionAmount = (long) (currentCommissionBase * commissionRate);
+                    if (commissionAmount <= 0 || !present) {
+                        break;
+                    }
+                    UUID referrerUUID = uuidBinding.read(rs, "uuid");
+                    credits.add(referrerUUID, commissionAmount, commissionAmount);
+                    logs.add(referrerUUID, "IN", "REFERRAL_REWARD", commissionAmount, null, null, "SUCCESS", sourcePlayerUUID);
+                    currentCommissionBase = commissionAmount;
+                }
+            }
         }
+    }
 
-        double solFeeShareRate = getSolFeeShare(referrerUUID);
-        if (solFeeShareRate <= 0) {
-            return; // Referrer is not a KOL or has no share rate.
+    /**
+     * Closure-table variant: the whole ancestor chain with commission rates is one indexed lookup in
+     * referral_ancestry. The chain stops at a gap in depth, where a deleted player cut it, exactly where
+     * the referred_by walk stops. Credits are collected on {@code credits}, log rows queued on {@code logs}.
+     */
+    private void distributeCommissionsFromAncestry(UUID playerUUID, long baseAmount, Connection conn, UUID sourcePlayerUUID,
+                                                   BalanceCredits credits, TransactionLogBatch logs) throws SQLException {
+        long currentCommissionBase = baseAmount;
+        int expectedDepth = 1;
+        for (ReferralAncestry.Ancestor ancestor : ReferralAncestry.ancestors(conn, uuidBinding, playerUUID)) {
+            if (ancestor.depth != expectedDepth++) {
+                break;
+            }
+            long commissionAmount = (long) (currentCommissionBase * ancestor.commissionRate);
+            if (commissionAmount <= 0) {
+                break;
+            }
+            credits.add(ancestor.uuid, commissionAmount, commissionAmount);
+            logs.add(ancestor.uuid, "IN", "REFERRAL_REWARD", commissionAmount, null, null, "SUCCESS", sourcePlayerUUID);
+            currentCommissionBase = commissionAmount;
         }
+    }
 
-        java.math.BigDecimal commissionAmount = solAmountPaid.multiply(java.math.BigDecimal.valueOf(solFeeShareRate));
-        if (commissionAmount.compareTo(java.math.BigDecimal.ZERO) <= 0) {
-            return; // Commission is zero or less.
-        }
+    /**
+     * Distributes the SOL fee share to the direct referrer (F1) if they are a KOL.
+     * @param f1PlayerUUID The player who made the claim.
+     * @param solAmountPaid The amount of SOL paid for the claim.
+     */
+    public void distributeSolFeeShare(UUID f1PlayerUUID, java.math.BigDecimal solAmountPaid) {
+        distributeSolFeeShare(f1PlayerUUID, solAmountPaid, null);
+    }
 
+    /**
+     * Keyed variant of {@link #distributeSolFeeShare(UUID, java.math.BigDecimal)}: the share is recorded at most
+     * once per request key. The total_sol_share update and its log row commit together with the key.
+     * @param requestKey caller-chosen key of at most 128 characters, unique per claim; null applies unconditionally
+     * @return APPLIED (also when there is no share to pay), DUPLICATE if the key was already used, or FAILED on
+     *         any database error, including the referrer and rate lookup; the key stays unclaimed then
+     */
+    public RewardResult distributeSolFeeShare(UUID f1PlayerUUID, java.math.BigDecimal solAmountPaid, String requestKey) {
+        long started = metrics.start();
         // As per the user's request, the Fystack API transfer is skipped.
         // We will only record the earned commission in the database.
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                if (requestKey != null && !RewardRequests.claim(conn, uuidBinding, requestKey, "SOL_FEE_SHARE", f1PlayerUUID)) {
+                    conn.rollback();
+                    return RewardResult.DUPLICATE;
+                }
 
-        // Update the total_sol_share for the referrer
-        updateTotalSolShare(referrerUUID, commissionAmount);
-
-        // Log the transaction for the referrer, indicating it's a credit to be paid out later.
-        logTransaction(
-            referrerUUID,
-            "IN",
-            "SOL_FEE_SHARE",
-            0, // MINE amount is 0
-            commissionAmount,
-            "DATABASE_ONLY", // No on-chain hash, marked as internal record
-            "SUCCESS",
-            f1PlayerUUID // The source of the commission
-        );
+                // Read inside the keyed transaction: a failed lookup must end in FAILED with the key unclaimed,
+                // and "nothing to pay" must claim the key like a paid share does
+                UUID referrerUUID = getReferredBy(f1PlayerUUID, conn);
+                if (referrerUUID == null) {
+                    conn.commit();
+                    return RewardResult.APPLIED; // No referrer, no commission.
+                }
+
+                double solFeeShareRate = readSolFeeShare(referrerUUID, conn);
+                if (solFeeShareRate <= 0) {
+                    conn.commit();
+                    return RewardResult.APPLIED; // Referrer is not a KOL or has no share rate.
+                }
+
+                java.math.BigDecimal commissionAmount = solAmountPaid.multiply(java.math.BigDecimal.valueOf(solFeeShareRate));
+                if (commissionAmount.compareTo(java.math.BigDecimal.ZERO) <= 0) {
+                    conn.commit();
+                    return RewardResult.APPLIED; // Commission is zero or less.
+                }
+
+                // Update the total_sol_share for the referrer
+                updateTotalSolShare(conn, referrerUUID, commissionAmount);
+
+                // Log the transaction for the referrer, indicating it's a credit to be paid out later.
+                TransactionLogBatch logs = newTransactionLogBatch();
+                logs.add(
+                    referrerUUID,
+                    "IN",
+                    "SOL_FEE_SHARE",
+                    0, // MINE amount is 0
+                    commissionAmount,
+                    "DATABASE_ONLY", // No on-chain hash, marked as internal record
+                    "SUCCESS",
+                    f1PlayerUUID // The source of the commission
+                );
+                logs.flush(conn);
+                conn.commit();
+                logs.committed();
+                invalidateProfile(referrerUUID, PlayerProfileCache.Field.TOTAL_SOL_SHARE);
+                return RewardResult.APPLIED;
+            } catch (SQLException e) {
+                metrics.error(DatabaseMetrics.Op.DISTRIBUTE_SOL_FEE_SHARE);
+                plugin.getLogger().severe("Error recording SOL fee share paid by player " + f1PlayerUUID + ", rolling back. Error: " + e.getMessage());
+                conn.rollback();
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.DISTRIBUTE_SOL_FEE_SHARE);
+            plugin.getLogger().severe("Failed to get connection or manage transaction for SOL fee share: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.DISTRIBUTE_SOL_FEE_SHARE, started);
+        }
+        return RewardResult.FAILED;
+    }
+
+    /**
+     * @return the player's sol_fee_share, 0 if the player has no row
+     */
+    private double readSolFeeShare(UUID playerUUID, Connection conn) throws SQLException {
+        try (java.sql.PreparedStatement pstmt = conn.prepareStatement("SELECT sol_fee_share FROM players WHERE uuid = ?;")) {
+            uuidBinding.bind(pstmt, 1, playerUUID);
+            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getDouble("sol_fee_share") : 0.0;
+            }
+        }
     }
 
-    private void updateTotalSolShare(UUID playerUUID, java.math.BigDecimal amountToAdd) {
+    private void updateTotalSolShare(Connection conn, UUID playerUUID, java.math.BigDecimal amountToAdd) throws SQLException {
         String sql = "UPDATE players SET total_sol_share = total_sol_share + ? WHERE uuid = ?;";
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setBigDecimal(1, amountToAdd);
-            pstmt.setString(2, playerUUID.toString());
+            uuidBinding.bind(pstmt, 2, playerUUID);
             pstmt.executeUpdate();
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Could not update total_sol_share for player " + playerUUID + ": " + e.getMessage());
         }
     }
 
@@ -421,73 +1061,156 @@ public class DatabaseManager {
 
 
     public long getMineBalance(UUID uuid) {
-        String sql = "SELECT mine_balance FROM players WHERE uuid = ?;";
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, uuid.toString());
-            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getLong("mine_balance");
+        long started = metrics.start();
+        try {
+            DeltaAccumulator.PersistedValue persisted = () -> {
+                if (hotAccounts.contains(uuid)) {
+                    return readHotAccountTotals(uuid)[0];
                 }
-            }
+                PlayerProfile profile = getProfile(uuid, PlayerProfileCache.Field.MINE_BALANCE);
+                return profile != null ? profile.mineBalance : 0;
+            };
+            // With write-behind, include deltas that have not been flushed yet
+            return mineBalanceWriteBehind != null ? mineBalanceWriteBehind.readWithPending(uuid, persisted) : persisted.read();
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_MINE_BALANCE);
             plugin.getLogger().severe("Could not get MINE balance for player " + uuid + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_MINE_BALANCE, started);
         }
         return 0;
     }
 
+    /**
+     * Hot account balances change with every credit to pending_credits, so they are read from the
+     * database with the unmerged credits added instead of from the profile cache.
+     * @return {mine_balance, total_ref_reward}, zeros if the player has no row
+     */
+    private long[] readHotAccountTotals(UUID uuid) throws SQLException {
+        try (Connection conn = getConnection()) {
+            long[] totals = BalanceCredits.readTotals(conn, uuidBinding, uuid);
+            return totals != null ? totals : new long[2];
+        }
+    }
+
     public String getSolanaAddress(UUID uuid) {
-        String sql = "SELECT solana_address FROM players WHERE uuid = ?;";
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, uuid.toString());
-            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getString("solana_address");
-                }
+        long started = metrics.start();
+        try {
+            PlayerProfile profile = getProfile(uuid, PlayerProfileCache.Field.SOLANA_ADDRESS);
+            if (profile != null) {
+                return profile.solanaAddress;
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_SOLANA_ADDRESS);
             plugin.getLogger().severe("Could not get Solana address for player " + uuid + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_SOLANA_ADDRESS, started);
         }
         return null;
     }
 
     // --- Mining Upgrade Methods ---
 
-    public int getUpgradeLevel(UUID playerUUID, String upgradeName) {
-        String columnName = getColumnNameForUpgrade(upgradeName);
-        String sql = "SELECT " + columnName + " FROM mine_to_earn WHERE player_uuid = ?;";
+    private static final String UPGRADE_COLUMNS = "upgrade_speed, upgrade_inventory, upgrade_reset_cooldown, upgrade_passive_income, upgrade_mining_area";
+
+    /**
+     * Loads all upgrade levels of a player and caches them until {@link #evictUpgradeState(UUID)}. Call on join.
+     * @return the state, all zeros if the player has no mine_to_earn row yet
+     */
+    public UpgradeState loadUpgradeState(UUID playerUUID) {
+        return loadUpgradeStates(java.util.Collections.singleton(playerUUID)).get(playerUUID);
+    }
+
+    /**
+     * Loads and caches the upgrade levels of many players with one query, e.g. at server start or on chunk load.
+     * @return a state for every requested player, all zeros for players without a mine_to_earn row
+     */
+    public java.util.Map<UUID, UpgradeState> loadUpgradeStates(java.util.Collection<UUID> playerUUIDs) {
+        java.util.Map<UUID, UpgradeState> states = new java.util.HashMap<>();
+        if (playerUUIDs.isEmpty()) {
+            return states;
+        }
+        java.util.Map<UUID, Long> versions = new java.util.HashMap<>();
+        if (upgradeStates != null) {
+            for (UUID uuid : playerUUIDs) {
+                versions.put(uuid, upgradeStates.version(uuid));
+            }
+        }
 
+        String sql = "SELECT player_uuid, " + UPGRADE_COLUMNS + " FROM mine_to_earn WHERE player_uuid = ANY(?);";
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
+            pstmt.setArray(1, uuidBinding.createArray(conn, playerUUIDs));
             try (java.sql.ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt(columnName);
-                } else {
-                    // If no record exists, create a default one and return 0
-                    createDefaultUpgradeEntry(playerUUID);
-                    return 0;
+                while (rs.next()) {
+                    states.put(uuidBinding.read(rs, "player_uuid"), UpgradeState.read(rs));
                 }
             }
         } catch (SQLException e) {
-            plugin.getLogger().severe("Could not get upgrade level for " + upgradeName + " for player " + playerUUID + ": " + e.getMessage());
+            metrics.error(DatabaseMetrics.Op.LOAD_UPGRADE_STATES);
+            plugin.getLogger().severe("Could not load upgrade levels for " + playerUUIDs.size() + " players: " + e.getMessage());
+            return states;
+        } finally {
+            metrics.record(DatabaseMetrics.Op.LOAD_UPGRADE_STATES, started);
         }
-        return 0;
+
+        for (UUID uuid : playerUUIDs) {
+            UpgradeState state = states.computeIfAbsent(uuid, k -> UpgradeState.NONE);
+            if (upgradeStates != null) {
+                upgradeStates.put(uuid, state, versions.get(uuid));
+            }
+        }
+        return states;
     }
 
     /**
-     * Creates a default entry for a player in the mine_to_earn table if it doesn't exist.
-     * This ensures that future UPDATE queries will work correctly.
+     * Drops a player's cached upgrade levels. Call on quit.
      */
-    private void createDefaultUpgradeEntry(UUID playerUUID) {
-        String sql = "INSERT INTO mine_to_earn (player_uuid) VALUES (?) ON CONFLICT (player_uuid) DO NOTHING;";
+    public void evictUpgradeState(UUID playerUUID) {
+        if (upgradeStates != null) {
+            upgradeStates.remove(playerUUID);
+        }
+    }
+
+    /**
+     * @return all upgrade levels of a player, from the cache when the player is loaded, otherwise with one query
+     */
+    public UpgradeState getUpgradeState(UUID playerUUID) {
+        UpgradeState cached = upgradeStates != null ? upgradeStates.get(playerUUID) : null;
+        if (cached != null) {
+            return cached;
+        }
+        long version = upgradeStates != null ? upgradeStates.version(playerUUID) : 0;
+        String sql = "SELECT " + UPGRADE_COLUMNS + " FROM mine_to_earn WHERE player_uuid = ?;";
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            pstmt.executeUpdate();
+            uuidBinding.bind(pstmt, 1, playerUUID);
+            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
+                // No row yet is the same as every level at 0; the writes below create it
+                UpgradeState state = rs.next() ? UpgradeState.read(rs) : UpgradeState.NONE;
+                if (upgradeStates != null) {
+                    upgradeStates.refresh(playerUUID, state, version);
+                }
+                return state;
+            }
         } catch (SQLException e) {
-            plugin.getLogger().severe("Could not create default upgrade entry for player " + playerUUID + ": " + e.getMessage());
+            metrics.error(DatabaseMetrics.Op.GET_UPGRADE_STATE);
+            plugin.getLogger().severe("Could not get upgrade levels for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_UPGRADE_STATE, started);
+        }
+        return UpgradeState.NONE;
+    }
+
+    public int getUpgradeLevel(UUID playerUUID, String upgradeName) {
+        long started = metrics.start();
+        try {
+            String columnName = getColumnNameForUpgrade(upgradeName);
+            return getUpgradeState(playerUUID).level(columnName);
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_UPGRADE_LEVEL, started);
         }
     }
 
@@ -495,61 +1218,113 @@ public class DatabaseManager {
         String columnName = getColumnNameForUpgrade(upgradeName);
         // Use INSERT ... ON CONFLICT (UPSERT) to ensure the row exists and is updated atomically.
         String sql = "INSERT INTO mine_to_earn (player_uuid, " + columnName + ") VALUES (?, ?) " +
-                     "ON CONFLICT (player_uuid) DO UPDATE SET " + columnName + " = EXCLUDED." + columnName + ";";
-
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            pstmt.setInt(2, level);
-            pstmt.executeUpdate();
+                     "ON CONFLICT (player_uuid) DO UPDATE SET " + columnName + " = EXCLUDED." + columnName +
+                     " RETURNING " + UPGRADE_COLUMNS + ";";
+        long started = metrics.start();
+        try {
+            writeUpgradeState(playerUUID, sql, level);
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.SET_UPGRADE_LEVEL);
             plugin.getLogger().severe("Could not set upgrade level for " + upgradeName + " for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.SET_UPGRADE_LEVEL, started);
         }
     }
 
-    public void incrementUpgradeLevel(UUID playerUUID, String upgradeName) {
-        int currentLevel = getUpgradeLevel(playerUUID, upgradeName);
-        setUpgradeLevel(playerUUID, upgradeName, currentLevel + 1);
+    /**
+     * Raises one upgrade by a level in a single statement, so concurrent clicks each count once.
+     * @return the new level, or -1 if the write failed
+     */
+    public int incrementUpgradeLevel(UUID playerUUID, String upgradeName) {
+        String columnName = getColumnNameForUpgrade(upgradeName);
+        // A missing row starts at the column default of 0, so the inserted level is 1
+        String sql = "INSERT INTO mine_to_earn (player_uuid, " + columnName + ") VALUES (?, ?) " +
+                     "ON CONFLICT (player_uuid) DO UPDATE SET " + columnName + " = mine_to_earn." + columnName + " + 1" +
+                     " RETURNING " + UPGRADE_COLUMNS + ";";
+        long started = metrics.start();
+        try {
+            return writeUpgradeState(playerUUID, sql, 1).level(columnName);
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.INCREMENT_UPGRADE_LEVEL);
+            plugin.getLogger().severe("Could not increment upgrade level for " + upgradeName + " for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.INCREMENT_UPGRADE_LEVEL, started);
+        }
+        return -1;
     }
 
     public void resetPlayerUpgrades(UUID playerUUID) {
-        String sql = "UPDATE mine_to_earn SET upgrade_speed = 0, upgrade_inventory = 0, upgrade_reset_cooldown = 0, upgrade_passive_income = 0, upgrade_mining_area = 0 WHERE player_uuid = ?;";
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            pstmt.executeUpdate();
+        String sql = "UPDATE mine_to_earn SET upgrade_speed = 0, upgrade_inventory = 0, upgrade_reset_cooldown = 0, upgrade_passive_income = 0, upgrade_mining_area = 0 " +
+                     "WHERE player_uuid = ? RETURNING " + UPGRADE_COLUMNS + ";";
+        long started = metrics.start();
+        try {
+            writeUpgradeState(playerUUID, sql, null);
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.RESET_PLAYER_UPGRADES);
             plugin.getLogger().severe("Could not reset upgrades for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.RESET_PLAYER_UPGRADES, started);
         }
     }
 
-    private double getCommissionRate(UUID playerUUID, Connection conn) throws SQLException {
-        String sql = "SELECT commission_rate FROM players WHERE uuid::text = ?;";
-        try (java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getDouble("commission_rate");
+    /**
+     * Runs a mine_to_earn write that returns the upgrade columns and keeps the cached state in step with it.
+     * @param level second parameter of the statement, or null if it has only the player parameter
+     * @return the row after the write, all zeros if the statement touched no row
+     */
+    private UpgradeState writeUpgradeState(UUID playerUUID, String sql, Integer level) throws SQLException {
+        UpgradeStateCache.Write write = () -> {
+            try (Connection conn = getConnection();
+                 java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                uuidBinding.bind(pstmt, 1, playerUUID);
+                if (level != null) {
+                    pstmt.setInt(2, level);
+                }
+                try (java.sql.ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? UpgradeState.read(rs) : UpgradeState.NONE;
                 }
             }
+        };
+        return upgradeStates != null ? upgradeStates.write(playerUUID, write) : write.run();
+    }
+
+    /**
+     * Looks up a player's referred_by and commission_rate, from the referral graph cache when it is enabled.
+     */
+    private ReferralGraphCache.Node getReferralNode(UUID playerUUID, Connection conn) throws SQLException {
+        if (!referralCacheEnabled) {
+            return ReferralGraphCache.read(playerUUID, conn, uuidBinding);
         }
-        // Return default USER rate if not found
-        return 0.3;
+        ReferralGraphCache.Node cached = referralGraph.get(playerUUID);
+        return cached != null ? cached : referralGraph.refresh(playerUUID, conn, uuidBinding);
+    }
+
+    /**
+     * Same lookup for chain walks; cache misses reuse the unit of work's prepared statement.
+     * A player that is not found falls back to the default USER rate and no referrer.
+     */
+    private ReferralGraphCache.Node getReferralNode(UUID playerUUID, TransactionStatements statements) throws SQLException {
+        ReferralGraphCache.Node cached = referralCacheEnabled ? referralGraph.get(playerUUID) : null;
+        if (cached != null) {
+            return cached;
+        }
+        ReferralGraphCache.Node node = ReferralGraphCache.read(playerUUID, statements.prepare(ReferralGraphCache.READ_SQL), uuidBinding);
+        return referralCacheEnabled ? referralGraph.remember(playerUUID, node) : node;
     }
 
 
     public double getCommissionRate(UUID playerUUID) {
-        String sql = "SELECT commission_rate FROM players WHERE uuid = ?;";
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getDouble("commission_rate");
-                }
+        long started = metrics.start();
+        try {
+            PlayerProfile profile = getProfile(playerUUID, PlayerProfileCache.Field.COMMISSION_RATE);
+            if (profile != null) {
+                return profile.commissionRate;
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_COMMISSION_RATE);
             plugin.getLogger().severe("Could not get commission rate for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_COMMISSION_RATE, started);
         }
         // Return a default value if not found or on error
         return 0.3; // Default commission rate
@@ -583,23 +1358,56 @@ public class DatabaseManager {
      * @return ref code đã tạo, hoặc null nếu thất bại
      */
     public String createRefCode(UUID playerUUID) {
-        String refCode = generateRefCode();
-
-        // Kiểm tra xem ref code đã tồn tại chưa (rất hiếm)
-        while (isRefCodeExists(refCode)) {
-            refCode = generateRefCode();
-        }
-
-        String sql = "UPDATE players SET ref_code = ? WHERE uuid = ?;";
+        // Claims a code in one statement: the NOT EXISTS check and the write cannot be raced apart
+        // by another server the way a separate isRefCodeExists() call could, and the unique index on
+        // ref_code rejects the rare concurrent claim of the same code. Either way, retry with a new code.
+        String sql = "UPDATE players SET ref_code = ? WHERE uuid = ? AND NOT EXISTS (SELECT 1 FROM players WHERE ref_code = ?);";
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, refCode);
-            pstmt.setString(2, playerUUID.toString());
-            pstmt.executeUpdate();
-            return refCode;
+            boolean playerChecked = false;
+            for (int attempt = 0; attempt < MAX_REF_CODE_ATTEMPTS; attempt++) {
+                String refCode = generateRefCode();
+                pstmt.setString(1, refCode);
+                uuidBinding.bind(pstmt, 2, playerUUID);
+                pstmt.setString(3, refCode);
+                try {
+                    if (pstmt.executeUpdate() > 0) {
+                        invalidateProfile(playerUUID, PlayerProfileCache.Field.REF_CODE);
+                        return refCode;
+                    }
+                } catch (SQLException e) {
+                    if (!UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                        throw e;
+                    }
+                }
+                // No row updated is either a taken code or a missing player; only a taken code is worth retrying
+                if (!playerChecked) {
+                    if (!playerExists(playerUUID, conn)) {
+                        plugin.getLogger().warning("Could not create ref code for player " + playerUUID + ": player not found.");
+                        return null;
+                    }
+                    playerChecked = true;
+                }
+            }
+            plugin.getLogger().warning("Could not create ref code for player " + playerUUID + " after " + MAX_REF_CODE_ATTEMPTS
+                    + " attempts (code space nearly full).");
+            return null;
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.CREATE_REF_CODE);
             plugin.getLogger().severe("Could not create ref code for player " + playerUUID + ": " + e.getMessage());
             return null;
+        } finally {
+            metrics.record(DatabaseMetrics.Op.CREATE_REF_CODE, started);
+        }
+    }
+
+    private boolean playerExists(UUID playerUUID, Connection conn) throws SQLException {
+        try (java.sql.PreparedStatement pstmt = conn.prepareStatement("SELECT 1 FROM players WHERE uuid = ?;")) {
+            uuidBinding.bind(pstmt, 1, playerUUID);
+            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
         }
     }
 
@@ -607,15 +1415,11 @@ public class DatabaseManager {
      * Sinh ref code ngẫu nhiên 6 ký tự (chữ + số)
      */
     private String generateRefCode() {
-        String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
-        StringBuilder code = new StringBuilder();
-        java.util.Random random = new java.util.Random();
-
-        for (int i = 0; i < 6; i++) {
-            code.append(chars.charAt(random.nextInt(chars.length())));
+        char[] code = new char[REF_CODE_LENGTH];
+        for (int i = 0; i < code.length; i++) {
+            code[i] = REF_CODE_ALPHABET.charAt(REF_CODE_RANDOM.nextInt(REF_CODE_ALPHABET.length()));
         }
-
-        return code.toString();
+        return new String(code);
     }
 
     /**
@@ -623,6 +1427,7 @@ public class DatabaseManager {
      */
     public boolean isRefCodeExists(String refCode) {
         String sql = "SELECT COUNT(*) FROM players WHERE ref_code = ?;";
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, refCode);
@@ -632,7 +1437,10 @@ public class DatabaseManager {
                 }
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.IS_REF_CODE_EXISTS);
             plugin.getLogger().severe("Could not check ref code existence: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.IS_REF_CODE_EXISTS, started);
         }
         return false;
     }
@@ -642,16 +1450,20 @@ public class DatabaseManager {
      */
     public UUID getPlayerByRefCode(String refCode) {
         String sql = "SELECT uuid FROM players WHERE ref_code = ?;";
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, refCode);
             try (java.sql.ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next()) {
-                    return UUID.fromString(rs.getString("uuid"));
+                    return uuidBinding.read(rs, "uuid");
                 }
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_PLAYER_BY_REF_CODE);
             plugin.getLogger().severe("Could not get player by ref code: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_PLAYER_BY_REF_CODE, started);
         }
         return null;
     }
@@ -661,13 +1473,39 @@ public class DatabaseManager {
      */
     public void setReferredBy(UUID playerUUID, UUID referrerUUID) {
         String sql = "UPDATE players SET referred_by = ? WHERE uuid = ?;";
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, referrerUUID.toString());
-            pstmt.setString(2, playerUUID.toString());
-            pstmt.executeUpdate();
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                if (referrerUUID != null && ReferralAncestry.isSelfOrAncestor(conn, uuidBinding, playerUUID, referrerUUID)) {
+                    conn.rollback();
+                    plugin.getLogger().warning("Not setting " + referrerUUID + " as referrer of " + playerUUID + ": it would create a referral cycle.");
+                    return;
+                }
+                try (java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    uuidBinding.bind(pstmt, 1, referrerUUID);
+                    uuidBinding.bind(pstmt, 2, playerUUID);
+                    if (pstmt.executeUpdate() == 0) {
+                        conn.rollback();
+                        return;
+                    }
+                }
+                // The player's whole downline moves with it
+                ReferralAncestry.move(conn, uuidBinding, playerUUID, referrerUUID);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            referralGraph.setReferredBy(playerUUID, referrerUUID);
+            invalidateProfile(playerUUID, PlayerProfileCache.Field.REFERRED_BY);
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.SET_REFERRED_BY);
             plugin.getLogger().severe("Could not set referrer for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.SET_REFERRED_BY, started);
         }
     }
 
@@ -675,28 +1513,44 @@ public class DatabaseManager {
      * Lấy UUID người giới thiệu của player
      */
     public UUID getReferredBy(UUID playerUUID) {
+        long started = metrics.start();
         try (Connection conn = getConnection()) {
             return getReferredBy(playerUUID, conn);
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_REFERRED_BY);
             plugin.getLogger().severe("Could not get referrer for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_REFERRED_BY, started);
         }
         return null;
     }
 
     private UUID getReferredBy(UUID playerUUID, Connection conn) throws SQLException {
-        String sql = "SELECT referred_by FROM players WHERE uuid = ?;";
-        try (java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    String referrerUUIDStr = rs.getString("referred_by");
-                    if (referrerUUIDStr != null) {
-                        return UUID.fromString(referrerUUIDStr);
-                    }
-                }
-            }
+        return getReferralNode(playerUUID, conn).referredBy;
+    }
+
+    /**
+     * Drops one player from the referral graph cache so the next lookup reads the row again.
+     * Rows changed by the admin backend are picked up automatically through the players trigger;
+     * this is for edits made while the listener is disabled or disconnected.
+     */
+    public void invalidateReferralGraph(UUID playerUUID) {
+        referralGraph.invalidate(playerUUID);
+    }
+
+    /**
+     * Reloads the whole referral graph cache from the players table.
+     */
+    public void reloadReferralGraph() {
+        if (!referralCacheEnabled) {
+            return;
+        }
+        try (Connection conn = getConnection()) {
+            referralGraph.load(conn, uuidBinding);
+        } catch (SQLException e) {
+            referralGraph.invalidateAll();
+            plugin.getLogger().warning("Could not load referral graph cache, falling back to per-lookup queries: " + e.getMessage());
         }
-        return null;
     }
 
 
@@ -704,17 +1558,17 @@ public class DatabaseManager {
      * Lấy ref code của player
      */
     public String getRefCode(UUID playerUUID) {
-        String sql = "SELECT ref_code FROM players WHERE uuid = ?;";
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getString("ref_code");
-                }
+        long started = metrics.start();
+        try {
+            PlayerProfile profile = getProfile(playerUUID, PlayerProfileCache.Field.REF_CODE);
+            if (profile != null) {
+                return profile.refCode;
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_REF_CODE);
             plugin.getLogger().severe("Could not get ref code for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_REF_CODE, started);
         }
         return null;
     }
@@ -724,12 +1578,17 @@ public class DatabaseManager {
      */
     public void incrementTotalReferred(UUID referrerUUID) {
         String sql = "UPDATE players SET total_referred = total_referred + 1 WHERE uuid = ?;";
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, referrerUUID.toString());
+            uuidBinding.bind(pstmt, 1, referrerUUID);
             pstmt.executeUpdate();
+            invalidateProfile(referrerUUID, PlayerProfileCache.Field.TOTAL_REFERRED);
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.INCREMENT_TOTAL_REFERRED);
             plugin.getLogger().severe("Could not increment total referred for player " + referrerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.INCREMENT_TOTAL_REFERRED, started);
         }
     }
 
@@ -737,13 +1596,22 @@ public class DatabaseManager {
      * Tăng số lượng người đã giới thiệu (tất cả các cấp) của một player.
      */
     public void incrementAllReferred(UUID referrerUUID) {
+        if (allReferredWriteBehind != null) {
+            allReferredWriteBehind.add(referrerUUID, 1);
+            return;
+        }
         String sql = "UPDATE players SET all_referred = all_referred + 1 WHERE uuid = ?;";
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, referrerUUID.toString());
+            uuidBinding.bind(pstmt, 1, referrerUUID);
             pstmt.executeUpdate();
+            invalidateProfile(referrerUUID, PlayerProfileCache.Field.ALL_REFERRED);
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.INCREMENT_ALL_REFERRED);
             plugin.getLogger().severe("Could not increment all_referred for player " + referrerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.INCREMENT_ALL_REFERRED, started);
         }
     }
 
@@ -760,14 +1628,15 @@ public class DatabaseManager {
         String setReferredBySql = "UPDATE players SET referred_by = ? WHERE uuid = ?;";
         String incrementTotalReferredSql = "UPDATE players SET total_referred = total_referred + 1 WHERE uuid = ?;";
         String logReferralSql = "INSERT INTO ref_logs (referrer_uuid, referred_uuid, ref_code) VALUES (?, ?, ?);";
-
+        long started = metrics.start();
         try (Connection conn = getConnection()) {
             conn.setAutoCommit(false); // Start transaction
+            java.util.List<Runnable> afterCommit = new java.util.ArrayList<>(); // cache invalidation and write-behind counts
 
             try {
                 // 1. Register the new player
                 try (java.sql.PreparedStatement pstmt = conn.prepareStatement(registerSql)) {
-                    pstmt.setString(1, playerUUID.toString());
+                    uuidBinding.bind(pstmt, 1, playerUUID);
                     pstmt.setString(2, username);
                     pstmt.setString(3, hashedPassword);
                     pstmt.executeUpdate();
@@ -777,47 +1646,68 @@ public class DatabaseManager {
                 if (referrerUUID != null && refCode != null) {
                     // Set referred_by
                     try (java.sql.PreparedStatement pstmt = conn.prepareStatement(setReferredBySql)) {
-                        pstmt.setString(1, referrerUUID.toString());
-                        pstmt.setString(2, playerUUID.toString());
+                        uuidBinding.bind(pstmt, 1, referrerUUID);
+                        uuidBinding.bind(pstmt, 2, playerUUID);
                         pstmt.executeUpdate();
                     }
 
-                    // Increment total_referred for the referrer (F1 only)
-                    try (java.sql.PreparedStatement pstmt = conn.prepareStatement(incrementTotalReferredSql)) {
-                        pstmt.setString(1, referrerUUID.toString());
-                        pstmt.executeUpdate();
-                    }
-
-                    // Increment all_referred for all levels (F1, F2, F3, ...)
-                    UUID currentReferrer = referrerUUID;
-                    int maxLevels = 100; // Safety limit to prevent infinite loops
-                    int level = 0;
-                    String incrementAllReferredSql = "UPDATE players SET all_referred = all_referred + 1 WHERE uuid = ?;";
-
-                    while (currentReferrer != null && level < maxLevels) {
-                        try (java.sql.PreparedStatement pstmt = conn.prepareStatement(incrementAllReferredSql)) {
-                            pstmt.setString(1, currentReferrer.toString());
+                    // Inherit the referrer's ancestors in the closure table
+                    ReferralAncestry.addLeaf(conn, uuidBinding, playerUUID, referrerUUID);
+
+                    java.util.List<UUID> ancestors = new java.util.ArrayList<>();
+                    if (allReferredWriteBehind == null) {
+                        // total_referred (F1 only) and all_referred (F1, F2, F3, ...) in one statement over the closure rows
+                        try (java.sql.PreparedStatement pstmt = conn.prepareStatement(INCREMENT_REFERRED_COUNTS_SQL)) {
+                            uuidBinding.bind(pstmt, 1, playerUUID);
+                            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
+                                while (rs.next()) {
+                                    ancestors.add(uuidBinding.read(rs, "uuid"));
+                                }
+                            }
+                        }
+                    } else {
+                        // Increment total_referred for the referrer (F1 only); all_referred is counted after commit
+                        try (java.sql.PreparedStatement pstmt = conn.prepareStatement(incrementTotalReferredSql)) {
+                            uuidBinding.bind(pstmt, 1, referrerUUID);
                             pstmt.executeUpdate();
                         }
-
-                        // Get the next level referrer
-                        currentReferrer = getReferredBy(currentReferrer, conn);
-                        level++;
+                        try (java.sql.PreparedStatement pstmt = conn.prepareStatement("SELECT ancestor_uuid FROM referral_ancestry WHERE descendant_uuid = ?;")) {
+                            uuidBinding.bind(pstmt, 1, playerUUID);
+                            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
+                                while (rs.next()) {
+                                    ancestors.add(uuidBinding.read(rs, "ancestor_uuid"));
+                                }
+                            }
+                        }
+                        afterCommit.add(() -> ancestors.forEach(ancestor -> allReferredWriteBehind.add(ancestor, 1)));
                     }
 
                     // Log the referral
                     try (java.sql.PreparedStatement pstmt = conn.prepareStatement(logReferralSql)) {
-                        pstmt.setString(1, referrerUUID.toString());
-                        pstmt.setString(2, playerUUID.toString());
+                        uuidBinding.bind(pstmt, 1, referrerUUID);
+                        uuidBinding.bind(pstmt, 2, playerUUID);
                         pstmt.setString(3, refCode);
                         pstmt.executeUpdate();
                     }
+                    ReferralStatsRollup.seedPair(conn, uuidBinding, referrerUUID, playerUUID);
+
+                    afterCommit.add(() -> {
+                        invalidateProfile(referrerUUID, PlayerProfileCache.Field.TOTAL_REFERRED);
+                        invalidateProfiles(ancestors, PlayerProfileCache.Field.ALL_REFERRED);
+                    });
                 }
 
                 conn.commit(); // Commit transaction
+                afterCommit.forEach(Runnable::run);
+
+                if (referralCacheEnabled) {
+                    UUID cachedReferrer = referrerUUID != null && refCode != null ? referrerUUID : null;
+                    referralGraph.put(playerUUID, cachedReferrer, ReferralGraphCache.DEFAULT_COMMISSION_RATE);
+                }
                 return true;
 
             } catch (SQLException e) {
+                metrics.error(DatabaseMetrics.Op.REGISTER_PLAYER_WITH_REFERRAL);
                 plugin.getLogger().severe("Error during registration transaction for player " + playerUUID + ", rolling back. Error: " + e.getMessage());
                 conn.rollback(); // Rollback on any error
                 return false;
@@ -826,8 +1716,11 @@ public class DatabaseManager {
             }
 
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.REGISTER_PLAYER_WITH_REFERRAL);
             plugin.getLogger().severe("Failed to get connection or manage transaction for registration: " + e.getMessage());
             return false;
+        } finally {
+            metrics.record(DatabaseMetrics.Op.REGISTER_PLAYER_WITH_REFERRAL, started);
         }
     }
 
@@ -835,74 +1728,218 @@ public class DatabaseManager {
      * Cộng MINE thưởng từ referral và cập nhật tổng số MINE đã nhận.
      */
     public void addReferralReward(UUID referrerUUID, long amount) {
+        long started = metrics.start();
         try (Connection conn = getConnection()) {
-            // When this is called directly, the referrer is the source of this specific transaction chain.
-            addReferralReward(referrerUUID, amount, conn, referrerUUID);
+            conn.setAutoCommit(false);
+            try {
+                // When this is called directly, the referrer is the source of this specific transaction chain.
+                BalanceCredits credits = new BalanceCredits();
+                TransactionLogBatch logs = newTransactionLogBatch();
+                addReferralReward(referrerUUID, amount, referrerUUID, credits, logs);
+                applyCredits(conn, credits, logs);
+                logs.flush(conn);
+                conn.commit();
+                logs.committed();
+                invalidateProfiles(logs.playerUUIDs(), PlayerProfileCache.Field.MINE_BALANCE, PlayerProfileCache.Field.TOTAL_REF_REWARD);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.ADD_REFERRAL_REWARD);
             plugin.getLogger().severe("Could not add referral reward for player " + referrerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.ADD_REFERRAL_REWARD, started);
         }
     }
 
-    private void addReferralReward(UUID referrerUUID, long amount, Connection conn, UUID sourcePlayerUUID) throws SQLException {
-        // Step 1: Add the commission amount to the referrer's balance
-        String addBalanceSql = "UPDATE players SET mine_balance = mine_balance + ? WHERE uuid = ?;";
-        try (java.sql.PreparedStatement pstmt = conn.prepareStatement(addBalanceSql)) {
-            pstmt.setLong(1, amount);
-            pstmt.setString(2, referrerUUID.toString());
-            pstmt.executeUpdate();
-        }
-
-        // Step 2: Log this specific commission transaction
-        logTransaction(referrerUUID, "IN", "REFERRAL_REWARD", amount, null, null, "SUCCESS", sourcePlayerUUID);
-
-        // Step 3: Update the total referral reward statistic for the referrer
-        String updateTotalSql = "UPDATE players SET total_ref_reward = total_ref_reward + ? WHERE uuid = ?;";
-        try (java.sql.PreparedStatement pstmt = conn.prepareStatement(updateTotalSql)) {
-            pstmt.setLong(1, amount);
-            pstmt.setString(2, referrerUUID.toString());
-            pstmt.executeUpdate();
-        }
+    private void addReferralReward(UUID referrerUUID, long amount, UUID sourcePlayerUUID,
+                                   BalanceCredits credits, TransactionLogBatch logs) {
+        // Credit the referrer's balance and total referral reward; applyCredits drops the log row
+        // again if referred_by is dangling, since it would violate the player FK
+        credits.add(referrerUUID, amount, amount);
+        logs.add(referrerUUID, "IN", "REFERRAL_REWARD", amount, null, null, "SUCCESS", sourcePlayerUUID);
     }
 
 
     /**
      * Adds passive income to multiple players and logs the transactions in a single database transaction.
-     * This is highly optimized for performance.
+     * Commissions follow the configured {@link CommissionStrategy}, so every player is paid over the same chain as
+     * {@link #addMineBalanceWithCommission(UUID, long)}. With ITERATIVE every affected chain is resolved up front
+     * and walked in memory; the other strategies resolve each player's chain their own way. The resulting balance
+     * deltas and log rows are written with JDBC batches.
      * @param incomeMap A map of Player UUIDs to the income amount they should receive.
      */
     public void batchAddPassiveIncome(Map<UUID, Integer> incomeMap) {
         if (incomeMap == null || incomeMap.isEmpty()) {
             return;
         }
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                // Per-player balance deltas, applied in the same lock order as every other commission path
+                BalanceCredits credits = new BalanceCredits();
+                TransactionLogBatch logs = newTransactionLogBatch();
+                if (commissionStrategy == CommissionStrategy.ITERATIVE) {
+                    collectPassiveIncome(incomeMap, conn, credits, logs);
+                } else {
+                    // RECURSIVE_CTE caps the depth and CLOSURE stops at depth gaps, so pay over the chain they resolve
+                    try (TransactionStatements statements = new TransactionStatements(conn)) {
+                        for (Map.Entry<UUID, Integer> entry : incomeMap.entrySet()) {
+                            int income = entry.getValue();
+                            if (income <= 0) {
+                                continue;
+                            }
+                            credits.add(entry.getKey(), income, 0);
+                            logs.add(entry.getKey(), "IN", "MINING", income, null, null, "SUCCESS", entry.getKey());
+                            distributeCommissions(entry.getKey(), income, statements, entry.getKey(), credits, logs);
+                        }
+                    }
+                }
+
+                applyCredits(conn, credits, logs);
+                logs.flush(conn);
+
+                conn.commit();
+                logs.committed();
+                invalidateProfiles(credits.playerUUIDs(), PlayerProfileCache.Field.MINE_BALANCE, PlayerProfileCache.Field.TOTAL_REF_REWARD);
+                plugin.getLogger().info("Processed passive income for " + incomeMap.size() + " players, including referral commissions.");
+            } catch (SQLException e) {
+                metrics.error(DatabaseMetrics.Op.BATCH_ADD_PASSIVE_INCOME);
+                plugin.getLogger().severe("Error during batch passive income transaction, rolling back. Error: " + e.getMessage());
+                conn.rollback();
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.BATCH_ADD_PASSIVE_INCOME);
+            plugin.getLogger().severe("Failed to get connection or manage transaction for passive income: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.BATCH_ADD_PASSIVE_INCOME, started);
+        }
+    }
 
-        // Instead of batching, we now call the commission-aware method for each player.
-        // This ensures referral commissions are paid on passive income.
+    /**
+     * ITERATIVE batch path: resolves every affected referral chain up front and walks it in memory exactly like
+     * {@link #addMineBalanceWithCommission(UUID, long)} would, collecting the credits and log rows.
+     */
+    private void collectPassiveIncome(Map<UUID, Integer> incomeMap, Connection conn, BalanceCredits credits,
+                                      TransactionLogBatch logs) throws SQLException {
+        java.util.Map<UUID, ReferralGraphCache.Node> graph = resolveReferralNodes(incomeMap.keySet(), conn);
         for (Map.Entry<UUID, Integer> entry : incomeMap.entrySet()) {
             UUID playerUUID = entry.getKey();
             int income = entry.getValue();
-            if (income > 0) {
-                // This will handle the balance update and the entire recursive commission chain.
-                addMineBalanceWithCommission(playerUUID, income);
+            if (income <= 0 || !graph.containsKey(playerUUID)) {
+                continue;
+            }
+
+            credits.add(playerUUID, income, 0);
+            logs.add(playerUUID, "IN", "MINING", income, null, null, "SUCCESS", playerUUID);
+
+            // Same walk as addMineBalanceWithCommission, served from the preloaded graph
+            UUID currentPlayerUUID = playerUUID;
+            long currentCommissionBase = income;
+            while (true) {
+                ReferralGraphCache.Node current = graph.get(currentPlayerUUID);
+                UUID referrerUUID = current != null ? current.referredBy : null;
+                if (referrerUUID == null) {
+                    break;
+                }
+
+                ReferralGraphCache.Node referrer = graph.get(referrerUUID);
+                double commissionRate = referrer != null ? referrer.commissionRate : ReferralGraphCache.DEFAULT_COMMISSION_RATE;
+                long commissionAmount = (long) (currentCommissionBase * commissionRate);
+                if (commissionAmount <= 0) {
+                    break;
+                }
+
+                // A referrer without a players row can't be credited or logged
+                if (referrer != null) {
+                    credits.add(referrerUUID, commissionAmount, commissionAmount);
+                    logs.add(referrerUUID, "IN", "REFERRAL_REWARD", commissionAmount, null, null, "SUCCESS", playerUUID);
+                }
+
+                currentPlayerUUID = referrerUUID;
+                currentCommissionBase = commissionAmount;
+            }
+        }
+    }
+
+    /**
+     * Resolves referred_by and commission_rate for the given players and all of their ancestors.
+     * Cached players are read from the referral graph cache; the rest are loaded one level of the
+     * referral tree per query. Players without a row are absent from the result.
+     */
+    private java.util.Map<UUID, ReferralGraphCache.Node> resolveReferralNodes(java.util.Collection<UUID> playerUUIDs, Connection conn) throws SQLException {
+        String sql = "SELECT uuid, referred_by, commission_rate FROM players WHERE uuid = ANY(?);";
+        java.util.Map<UUID, ReferralGraphCache.Node> graph = new java.util.HashMap<>();
+        java.util.Set<UUID> queried = new java.util.HashSet<>(playerUUIDs);
+        java.util.List<UUID> frontier = new java.util.ArrayList<>(queried);
+
+        try (java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            while (!frontier.isEmpty()) {
+                java.util.List<UUID> next = new java.util.ArrayList<>();
+                java.util.Set<UUID> missing = new java.util.HashSet<>();
+
+                for (UUID uuid : frontier) {
+                    ReferralGraphCache.Node node = referralCacheEnabled ? referralGraph.get(uuid) : null;
+                    if (node == null) {
+                        missing.add(uuid);
+                    } else if (node.exists) {
+                        graph.put(uuid, node);
+                        if (node.referredBy != null && queried.add(node.referredBy)) {
+                            next.add(node.referredBy);
+                        }
+                    }
+                }
+
+                if (!missing.isEmpty()) {
+                    pstmt.setArray(1, uuidBinding.createArray(conn, missing));
+                    try (java.sql.ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            UUID uuid = uuidBinding.read(rs, "uuid");
+                            UUID referredBy = uuidBinding.read(rs, "referred_by");
+                            double commissionRate = rs.getDouble("commission_rate");
+
+                            graph.put(uuid, new ReferralGraphCache.Node(referredBy, commissionRate, true));
+                            missing.remove(uuid);
+                            if (referralCacheEnabled) {
+                                referralGraph.put(uuid, referredBy, commissionRate);
+                            }
+                            if (referredBy != null && queried.add(referredBy)) {
+                                next.add(referredBy);
+                            }
+                        }
+                    }
+                    if (referralCacheEnabled) {
+                        missing.forEach(referralGraph::markAbsent);
+                    }
+                }
+
+                frontier = next;
             }
         }
-        plugin.getLogger().info("Processed passive income for " + incomeMap.size() + " players, including referral commissions.");
+        return graph;
     }
 
     /**
      * Lấy tổng số người đã được một player giới thiệu.
      */
     public int getTotalReferred(UUID playerUUID) {
-        String sql = "SELECT total_referred FROM players WHERE uuid = ?;";
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt("total_referred");
-                }
+        long started = metrics.start();
+        try {
+            PlayerProfile profile = getProfile(playerUUID, PlayerProfileCache.Field.TOTAL_REFERRED);
+            if (profile != null) {
+                return profile.totalReferred;
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_TOTAL_REFERRED);
             plugin.getLogger().severe("Could not get total referred for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_TOTAL_REFERRED, started);
         }
         return 0;
     }
@@ -911,17 +1948,19 @@ public class DatabaseManager {
      * Lấy tổng số người đã được một player giới thiệu (tất cả các cấp).
      */
     public int getAllReferred(UUID playerUUID) {
-        String sql = "SELECT all_referred FROM players WHERE uuid = ?;";
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt("all_referred");
-                }
-            }
+        long started = metrics.start();
+        try {
+            DeltaAccumulator.PersistedValue persisted = () -> {
+                PlayerProfile profile = getProfile(playerUUID, PlayerProfileCache.Field.ALL_REFERRED);
+                return profile != null ? profile.allReferred : 0;
+            };
+            // With write-behind, include counts that have not been flushed yet
+            return (int) (allReferredWriteBehind != null ? allReferredWriteBehind.readWithPending(playerUUID, persisted) : persisted.read());
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_ALL_REFERRED);
             plugin.getLogger().severe("Could not get all referred for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_ALL_REFERRED, started);
         }
         return 0;
     }
@@ -930,17 +1969,20 @@ public class DatabaseManager {
      * Lấy tổng số MINE thưởng mà một player đã nhận được từ referral.
      */
     public long getTotalRefReward(UUID playerUUID) {
-        String sql = "SELECT total_ref_reward FROM players WHERE uuid = ?;";
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getLong("total_ref_reward");
-                }
+        long started = metrics.start();
+        try {
+            if (hotAccounts.contains(playerUUID)) {
+                return readHotAccountTotals(playerUUID)[1];
+            }
+            PlayerProfile profile = getProfile(playerUUID, PlayerProfileCache.Field.TOTAL_REF_REWARD);
+            if (profile != null) {
+                return profile.totalRefReward;
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_TOTAL_REF_REWARD);
             plugin.getLogger().severe("Could not get total ref reward for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_TOTAL_REF_REWARD, started);
         }
         return 0;
     }
@@ -954,16 +1996,33 @@ public class DatabaseManager {
      * @param refCode Mã ref đã sử dụng
      */
     public void logReferral(UUID referrerUUID, UUID referredUUID, String refCode) {
+        if (ingest(() -> logIngestor.addReferral(referrerUUID, referredUUID, refCode))) {
+            return;
+        }
         String sql = "INSERT INTO ref_logs (referrer_uuid, referred_uuid, ref_code) VALUES (?, ?, ?);";
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, referrerUUID.toString());
-            pstmt.setString(2, referredUUID.toString());
-            pstmt.setString(3, refCode);
-            pstmt.executeUpdate();
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            // The ref_logs row and its referral_stats row commit together
+            conn.setAutoCommit(false);
+            try (java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                uuidBinding.bind(pstmt, 1, referrerUUID);
+                uuidBinding.bind(pstmt, 2, referredUUID);
+                pstmt.setString(3, refCode);
+                pstmt.executeUpdate();
+                ReferralStatsRollup.seedPair(conn, uuidBinding, referrerUUID, referredUUID);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
             plugin.getLogger().info("Logged referral: " + referrerUUID + " referred " + referredUUID + " with code " + refCode);
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.LOG_REFERRAL);
             plugin.getLogger().severe("Could not log referral: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.LOG_REFERRAL, started);
         }
     }
 
@@ -975,22 +2034,24 @@ public class DatabaseManager {
     public java.util.List<RefLogEntry> getRefLogsByReferrer(UUID referrerUUID) {
         String sql = "SELECT referred_uuid, ref_code, created_at FROM ref_logs WHERE referrer_uuid = ? ORDER BY created_at DESC;";
         java.util.List<RefLogEntry> logs = new java.util.ArrayList<>();
-
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, referrerUUID.toString());
+            uuidBinding.bind(pstmt, 1, referrerUUID);
             try (java.sql.ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    UUID referredUUID = UUID.fromString(rs.getString("referred_uuid"));
+                    UUID referredUUID = uuidBinding.read(rs, "referred_uuid");
                     String refCode = rs.getString("ref_code");
                     java.sql.Timestamp createdAt = rs.getTimestamp("created_at");
                     logs.add(new RefLogEntry(referrerUUID, referredUUID, refCode, createdAt));
                 }
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_REF_LOGS_BY_REFERRER);
             plugin.getLogger().severe("Could not get ref logs for referrer " + referrerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_REF_LOGS_BY_REFERRER, started);
         }
-
         return logs;
     }
 
@@ -1002,31 +2063,36 @@ public class DatabaseManager {
                      "WHERE referrer_uuid = ? AND created_at BETWEEN ? AND ? " +
                      "ORDER BY created_at DESC;";
         java.util.List<RefLogEntry> logs = new java.util.ArrayList<>();
-
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, referrerUUID.toString());
+            uuidBinding.bind(pstmt, 1, referrerUUID);
             pstmt.setTimestamp(2, startDate);
             pstmt.setTimestamp(3, endDate);
             try (java.sql.ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    UUID referredUUID = UUID.fromString(rs.getString("referred_uuid"));
+                    UUID referredUUID = uuidBinding.read(rs, "referred_uuid");
                     String refCode = rs.getString("ref_code");
                     java.sql.Timestamp createdAt = rs.getTimestamp("created_at");
                     logs.add(new RefLogEntry(referrerUUID, referredUUID, refCode, createdAt));
                 }
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_REF_LOGS_BY_DATE_RANGE);
             plugin.getLogger().severe("Could not get ref logs by date range: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_REF_LOGS_BY_DATE_RANGE, started);
         }
-
         return logs;
     }
 
     // ==================== TRANSACTION LOGS METHODS ====================
 
     /**
-     * Ghi log giao dịch claim
+     * Ghi log giao dịch claim.
+     * Uses its own connection; code already inside a transaction should queue rows on a
+     * {@link TransactionLogBatch} and flush it on that connection instead.
+     * With the log ingestor enabled the row is buffered and written asynchronously with COPY.
      * @param playerUUID UUID người chơi
      * @param method Phương thức: MINING, PASSIVE_INCOME, REFERRAL_REWARD
      * @param amount Số lượng MINE
@@ -1036,42 +2102,26 @@ public class DatabaseManager {
      */
     public void logTransaction(UUID playerUUID, String transactionType, String method, long amount, java.math.BigDecimal solAmount,
                                String transactionHash, String status, UUID sourcePlayerUUID) {
-        String sql = "INSERT INTO transaction_logs (player_uuid, transaction_type, method, amount, sol_amount, transaction_hash, status, source_player_uuid) " +
-                     "VALUES (?, ?, ?, ?, ?, ?, ?, ?);";
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            pstmt.setString(2, transactionType);
-            pstmt.setString(3, method);
-            pstmt.setLong(4, amount);
-
-            if (solAmount != null) {
-                pstmt.setBigDecimal(5, solAmount);
-            } else {
-                pstmt.setNull(5, java.sql.Types.DECIMAL);
-            }
-
-            if (transactionHash != null) {
-                pstmt.setString(6, transactionHash);
-            } else {
-                pstmt.setNull(6, java.sql.Types.VARCHAR);
-            }
-
-            pstmt.setString(7, status);
-
-            if (sourcePlayerUUID != null) {
-                pstmt.setString(8, sourcePlayerUUID.toString());
-            } else {
-                pstmt.setNull(8, java.sql.Types.VARCHAR);
-            }
-
-            pstmt.executeUpdate();
+        // Rows for the ledger keep going through it; everything else can take the COPY path
+        if ((ledger == null || !LedgerAggregator.accepts(transactionType, method, solAmount, transactionHash, status))
+                && ingest(() -> logIngestor.addTransaction(playerUUID, transactionType, method, amount, solAmount, transactionHash, status, sourcePlayerUUID))) {
+            return;
+        }
+        TransactionLogBatch logs = newTransactionLogBatch();
+        logs.add(playerUUID, transactionType, method, amount, solAmount, transactionHash, status, sourcePlayerUUID);
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            logs.flush(conn);
+            logs.committed();
 
             if (plugin.getConfig().getBoolean("debug")) {
                 plugin.getLogger().info("Logged transaction: " + playerUUID + " type " + transactionType + " for " + amount + " MINE via " + method);
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.LOG_TRANSACTION);
             plugin.getLogger().log(java.util.logging.Level.SEVERE, "Could not log transaction", e);
+        } finally {
+            metrics.record(DatabaseMetrics.Op.LOG_TRANSACTION, started);
         }
     }
 
@@ -1079,82 +2129,172 @@ public class DatabaseManager {
      * Lấy lịch sử giao dịch của một player
      */
     public java.util.List<TransactionLogEntry> getTransactionLogs(UUID playerUUID, int limit) {
-        String sql = "SELECT id, transaction_type, method, amount, sol_amount, transaction_hash, status, created_at " +
-                     "FROM transaction_logs WHERE player_uuid = ? ORDER BY created_at DESC LIMIT ?;";
+        String sql = "SELECT id, transaction_type, method, amount, sol_amount, transaction_hash, status, created_at, entry_count " +
+                     "FROM transaction_logs WHERE player_uuid = ? ORDER BY created_at DESC, id DESC LIMIT ?;";
         java.util.List<TransactionLogEntry> logs = new java.util.ArrayList<>();
-
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
+            uuidBinding.bind(pstmt, 1, playerUUID);
             pstmt.setInt(2, limit);
             try (java.sql.ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    TransactionLogEntry entry = new TransactionLogEntry(
-                        rs.getInt("id"),
-                        playerUUID,
-                        rs.getString("transaction_type"),
-                        rs.getString("method"),
-                        rs.getLong("amount"),
-                        rs.getDouble("sol_amount"),
-                        rs.getString("transaction_hash"),
-                        rs.getString("status"),
-                        rs.getTimestamp("created_at")
-                    );
-                    logs.add(entry);
+                    logs.add(readTransactionLog(rs, playerUUID));
                 }
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_TRANSACTION_LOGS);
             plugin.getLogger().severe("Could not get transaction logs for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_TRANSACTION_LOGS, started);
         }
-
         return logs;
     }
 
+    /**
+     * One page of a player's transaction history, newest first. Pages are keyed on (created_at, id) and
+     * read straight from the (player_uuid, created_at, id) index, so deep pages cost the same as the first.
+     * @param cursor {@link TransactionLogPage#nextCursor} of the previous page, or null for the first page
+     * @return the page; empty with a null cursor if the query failed
+     */
+    public TransactionLogPage getTransactionLogsAfter(UUID playerUUID, TransactionLogCursor cursor, int pageSize) {
+        String sql = "SELECT id, transaction_type, method, amount, sol_amount, transaction_hash, status, created_at, entry_count " +
+                     "FROM transaction_logs WHERE player_uuid = ? " +
+                     (cursor != null ? "AND (created_at, id) < (?, ?) " : "") +
+                     "ORDER BY created_at DESC, id DESC LIMIT ?;";
+        java.util.List<TransactionLogEntry> logs = new java.util.ArrayList<>();
+        boolean hasMore = false;
+        long started = metrics.start();
+        try (Connection conn = getConnection();
+             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            int parameter = 1;
+            uuidBinding.bind(pstmt, parameter++, playerUUID);
+            if (cursor != null) {
+                pstmt.setTimestamp(parameter++, cursor.createdAt);
+                pstmt.setInt(parameter++, cursor.id);
+            }
+            // One extra row tells whether another page exists
+            pstmt.setInt(parameter, pageSize + 1);
+            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    if (logs.size() == pageSize) {
+                        hasMore = true;
+                        break;
+                    }
+                    logs.add(readTransactionLog(rs, playerUUID));
+                }
+            }
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_TRANSACTION_LOGS_AFTER);
+            plugin.getLogger().severe("Could not get transaction logs page for player " + playerUUID + ": " + e.getMessage());
+            return new TransactionLogPage(java.util.Collections.emptyList(), null);
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_TRANSACTION_LOGS_AFTER, started);
+        }
+        TransactionLogCursor next = hasMore ? TransactionLogCursor.of(logs.get(logs.size() - 1)) : null;
+        return new TransactionLogPage(logs, next);
+    }
+
+    /**
+     * Streams transaction history, newest first, to {@code consumer} without holding it in memory.
+     * Rows are fetched in chunks of database.stream-fetch-size through a server-side cursor, so admin
+     * exports of millions of rows run in constant memory. The connection stays checked out until the
+     * stream ends, so keep the consumer fast and call this off the main thread.
+     * @param playerUUID the player to export, or null for every player
+     * @return the number of rows delivered; fewer than the total if the query failed part-way
+     */
+    public long streamTransactionLogs(UUID playerUUID, java.util.function.Consumer<TransactionLogEntry> consumer) {
+        long started = metrics.start();
+        long delivered = 0;
+        try {
+            String sql = "SELECT id, player_uuid, transaction_type, method, amount, sol_amount, transaction_hash, status, created_at, entry_count " +
+                         "FROM transaction_logs " + (playerUUID != null ? "WHERE player_uuid = ? " : "") +
+                         "ORDER BY created_at DESC, id DESC;";
+
+            try (Connection conn = getConnection()) {
+                // The driver only uses a cursor (and honours the fetch size) inside a transaction
+                conn.setAutoCommit(false);
+                try (java.sql.PreparedStatement pstmt = conn.prepareStatement(sql, java.sql.ResultSet.TYPE_FORWARD_ONLY, java.sql.ResultSet.CONCUR_READ_ONLY)) {
+                    pstmt.setFetchSize(plugin.getConfig().getInt("database.stream-fetch-size", 1000));
+                    if (playerUUID != null) {
+                        uuidBinding.bind(pstmt, 1, playerUUID);
+                    }
+                    try (java.sql.ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            consumer.accept(readTransactionLog(rs, playerUUID != null ? playerUUID : uuidBinding.read(rs, "player_uuid")));
+                            delivered++;
+                        }
+                    }
+                } finally {
+                    conn.rollback(); // read-only
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                metrics.error(DatabaseMetrics.Op.STREAM_TRANSACTION_LOGS);
+                plugin.getLogger().severe("Could not stream transaction logs" + (playerUUID != null ? " for player " + playerUUID : "")
+                        + " after " + delivered + " rows: " + e.getMessage());
+            }
+            return delivered;
+        } finally {
+            metrics.record(DatabaseMetrics.Op.STREAM_TRANSACTION_LOGS, started);
+        }
+    }
+
+    private TransactionLogEntry readTransactionLog(java.sql.ResultSet rs, UUID playerUUID) throws SQLException {
+        return new TransactionLogEntry(
+            rs.getInt("id"),
+            playerUUID,
+            rs.getString("transaction_type"),
+            rs.getString("method"),
+            rs.getLong("amount"),
+            rs.getDouble("sol_amount"),
+            rs.getString("transaction_hash"),
+            rs.getString("status"),
+            rs.getTimestamp("created_at"),
+            rs.getInt("entry_count")
+        );
+    }
+
     /**
      * Lấy tổng số SOL đã claim của tất cả người được giới thiệu (cho dashboard)
+     * Reads the referral_stats rollup, one index range over the referrer's referrals.
      */
     public double getTotalSolClaimedByReferrals(UUID referrerUUID) {
-        String sql = "SELECT COALESCE(SUM(tl.sol_amount), 0) as total " +
-                     "FROM transaction_logs tl " +
-                     "INNER JOIN ref_logs rl ON tl.player_uuid = rl.referred_uuid " +
-                     "WHERE rl.referrer_uuid = ? AND tl.status = 'SUCCESS' AND tl.sol_amount IS NOT NULL;";
-
+        String sql = "SELECT COALESCE(SUM(total_sol_claimed), 0) as total FROM referral_stats WHERE referrer_uuid = ?;";
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, referrerUUID.toString());
+            uuidBinding.bind(pstmt, 1, referrerUUID);
             try (java.sql.ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next()) {
                     return rs.getDouble("total");
                 }
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_TOTAL_SOL_CLAIMED_BY_REFERRALS);
             plugin.getLogger().severe("Could not get total SOL claimed by referrals: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_TOTAL_SOL_CLAIMED_BY_REFERRALS, started);
         }
-
         return 0.0;
     }
 
     /**
      * Lấy chi tiết claim của từng người được giới thiệu (cho dashboard)
+     * Reads the referral_stats rollup instead of aggregating transaction_logs on every call.
      */
     public java.util.Map<UUID, ReferralStats> getReferralStats(UUID referrerUUID) {
-        String sql = "SELECT rl.referred_uuid, " +
-                     "COALESCE(SUM(CASE WHEN tl.status = 'SUCCESS' AND tl.sol_amount IS NOT NULL THEN tl.sol_amount ELSE 0 END), 0) as total_sol_claimed, " +
-                     "COALESCE(SUM(CASE WHEN tl.status = 'SUCCESS' THEN tl.amount ELSE 0 END), 0) as total_mine_claimed, " +
-                     "COUNT(tl.id) as total_transactions " +
-                     "FROM ref_logs rl " +
-                     "LEFT JOIN transaction_logs tl ON rl.referred_uuid = tl.player_uuid " +
-                     "WHERE rl.referrer_uuid = ? " +
-                     "GROUP BY rl.referred_uuid;";
+        String sql = "SELECT referred_uuid, total_sol_claimed, total_mine_claimed, total_transactions " +
+                     "FROM referral_stats WHERE referrer_uuid = ?;";
 
         java.util.Map<UUID, ReferralStats> stats = new java.util.HashMap<>();
-
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, referrerUUID.toString());
+            uuidBinding.bind(pstmt, 1, referrerUUID);
             try (java.sql.ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    UUID referredUUID = UUID.fromString(rs.getString("referred_uuid"));
+                    UUID referredUUID = uuidBinding.read(rs, "referred_uuid");
                     double totalSolClaimed = rs.getDouble("total_sol_claimed");
                     long totalMineClaimed = rs.getLong("total_mine_claimed");
                     int totalTransactions = rs.getInt("total_transactions");
@@ -1163,94 +2303,225 @@ public class DatabaseManager {
                 }
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_REFERRAL_STATS);
             plugin.getLogger().severe("Could not get referral stats: " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_REFERRAL_STATS, started);
         }
-
         return stats;
     }
 
+    /**
+     * @return the player's referrers from the direct one (F1) upwards, from the closure table
+     */
+    public java.util.List<UUID> getReferralAncestors(UUID playerUUID) {
+        java.util.List<UUID> ancestors = new java.util.ArrayList<>();
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            for (ReferralAncestry.Ancestor ancestor : ReferralAncestry.ancestors(conn, uuidBinding, playerUUID)) {
+                ancestors.add(ancestor.uuid);
+            }
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_REFERRAL_ANCESTORS);
+            plugin.getLogger().severe("Could not get referral ancestors for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_REFERRAL_ANCESTORS, started);
+        }
+        return ancestors;
+    }
+
+    /**
+     * @param maxDepth deepest level counted, 1 = direct referrals only
+     * @return the number of players in the player's downline down to {@code maxDepth}
+     */
+    public int getDownlineCount(UUID playerUUID, int maxDepth) {
+        String sql = "SELECT COUNT(*) FROM referral_ancestry WHERE ancestor_uuid = ? AND depth <= ?;";
+        long started = metrics.start();
+        try (Connection conn = getConnection();
+             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            uuidBinding.bind(pstmt, 1, playerUUID);
+            pstmt.setInt(2, maxDepth);
+            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_DOWNLINE_COUNT);
+            plugin.getLogger().severe("Could not get downline count for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_DOWNLINE_COUNT, started);
+        }
+        return 0;
+    }
+
+    /**
+     * @param maxDepth deepest level counted, 1 = commissions from direct referrals only
+     * @return MINE the player earned as REFERRAL_REWARD from players down to {@code maxDepth} levels below it
+     */
+    public long getDownlineReferralEarnings(UUID playerUUID, int maxDepth) {
+        String sql = "SELECT COALESCE(SUM(tl.amount), 0) FROM transaction_logs tl " +
+                     "JOIN referral_ancestry a ON a.ancestor_uuid = tl.player_uuid AND a.descendant_uuid = tl.source_player_uuid " +
+                     "WHERE tl.player_uuid = ? AND tl.method = 'REFERRAL_REWARD' AND tl.status = 'SUCCESS' AND a.depth <= ?;";
+        long started = metrics.start();
+        try (Connection conn = getConnection();
+             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            uuidBinding.bind(pstmt, 1, playerUUID);
+            pstmt.setInt(2, maxDepth);
+            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_DOWNLINE_REFERRAL_EARNINGS);
+            plugin.getLogger().severe("Could not get downline referral earnings for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_DOWNLINE_REFERRAL_EARNINGS, started);
+        }
+        return 0;
+    }
+
+    /**
+     * Recomputes referral_ancestry from players.referred_by, for after players were deleted or
+     * referred_by was edited outside the plugin.
+     * @return the number of closure rows, or -1 on error
+     */
+    public int rebuildReferralAncestry() {
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            int rows = ReferralAncestry.rebuild(conn);
+            plugin.getLogger().info("Rebuilt referral_ancestry: " + rows + " rows.");
+            return rows;
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.REBUILD_REFERRAL_ANCESTRY);
+            plugin.getLogger().severe("Could not rebuild referral_ancestry: " + e.getMessage());
+            return -1;
+        } finally {
+            metrics.record(DatabaseMetrics.Op.REBUILD_REFERRAL_ANCESTRY, started);
+        }
+    }
+
+    /**
+     * Compares the referral_stats rollup with ref_logs and transaction_logs.
+     * Scans the log history of every referred player, so it is meant for the scheduled check or an admin command.
+     * @param repair recompute drifted rows and add missing ones
+     * @return the number of referral pairs that were missing or out of sync, or -1 on error
+     */
+    public int checkReferralStats(boolean repair) {
+        long started = metrics.start();
+        try (Connection conn = getConnection()) {
+            int outOfSync = ReferralStatsRollup.check(conn, uuidBinding, repair);
+            if (outOfSync > 0) {
+                plugin.getLogger().warning("referral_stats: " + outOfSync + " referral pairs were out of sync with the logs" + (repair ? ", repaired." : "."));
+            }
+            return outOfSync;
+        } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.CHECK_REFERRAL_STATS);
+            plugin.getLogger().severe("Could not check referral stats: " + e.getMessage());
+            return -1;
+        } finally {
+            metrics.record(DatabaseMetrics.Op.CHECK_REFERRAL_STATS, started);
+        }
+    }
+
 
     public void updateSolBalance(UUID playerUUID, double balance) {
         String sql = "UPDATE players SET sol_balance = ? WHERE uuid = ?;";
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setDouble(1, balance);
-            pstmt.setString(2, playerUUID.toString());
+            uuidBinding.bind(pstmt, 2, playerUUID);
             pstmt.executeUpdate();
+            invalidateProfile(playerUUID, PlayerProfileCache.Field.SOL_BALANCE);
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.UPDATE_SOL_BALANCE);
             plugin.getLogger().severe("Could not update SOL balance for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.UPDATE_SOL_BALANCE, started);
         }
     }
 
     public void updateLastLogin(UUID playerUUID) {
         String sql = "UPDATE players SET last_login = NOW() WHERE uuid = ?;";
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
+            uuidBinding.bind(pstmt, 1, playerUUID);
             pstmt.executeUpdate();
+            invalidateProfile(playerUUID, PlayerProfileCache.Field.LAST_LOGIN);
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.UPDATE_LAST_LOGIN);
             plugin.getLogger().severe("Could not update last login for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.UPDATE_LAST_LOGIN, started);
         }
     }
 
     public double getSolBalance(UUID playerUUID) {
-        String sql = "SELECT sol_balance FROM players WHERE uuid = ?;";
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getDouble("sol_balance");
-                }
-
+        long started = metrics.start();
+        try {
+            PlayerProfile profile = getProfile(playerUUID, PlayerProfileCache.Field.SOL_BALANCE);
+            if (profile != null) {
+                return profile.solBalance;
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_SOL_BALANCE);
             plugin.getLogger().severe("Could not get SOL balance for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_SOL_BALANCE, started);
         }
         return 0.0;
     }
 
     public double getSolFeeShare(UUID playerUUID) {
-        String sql = "SELECT sol_fee_share FROM players WHERE uuid = ?;";
-        try (Connection conn = getConnection();
-             java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, playerUUID.toString());
-            try (java.sql.ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getDouble("sol_fee_share");
-                }
+        long started = metrics.start();
+        try {
+            PlayerProfile profile = getProfile(playerUUID, PlayerProfileCache.Field.SOL_FEE_SHARE);
+            if (profile != null) {
+                return profile.solFeeShare;
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_SOL_FEE_SHARE);
             plugin.getLogger().severe("Could not get sol_fee_share for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_SOL_FEE_SHARE, started);
         }
         return 0.0;
     }
 
     public void setPlayerRole(UUID playerUUID, String role, double commissionRate) {
         String sql = "UPDATE players SET role = ?, commission_rate = ? WHERE uuid = ?;";
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, role.toUpperCase());
             pstmt.setDouble(2, commissionRate);
-            pstmt.setString(3, playerUUID.toString());
+            uuidBinding.bind(pstmt, 3, playerUUID);
             pstmt.executeUpdate();
+            referralGraph.setCommissionRate(playerUUID, commissionRate);
+            invalidateProfile(playerUUID, PlayerProfileCache.Field.ROLE, PlayerProfileCache.Field.COMMISSION_RATE);
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.SET_PLAYER_ROLE);
             plugin.getLogger().severe("Could not set role for player " + playerUUID + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.SET_PLAYER_ROLE, started);
         }
     }
 
     public UUID getPlayerUUIDBySolanaAddress(String solanaAddress) {
         String sql = "SELECT uuid FROM players WHERE solana_address = ?;";
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, solanaAddress);
             try (java.sql.ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next()) {
-                    return UUID.fromString(rs.getString("uuid"));
+                    return uuidBinding.read(rs, "uuid");
                 }
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_PLAYER_UUID_BY_SOLANA_ADDRESS);
             plugin.getLogger().severe("Could not get player UUID by Solana address " + solanaAddress + ": " + e.getMessage());
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_PLAYER_UUID_BY_SOLANA_ADDRESS, started);
         }
         return null;
     }
@@ -1269,30 +2540,161 @@ public class DatabaseManager {
         }
 
         // Using PostgreSQL's ANY clause is more efficient than a long list of ORs or INs with many parameters.
-        String sql = "SELECT uuid, solana_address FROM players WHERE uuid::text = ANY(?) AND solana_address IS NOT NULL AND solana_address <> '';";
-
+        String sql = "SELECT uuid, solana_address FROM players WHERE uuid = ANY(?) AND solana_address IS NOT NULL AND solana_address <> '';";
+        long started = metrics.start();
         try (Connection conn = getConnection();
              java.sql.PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
-            String[] uuidStrings = playerUUIDs.stream().map(UUID::toString).toArray(String[]::new);
-            java.sql.Array uuidArray = conn.createArrayOf("varchar", uuidStrings);
-            pstmt.setArray(1, uuidArray);
+            pstmt.setArray(1, uuidBinding.createArray(conn, playerUUIDs));
 
             try (java.sql.ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    UUID playerUUID = UUID.fromString(rs.getString("uuid"));
+                    UUID playerUUID = uuidBinding.read(rs, "uuid");
                     String solanaAddress = rs.getString("solana_address");
                     addressMap.put(playerUUID, solanaAddress);
                 }
             }
         } catch (SQLException e) {
+            metrics.error(DatabaseMetrics.Op.GET_ONLINE_PLAYER_SOLANA_ADDRESSES);
             plugin.getLogger().log(java.util.logging.Level.SEVERE, "Could not get batch Solana addresses", e);
+        } finally {
+            metrics.record(DatabaseMetrics.Op.GET_ONLINE_PLAYER_SOLANA_ADDRESSES, started);
         }
         return addressMap;
     }
 
     // ==================== DATA CLASSES ====================
 
+    /**
+     * Outcome of a keyed reward call. On FAILED nothing was applied and the key was not used, so the
+     * call can be retried with the same key; DUPLICATE means an earlier call with the key already applied it.
+     */
+    public enum RewardResult {
+        APPLIED,
+        DUPLICATE,
+        FAILED
+    }
+
+    /**
+     * How referral commission chains are resolved.
+     * ITERATIVE walks the chain one level at a time (served by the referral graph cache when it is enabled);
+     * RECURSIVE_CTE fetches the whole chain with one recursive query, for setups where several servers share
+     * the database and the in-process cache can't be trusted.
+     * CLOSURE reads the whole ancestor chain with one indexed lookup in referral_ancestry and stops at a depth gap
+     * left by a deleted player; choose it for deep chains when the cache is off, as long as referred_by is only
+     * changed through the plugin or rebuildReferralAncestry() runs after outside edits.
+     */
+    public enum CommissionStrategy {
+        ITERATIVE,
+        RECURSIVE_CTE,
+        CLOSURE;
+
+        /**
+         * Parses a config value such as "iterative", "recursive-cte" or "closure".
+         * @return the strategy, or null if the value is not recognised
+         */
+        public static CommissionStrategy fromConfig(String value) {
+            if (value == null) {
+                return null;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase().replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Snapshot of one players row, loaded in a single query and shared by the single-column getters
+     */
+    public static class PlayerProfile {
+        public final UUID uuid;
+        public final String username;
+        public final String fystackWalletId;
+        public final String solanaAddress;
+        public final long mineBalance;
+        public final double solBalance;
+        public final java.sql.Timestamp lastLogin;
+        public final String refCode;
+        public final UUID referredBy;
+        public final long totalRefReward;
+        public final int totalReferred;
+        public final int allReferred;
+        public final String role;
+        public final double commissionRate;
+        public final double solFeeShare;
+        public final java.math.BigDecimal totalSolShare;
+        public final java.math.BigDecimal totalPayout;
+
+        public PlayerProfile(UUID uuid, String username, String fystackWalletId, String solanaAddress,
+                             long mineBalance, double solBalance, java.sql.Timestamp lastLogin, String refCode,
+                             UUID referredBy, long totalRefReward, int totalReferred, int allReferred,
+                             String role, double commissionRate, double solFeeShare,
+                             java.math.BigDecimal totalSolShare, java.math.BigDecimal totalPayout) {
+            this.uuid = uuid;
+            this.username = username;
+            this.fystackWalletId = fystackWalletId;
+            this.solanaAddress = solanaAddress;
+            this.mineBalance = mineBalance;
+            this.solBalance = solBalance;
+            this.lastLogin = lastLogin;
+            this.refCode = refCode;
+            this.referredBy = referredBy;
+            this.totalRefReward = totalRefReward;
+            this.totalReferred = totalReferred;
+            this.allReferred = allReferred;
+            this.role = role;
+            this.commissionRate = commissionRate;
+            this.solFeeShare = solFeeShare;
+            this.totalSolShare = totalSolShare;
+            this.totalPayout = totalPayout;
+        }
+    }
+
+    /**
+     * All five upgrade levels of a player's mine_to_earn row.
+     */
+    public static class UpgradeState {
+        public static final UpgradeState NONE = new UpgradeState(0, 0, 0, 0, 0);
+
+        public final int speed;
+        public final int inventory;
+        public final int resetCooldown;
+        public final int passiveIncome;
+        public final int miningArea;
+
+        public UpgradeState(int speed, int inventory, int resetCooldown, int passiveIncome, int miningArea) {
+            this.speed = speed;
+            this.inventory = inventory;
+            this.resetCooldown = resetCooldown;
+            this.passiveIncome = passiveIncome;
+            this.miningArea = miningArea;
+        }
+
+        static UpgradeState read(java.sql.ResultSet rs) throws SQLException {
+            return new UpgradeState(rs.getInt("upgrade_speed"), rs.getInt("upgrade_inventory"), rs.getInt("upgrade_reset_cooldown"),
+                    rs.getInt("upgrade_passive_income"), rs.getInt("upgrade_mining_area"));
+        }
+
+        int level(String columnName) {
+            switch (columnName) {
+                case "upgrade_speed":
+                    return speed;
+                case "upgrade_inventory":
+                    return inventory;
+                case "upgrade_reset_cooldown":
+                    return resetCooldown;
+                case "upgrade_passive_income":
+                    return passiveIncome;
+                case "upgrade_mining_area":
+                    return miningArea;
+                default:
+                    throw new IllegalArgumentException("Invalid upgrade column: " + columnName);
+            }
+        }
+    }
+
     /**
      * Class đại diện cho một entry trong ref_logs
      */
@@ -1323,10 +2725,18 @@ public class DatabaseManager {
         public final String transactionHash;
         public final String status;
         public final java.sql.Timestamp createdAt;
+        // Credits this row stands for: 1, or more for a ledger-mode aggregate whose amount is their sum
+        public final int entryCount;
 
         public TransactionLogEntry(int id, UUID playerUUID, String transactionType, String method,
                                   long amount, Double solAmount, String transactionHash,
                                   String status, java.sql.Timestamp createdAt) {
+            this(id, playerUUID, transactionType, method, amount, solAmount, transactionHash, status, createdAt, 1);
+        }
+
+        public TransactionLogEntry(int id, UUID playerUUID, String transactionType, String method,
+                                  long amount, Double solAmount, String transactionHash,
+                                  String status, java.sql.Timestamp createdAt, int entryCount) {
             this.id = id;
             this.playerUUID = playerUUID;
             this.transactionType = transactionType;
@@ -1336,6 +2746,34 @@ public class DatabaseManager {
             this.transactionHash = transactionHash;
             this.status = status;
             this.createdAt = createdAt;
+            this.entryCount = entryCount;
+        }
+    }
+
+    /**
+     * Position in a player's transaction history, newest first: the (created_at, id) of the last row read.
+     */
+    public static class TransactionLogCursor {
+        public final java.sql.Timestamp createdAt;
+        public final int id;
+
+        public TransactionLogCursor(java.sql.Timestamp createdAt, int id) {
+            this.createdAt = createdAt;
+            this.id = id;
+        }
+
+        public static TransactionLogCursor of(TransactionLogEntry entry) {
+            return new TransactionLogCursor(entry.createdAt, entry.id);
+        }
+    }
+
+    public static class TransactionLogPage {
+        public final java.util.List<TransactionLogEntry> entries;
+        public final TransactionLogCursor nextCursor; // null on the last page
+
+        public TransactionLogPage(java.util.List<TransactionLogEntry> entries, TransactionLogCursor nextCursor) {
+            this.entries = entries;
+            this.nextCursor = nextCursor;
         }
     }
 
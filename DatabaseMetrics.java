@@ -0,0 +1,308 @@
+package com.minepath.login.db;
+
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Call count, error count and latency histogram for every public {@link DatabaseManager} call,
+ * plus connection acquire time and a slow-call log.
+ *
+ * Recording is allocation-free: each operation owns a fixed set of {@link LongAdder} counters and a
+ * histogram of power-of-two microsecond buckets, indexed by the enum ordinal. Percentiles read from
+ * the histogram are upper bounds of their bucket, so they are accurate to a factor of two.
+ *
+ * Usage inside DatabaseManager, one try per method; calls that return early without touching the
+ * database (feature disabled, write-behind, ingest buffer) do so before start() and are not recorded:
+ * <pre>
+ * long started = metrics.start();
+ * try (Connection conn = getConnection()) {
+ *     ...
+ * } catch (SQLException e) {
+ *     metrics.error(Op.GET_MINE_BALANCE);
+ * } finally {
+ *     metrics.record(Op.GET_MINE_BALANCE, started);
+ * }
+ * </pre>
+ */
+public final class DatabaseMetrics {
+
+    public enum Op {
+        ACQUIRE_CONNECTION,
+        LOAD_PLAYER_PROFILE,
+        GET_FYSTACK_WALLET_ID,
+        ADD_MINE_BALANCE,
+        ADD_MINE_BALANCE_SIMPLE,
+        FLUSH_PENDING_MINE_BALANCES,
+        FLUSH_PENDING_MINE_BALANCE,
+        FLUSH_PENDING_ALL_REFERRED,
+        FLUSH_LEDGER,
+        FLUSH_LOG_INGESTOR,
+        MERGE_PENDING_CREDITS,
+        ADD_MINE_BALANCE_WITH_COMMISSION,
+        DISTRIBUTE_REFERRAL_COMMISSIONS,
+        DISTRIBUTE_SOL_FEE_SHARE,
+        GET_MINE_BALANCE,
+        GET_SOLANA_ADDRESS,
+        GET_UPGRADE_STATE,
+        LOAD_UPGRADE_STATES,
+        GET_UPGRADE_LEVEL,
+        SET_UPGRADE_LEVEL,
+        INCREMENT_UPGRADE_LEVEL,
+        RESET_PLAYER_UPGRADES,
+        GET_COMMISSION_RATE,
+        CREATE_REF_CODE,
+        IS_REF_CODE_EXISTS,
+        GET_PLAYER_BY_REF_CODE,
+        SET_REFERRED_BY,
+        GET_REFERRED_BY,
+        GET_REF_CODE,
+        INCREMENT_TOTAL_REFERRED,
+        INCREMENT_ALL_REFERRED,
+        REGISTER_PLAYER_WITH_REFERRAL,
+        ADD_REFERRAL_REWARD,
+        BATCH_ADD_PASSIVE_INCOME,
+        GET_TOTAL_REFERRED,
+        GET_ALL_REFERRED,
+        GET_TOTAL_REF_REWARD,
+        LOG_REFERRAL,
+        GET_REF_LOGS_BY_REFERRER,
+        GET_REF_LOGS_BY_DATE_RANGE,
+        LOG_TRANSACTION,
+        GET_TRANSACTION_LOGS,
+        GET_TRANSACTION_LOGS_AFTER,
+        STREAM_TRANSACTION_LOGS,
+        GET_TOTAL_SOL_CLAIMED_BY_REFERRALS,
+        GET_REFERRAL_STATS,
+        CHECK_REFERRAL_STATS,
+        GET_REFERRAL_ANCESTORS,
+        GET_DOWNLINE_COUNT,
+        GET_DOWNLINE_REFERRAL_EARNINGS,
+        REBUILD_REFERRAL_ANCESTRY,
+        MAINTAIN_TRANSACTION_LOG_PARTITIONS,
+        PURGE_REWARD_REQUESTS,
+        UPDATE_SOL_BALANCE,
+        UPDATE_LAST_LOGIN,
+        GET_SOL_BALANCE,
+        GET_SOL_FEE_SHARE,
+        SET_PLAYER_ROLE,
+        GET_PLAYER_UUID_BY_SOLANA_ADDRESS,
+        GET_ONLINE_PLAYER_SOLANA_ADDRESSES
+    }
+
+    // Bucket 0 holds calls under 1 us, bucket i holds [2^(i-1), 2^i) us; the last one is open-ended (~18 min+)
+    private static final int BUCKETS = 32;
+    // start() result when recording is disabled
+    private static final long NOT_RECORDING = Long.MIN_VALUE;
+
+    private final Logger logger;
+    private final LongAdder[] calls = new LongAdder[Op.values().length];
+    private final LongAdder[] errors = new LongAdder[Op.values().length];
+    private final LongAdder[] totalNanos = new LongAdder[Op.values().length];
+    private final AtomicLong[] maxNanos = new AtomicLong[Op.values().length];
+    private final LongAdder[][] histogram = new LongAdder[Op.values().length][BUCKETS];
+    private volatile boolean enabled = true;
+    private volatile long slowThresholdNanos;
+
+    DatabaseMetrics(Logger logger) {
+        this.logger = logger;
+        for (int op = 0; op < calls.length; op++) {
+            calls[op] = new LongAdder();
+            errors[op] = new LongAdder();
+            totalNanos[op] = new LongAdder();
+            maxNanos[op] = new AtomicLong();
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                histogram[op][bucket] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * @param enabled false turns every record call into a no-op
+     * @param slowThresholdMillis calls at or above this are logged as warnings; 0 disables the slow-call log
+     */
+    void configure(boolean enabled, long slowThresholdMillis) {
+        this.enabled = enabled;
+        this.slowThresholdNanos = Math.max(0, slowThresholdMillis) * 1_000_000L;
+    }
+
+    long start() {
+        return enabled ? System.nanoTime() : NOT_RECORDING;
+    }
+
+    void record(Op op, long startedNanos) {
+        if (startedNanos == NOT_RECORDING) {
+            return;
+        }
+        long elapsed = System.nanoTime() - startedNanos;
+        int index = op.ordinal();
+        calls[index].increment();
+        totalNanos[index].add(elapsed);
+        histogram[index][bucket(elapsed)].increment();
+        AtomicLong max = maxNanos[index];
+        long current = max.get();
+        while (elapsed > current && !max.compareAndSet(current, elapsed)) {
+            current = max.get();
+        }
+
+        long threshold = slowThresholdNanos;
+        if (threshold > 0 && elapsed >= threshold) {
+            logger.warning("Slow database call " + op + " took " + (elapsed / 1_000_000) + " ms.");
+        }
+    }
+
+    void error(Op op) {
+        if (enabled) {
+            errors[op.ordinal()].increment();
+        }
+    }
+
+    public OpSnapshot snapshot(Op op) {
+        int index = op.ordinal();
+        long[] counts = new long[BUCKETS];
+        long histogramTotal = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts[bucket] = histogram[index][bucket].sum();
+            histogramTotal += counts[bucket];
+        }
+        long count = calls[index].sum();
+        return new OpSnapshot(op, count, errors[index].sum(),
+                count == 0 ? 0 : totalNanos[index].sum() / (count * 1_000_000.0),
+                percentileMillis(counts, histogramTotal, 0.50),
+                percentileMillis(counts, histogramTotal, 0.99),
+                maxNanos[index].get() / 1_000_000.0);
+    }
+
+    /**
+     * @return snapshots of every operation that has been called at least once
+     */
+    public List<OpSnapshot> snapshot() {
+        List<OpSnapshot> snapshots = new ArrayList<>();
+        for (Op op : Op.values()) {
+            if (calls[op.ordinal()].sum() > 0 || errors[op.ordinal()].sum() > 0) {
+                snapshots.add(snapshot(op));
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Human-readable summary, one line per entry, for an admin command or the console.
+     * @param pool the Hikari pool bean, or null if the pool is not running
+     */
+    public List<String> report(HikariPoolMXBean pool) {
+        List<String> lines = new ArrayList<>();
+        PoolStats stats = PoolStats.of(pool);
+        if (stats != null) {
+            lines.add("Pool: " + stats.active + " active, " + stats.idle + " idle, " + stats.total + " total, "
+                    + stats.pending + " waiting for a connection");
+        }
+        for (OpSnapshot snapshot : snapshot()) {
+            lines.add(String.format(Locale.ROOT, "%s: %d calls, %d errors, mean %.2f ms, p50 <= %.2f ms, p99 <= %.2f ms, max %.2f ms",
+                    snapshot.op, snapshot.calls, snapshot.errors, snapshot.meanMillis, snapshot.p50Millis, snapshot.p99Millis, snapshot.maxMillis));
+        }
+        return lines;
+    }
+
+    public void reset() {
+        for (int op = 0; op < calls.length; op++) {
+            calls[op].reset();
+            errors[op].reset();
+            totalNanos[op].reset();
+            maxNanos[op].set(0);
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                histogram[op][bucket].reset();
+            }
+        }
+    }
+
+    private static int bucket(long elapsedNanos) {
+        long micros = elapsedNanos / 1_000;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    private static double percentileMillis(long[] counts, long total, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * quantile);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                // Upper bound of the bucket: 2^bucket microseconds
+                return (1L << bucket) / 1_000.0;
+            }
+        }
+        return (1L << (BUCKETS - 1)) / 1_000.0;
+    }
+
+    public static class OpSnapshot {
+        public final Op op;
+        public final long calls;
+        public final long errors;
+        public final double meanMillis;
+        public final double p50Millis;
+        public final double p99Millis;
+        public final double maxMillis;
+
+        public OpSnapshot(Op op, long calls, long errors, double meanMillis, double p50Millis, double p99Millis, double maxMillis) {
+            this.op = op;
+            this.calls = calls;
+            this.errors = errors;
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p99Millis = p99Millis;
+            this.maxMillis = maxMillis;
+        }
+    }
+
+    public static class PoolStats {
+        public final int active;
+        public final int idle;
+        public final int total;
+        public final int pending;
+
+        public PoolStats(int active, int idle, int total, int pending) {
+            this.active = active;
+            this.idle = idle;
+            this.total = total;
+            this.pending = pending;
+        }
+
+        static PoolStats of(HikariPoolMXBean pool) {
+            if (pool == null) {
+                return null;
+            }
+            return new PoolStats(pool.getActiveConnections(), pool.getIdleConnections(),
+                    pool.getTotalConnections(), pool.getThreadsAwaitingConnection());
+        }
+    }
+
+    public static class IngestStats {
+        public final long rowsIngested;
+        public final long flushes;
+        public final long failedFlushes;
+        public final int buffered;
+        // Rows per second of flush time, over every flush since startup
+        public final double rowsPerSecond;
+        public final long lastFlushRows;
+        public final long lastFlushMillis;
+
+        public IngestStats(long rowsIngested, long flushes, long failedFlushes, int buffered, double rowsPerSecond,
+                           long lastFlushRows, long lastFlushMillis) {
+            this.rowsIngested = rowsIngested;
+            this.flushes = flushes;
+            this.failedFlushes = failedFlushes;
+            this.buffered = buffered;
+            this.rowsPerSecond = rowsPerSecond;
+            this.lastFlushRows = lastFlushRows;
+            this.lastFlushMillis = lastFlushMillis;
+        }
+    }
+}
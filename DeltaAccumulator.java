@@ -0,0 +1,255 @@
+package com.minepath.login.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind accumulator for one additive BIGINT/INTEGER column of players.
+ *
+ * Callers add deltas into a per-UUID slot; {@link #flush(Connection, UuidBinding)} retires the slots,
+ * drops them from the map and applies all of them with one {@code UPDATE players ... FROM (VALUES ...)} statement per chunk.
+ * Drained deltas stay "in flight" until the flush commits, and {@link #readWithPending} holds off
+ * the commit while it reads, so persisted value + pending delta never counts a delta twice or misses it.
+ * A failed flush keeps its deltas in flight and retries them with the next flush.
+ */
+final class DeltaAccumulator {
+
+    private static final int MAX_ROWS_PER_STATEMENT = 1000;
+
+    private final String column;
+    private final Consumer<Collection<UUID>> onCommitted;
+    private final ConcurrentHashMap<UUID, Slot> pending = new ConcurrentHashMap<>();
+    // Guarded by stateLock
+    private final Map<UUID, Long> inFlight = new HashMap<>();
+    private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // System.nanoTime() of the oldest delta still in pending, 0 if there is none
+    private final AtomicLong oldestPendingNanos = new AtomicLong();
+    // System.nanoTime() of the oldest delta drained into inFlight, 0 if there is none; cleared only by a commit
+    private final AtomicLong oldestInFlightNanos = new AtomicLong();
+
+    /**
+     * @param column the players column to increment; must come from code, never from user input
+     * @param onCommitted called with the flushed players right after each flush commits, before readers
+     *                    can observe the new rows; used to invalidate caches of the column
+     */
+    DeltaAccumulator(String column, Consumer<Collection<UUID>> onCommitted) {
+        this.column = column;
+        this.onCommitted = onCommitted;
+    }
+
+    void add(UUID uuid, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        // A slot drained by a concurrent flush is retired; retry on a fresh one
+        while (!pending.computeIfAbsent(uuid, k -> new Slot()).add(delta)) {
+            Thread.onSpinWait();
+        }
+        oldestPendingNanos.compareAndSet(0, System.nanoTime());
+    }
+
+    /**
+     * @return the delta added for this player that is not committed to the database yet
+     */
+    long pendingDelta(UUID uuid) {
+        stateLock.readLock().lock();
+        try {
+            return unflushed(uuid);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the persisted value and adds the pending delta, without racing a concurrent flush.
+     */
+    long readWithPending(UUID uuid, PersistedValue persisted) throws SQLException {
+        stateLock.readLock().lock();
+        try {
+            return persisted.read() + unflushed(uuid);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return milliseconds since the oldest uncommitted delta was added, 0 if nothing is pending
+     */
+    long oldestPendingAgeMillis() {
+        long flushing = oldestInFlightNanos.get();
+        long since = flushing != 0 ? flushing : oldestPendingNanos.get();
+        return since == 0 ? 0 : (System.nanoTime() - since) / 1_000_000;
+    }
+
+    /**
+     * Applies every pending delta on the given connection in its own transaction.
+     * @return the number of players updated
+     */
+    int flush(Connection conn, UuidBinding uuids) throws SQLException {
+        flushLock.lock();
+        try {
+            stateLock.writeLock().lock();
+            try {
+                oldestInFlightNanos.compareAndSet(0, oldestPendingNanos.getAndSet(0));
+                for (Map.Entry<UUID, Slot> entry : pending.entrySet()) {
+                    long delta = entry.getValue().retire();
+                    // Removing every drained slot also keeps players who stopped earning out of the map
+                    pending.remove(entry.getKey(), entry.getValue());
+                    if (delta != 0) {
+                        inFlight.merge(entry.getKey(), delta, Long::sum);
+                    }
+                }
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+            return writeInFlight(conn, uuids);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Applies one player's pending delta and stops tracking the player. Meant for player quit, after
+     * the player's last reward. A delta added concurrently with this call lands in a new slot and goes
+     * out with the next full flush.
+     */
+    void flush(UUID uuid, Connection conn, UuidBinding uuids) throws SQLException {
+        flushLock.lock();
+        try {
+            stateLock.writeLock().lock();
+            try {
+                Slot slot = pending.remove(uuid);
+                long delta = slot != null ? slot.retire() : 0;
+                if (delta == 0 && !inFlight.containsKey(uuid)) {
+                    return;
+                }
+                if (delta != 0) {
+                    inFlight.merge(uuid, delta, Long::sum);
+                    // This player's delta is no older than the oldest one still pending
+                    oldestInFlightNanos.compareAndSet(0, oldestPendingNanos.get());
+                }
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+            writeInFlight(conn, uuids);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /** Must be called with flushLock held. */
+    private int writeInFlight(Connection conn, UuidBinding uuids) throws SQLException {
+        Map<UUID, Long> batch;
+        stateLock.readLock().lock();
+        try {
+            if (inFlight.isEmpty()) {
+                return 0;
+            }
+            // Sorted so concurrent writers lock the player rows in the same order
+            batch = new TreeMap<>((a, b) -> a.toString().compareTo(b.toString()));
+            batch.putAll(inFlight);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+
+        List<Map.Entry<UUID, Long>> rows = new ArrayList<>(batch.entrySet());
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            for (int from = 0; from < rows.size(); from += MAX_ROWS_PER_STATEMENT) {
+                int to = Math.min(rows.size(), from + MAX_ROWS_PER_STATEMENT);
+                StringBuilder sql = new StringBuilder("UPDATE players AS p SET ")
+                        .append(column).append(" = p.").append(column).append(" + v.delta FROM (VALUES ");
+                for (int i = from; i < to; i++) {
+                    sql.append(i == from ? "(?, ?)" : ", (?, ?)");
+                }
+                sql.append(") AS v(uuid, delta) WHERE p.uuid = v.uuid;");
+
+                try (PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+                    int parameter = 1;
+                    for (int i = from; i < to; i++) {
+                        uuids.bind(pstmt, parameter++, rows.get(i).getKey());
+                        pstmt.setLong(parameter++, rows.get(i).getValue());
+                    }
+                    pstmt.executeUpdate();
+                }
+            }
+
+            // Readers must see either the old row + in-flight delta or the new row, never both
+            stateLock.writeLock().lock();
+            try {
+                conn.commit();
+                inFlight.keySet().removeAll(batch.keySet());
+                if (inFlight.isEmpty()) {
+                    oldestInFlightNanos.set(0);
+                }
+                if (onCommitted != null) {
+                    onCommitted.accept(batch.keySet());
+                }
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+            return rows.size();
+        } catch (SQLException e) {
+            // The deltas stay in flight, and so does the time they were first added
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /** Must be called with stateLock held. */
+    private long unflushed(UUID uuid) {
+        Slot slot = pending.get(uuid);
+        Long flushing = inFlight.get(uuid);
+        return (slot != null ? slot.sum() : 0) + (flushing != null ? flushing : 0);
+    }
+
+    private static final class Slot {
+        private long delta;
+        private boolean retired;
+
+        synchronized boolean add(long delta) {
+            if (retired) {
+                return false;
+            }
+            this.delta += delta;
+            return true;
+        }
+
+        synchronized long sum() {
+            return delta;
+        }
+
+        /**
+         * @return the summed delta; later adds fail so the caller moves on to a new slot
+         */
+        synchronized long retire() {
+            retired = true;
+            return delta;
+        }
+    }
+
+    /**
+     * Reads the value currently stored in the database.
+     */
+    @FunctionalInterface
+    interface PersistedValue {
+        long read() throws SQLException;
+    }
+}
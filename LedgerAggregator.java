@@ -0,0 +1,215 @@
+package com.minepath.login.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ledger mode: coalesces high-volume transaction_logs rows (MINING and REFERRAL_REWARD credits) in memory
+ * and writes one row per (player, method, source player) per flush interval, with the summed amount and
+ * the number of credits it stands for in entry_count.
+ *
+ * Rows only reach the aggregator after the transaction that credited the balance has committed
+ * (see {@link TransactionLogBatch#committed()}), so a rolled-back credit is never logged. The price is that
+ * log rows lag the balances by up to one flush interval, and credits still in memory when the process dies
+ * are missing from the log. Amount totals and entry_count sums are the same as in per-credit mode,
+ * and the referral_stats rollup counts entry_count, so dashboards see the same numbers after a flush.
+ */
+final class LedgerAggregator {
+
+    private static final String FOREIGN_KEY_VIOLATION = "23503";
+
+    private final ConcurrentHashMap<Key, Slot> pending = new ConcurrentHashMap<>();
+    // Drained but not committed yet; retried with the next flush if the write fails. Guarded by flushLock
+    private final Map<Key, long[]> inFlight = new HashMap<>();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // System.nanoTime() of the oldest credit not yet written, 0 if there is none
+    private final AtomicLong oldestPendingNanos = new AtomicLong();
+
+    /**
+     * @return whether rows of this kind are coalesced; everything else is written per row as before
+     */
+    static boolean accepts(String transactionType, String method, java.math.BigDecimal solAmount, String transactionHash, String status) {
+        return ("MINING".equals(method) || "REFERRAL_REWARD".equals(method))
+                && "IN".equals(transactionType) && "SUCCESS".equals(status)
+                && solAmount == null && transactionHash == null;
+    }
+
+    void add(UUID playerUUID, String method, UUID sourcePlayerUUID, long amount, long entryCount) {
+        Key key = new Key(playerUUID, method, sourcePlayerUUID);
+        // A slot drained by a concurrent flush is retired; retry on a fresh one
+        while (!pending.computeIfAbsent(key, k -> new Slot()).add(amount, entryCount)) {
+            Thread.onSpinWait();
+        }
+        oldestPendingNanos.compareAndSet(0, System.nanoTime());
+    }
+
+    /**
+     * @return milliseconds since the oldest unwritten credit was added, 0 if nothing is pending
+     */
+    long oldestPendingAgeMillis() {
+        long since = oldestPendingNanos.get();
+        return since == 0 ? 0 : (System.nanoTime() - since) / 1_000_000;
+    }
+
+    /**
+     * Writes every pending aggregate as one transaction_logs row in its own transaction.
+     * @return the number of rows written
+     */
+    int flush(Connection conn, UuidBinding uuids) throws SQLException {
+        flushLock.lock();
+        try {
+            oldestPendingNanos.set(0);
+            for (Map.Entry<Key, Slot> entry : pending.entrySet()) {
+                long[] drained = entry.getValue().retire();
+                pending.remove(entry.getKey(), entry.getValue());
+                if (drained[1] > 0) {
+                    long[] flushing = inFlight.computeIfAbsent(entry.getKey(), k -> new long[2]);
+                    flushing[0] += drained[0];
+                    flushing[1] += drained[1];
+                }
+            }
+
+            try {
+                return write(conn, uuids);
+            } catch (SQLException e) {
+                if (!FOREIGN_KEY_VIOLATION.equals(e.getSQLState())) {
+                    throw e;
+                }
+                // A player was deleted since the credit; rows naming it could never be written and must not block the rest
+                dropDeletedPlayers(conn, uuids);
+                return write(conn, uuids);
+            }
+        } catch (SQLException e) {
+            oldestPendingNanos.compareAndSet(0, System.nanoTime());
+            throw e;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /** Must be called with flushLock held. */
+    private int write(Connection conn, UuidBinding uuids) throws SQLException {
+        if (inFlight.isEmpty()) {
+            return 0;
+        }
+        TransactionLogBatch logs = new TransactionLogBatch(uuids);
+        for (Map.Entry<Key, long[]> entry : inFlight.entrySet()) {
+            Key key = entry.getKey();
+            logs.add(key.playerUUID, "IN", key.method, entry.getValue()[0], null, null, "SUCCESS", key.sourcePlayerUUID,
+                    (int) entry.getValue()[1]);
+        }
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            int written = logs.flush(conn);
+            conn.commit();
+            inFlight.clear();
+            return written;
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /** Must be called with flushLock held. */
+    private void dropDeletedPlayers(Connection conn, UuidBinding uuids) throws SQLException {
+        Set<UUID> referenced = new HashSet<>();
+        for (Key key : inFlight.keySet()) {
+            referenced.add(key.playerUUID);
+            if (key.sourcePlayerUUID != null) {
+                referenced.add(key.sourcePlayerUUID);
+            }
+        }
+        Set<UUID> existing = new HashSet<>();
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT uuid FROM players WHERE uuid = ANY(?);")) {
+            pstmt.setArray(1, uuids.createArray(conn, referenced));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    existing.add(uuids.read(rs, "uuid"));
+                }
+            }
+        }
+        // Same outcome as ON DELETE: the credited player's rows go, a deleted source becomes NULL
+        Map<Key, long[]> kept = new HashMap<>();
+        for (Map.Entry<Key, long[]> entry : inFlight.entrySet()) {
+            Key key = entry.getKey();
+            if (!existing.contains(key.playerUUID)) {
+                continue;
+            }
+            if (key.sourcePlayerUUID != null && !existing.contains(key.sourcePlayerUUID)) {
+                key = new Key(key.playerUUID, key.method, null);
+            }
+            long[] totals = kept.computeIfAbsent(key, k -> new long[2]);
+            totals[0] += entry.getValue()[0];
+            totals[1] += entry.getValue()[1];
+        }
+        inFlight.clear();
+        inFlight.putAll(kept);
+    }
+
+    private static final class Slot {
+        private long amount;
+        private long entryCount;
+        private boolean retired;
+
+        synchronized boolean add(long amount, long entryCount) {
+            if (retired) {
+                return false;
+            }
+            this.amount += amount;
+            this.entryCount += entryCount;
+            return true;
+        }
+
+        /**
+         * @return {amount, entryCount}; later adds fail so the caller moves on to a new slot
+         */
+        synchronized long[] retire() {
+            retired = true;
+            return new long[]{amount, entryCount};
+        }
+    }
+
+    private static final class Key {
+        final UUID playerUUID;
+        final String method;
+        final UUID sourcePlayerUUID;
+
+        Key(UUID playerUUID, String method, UUID sourcePlayerUUID) {
+            this.playerUUID = playerUUID;
+            this.method = method;
+            this.sourcePlayerUUID = sourcePlayerUUID;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return playerUUID.equals(key.playerUUID) && method.equals(key.method) && Objects.equals(sourcePlayerUUID, key.sourcePlayerUUID);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(playerUUID, method, sourcePlayerUUID);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.minepath.login.db;
+
+import org.postgresql.PGConnection;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous COPY-based ingestion of log rows that do not have to commit together with a balance change:
+ * standalone {@link DatabaseManager#logTransaction} calls and {@link DatabaseManager#logReferral}.
+ *
+ * Rows go into a bounded in-memory buffer and, before add returns, into an append-only spill segment on disk.
+ * A flush closes the current segment, streams the buffered rows with one {@code COPY ... FROM STDIN} per table,
+ * updates the referral_stats rollup in the same transaction, and deletes the closed segments once that commits.
+ * Segments left behind by a crash or a failed flush are read back by {@link #replay} at startup. A crash between
+ * the commit and the segment delete replays those rows once more, so delivery is at-least-once.
+ */
+final class LogIngestor {
+
+    private static final String FOREIGN_KEY_VIOLATION = "23503";
+    private static final String TRANSACTION = "t";
+    private static final String REFERRAL = "r";
+    private static final String REF_LOGS_COPY_SQL = "COPY ref_logs (referrer_uuid, referred_uuid, ref_code) FROM STDIN WITH (FORMAT csv);";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".csv";
+
+    private final Logger logger;
+    private final File spillDirectory;
+    private final int capacity;
+
+    // Guarded by this: the buffer, the active segment and its writer
+    private final ArrayDeque<String[]> buffer = new ArrayDeque<>();
+    private Writer segmentWriter;
+    private File activeSegment;
+    private long nextSegment;
+
+    // Guarded by flushLock: rows drained from the buffer, and their segments, until a flush commits them
+    private final Object flushLock = new Object();
+    private final List<String[]> inFlight = new ArrayList<>();
+    private final List<File> closedSegments = new ArrayList<>();
+
+    private final LongAdder rowsIngested = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder failedFlushes = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+    private volatile long lastFlushRows;
+    private volatile long lastFlushMillis;
+
+    /**
+     * @param capacity rows buffered before {@link #addTransaction} / {@link #addReferral} refuse more
+     */
+    LogIngestor(Logger logger, File spillDirectory, int capacity) {
+        this.logger = logger;
+        this.spillDirectory = spillDirectory;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Reads the segments a previous run left behind into the flush queue and opens a fresh segment.
+     * Call once, before the first add; the rows are written by the next {@link #flush}.
+     * @return the number of rows recovered
+     */
+    int replay() throws IOException {
+        if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+            throw new IOException("cannot create " + spillDirectory.getPath());
+        }
+        File[] segments = spillDirectory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        int recovered = 0;
+        synchronized (flushLock) {
+            if (segments != null) {
+                Arrays.sort(segments, (a, b) -> Long.compare(segmentNumber(a), segmentNumber(b)));
+                for (File segment : segments) {
+                    String content = new String(Files.readAllBytes(segment.toPath()), StandardCharsets.UTF_8);
+                    for (String[] record : CopyCsv.parse(content)) {
+                        inFlight.add(record);
+                        recovered++;
+                    }
+                    closedSegments.add(segment);
+                    nextSegment = Math.max(nextSegment, segmentNumber(segment) + 1);
+                }
+            }
+        }
+        synchronized (this) {
+            openSegment();
+        }
+        return recovered;
+    }
+
+    /**
+     * @return false if the buffer is full; the caller writes the row itself
+     */
+    boolean addTransaction(UUID playerUUID, String transactionType, String method, long amount, BigDecimal solAmount,
+                           String transactionHash, String status, UUID sourcePlayerUUID) {
+        return add(new String[]{TRANSACTION, playerUUID.toString(), transactionType, method, Long.toString(amount),
+                solAmount != null ? solAmount.toPlainString() : null, transactionHash, status,
+                sourcePlayerUUID != null ? sourcePlayerUUID.toString() : null, "1"});
+    }
+
+    /**
+     * @return false if the buffer is full; the caller writes the row itself
+     */
+    boolean addReferral(UUID referrerUUID, UUID referredUUID, String refCode) {
+        return add(new String[]{REFERRAL, referrerUUID.toString(), referredUUID.toString(), refCode});
+    }
+
+    private synchronized boolean add(String[] record) {
+        if (buffer.size() >= capacity) {
+            return false;
+        }
+        try {
+            StringBuilder line = new StringBuilder(128);
+            CopyCsv.appendRecord(line, record);
+            segmentWriter.write(line.toString());
+            // Handed to the OS before the caller moves on, so a process crash does not lose the row
+            segmentWriter.flush();
+        } catch (IOException e) {
+            logger.warning("Could not write log spill segment " + activeSegment.getName() + ": " + e.getMessage());
+            return false;
+        }
+        buffer.add(record);
+        return true;
+    }
+
+    synchronized int buffered() {
+        return buffer.size();
+    }
+
+    /**
+     * Writes the buffered rows with COPY, one transaction per pass. A failed flush keeps its rows and
+     * segments and retries them first on the next call.
+     * Must be called on a connection in auto-commit mode.
+     * @return the number of rows written
+     */
+    int flush(Connection conn, UuidBinding uuids) throws SQLException {
+        synchronized (flushLock) {
+            // Rows left by a failed flush (or a replay) go first, on their own, so a database outage
+            // keeps at most one buffer's worth of rows in memory
+            int written = inFlight.isEmpty() ? 0 : writeInFlight(conn, uuids);
+            synchronized (this) {
+                if (buffer.isEmpty()) {
+                    return written;
+                }
+                inFlight.addAll(buffer);
+                buffer.clear();
+                closedSegments.add(activeSegment);
+                try {
+                    segmentWriter.close();
+                    openSegment();
+                } catch (IOException e) {
+                    throw new SQLException("Could not rotate log spill segment: " + e.getMessage(), e);
+                }
+            }
+            return written + writeInFlight(conn, uuids);
+        }
+    }
+
+    /** Must be called with flushLock held. */
+    private int writeInFlight(Connection conn, UuidBinding uuids) throws SQLException {
+        long started = System.nanoTime();
+        int written;
+        try {
+            try {
+                written = write(conn, uuids);
+            } catch (SQLException e) {
+                if (!FOREIGN_KEY_VIOLATION.equals(e.getSQLState())) {
+                    throw e;
+                }
+                // A player was deleted since the row was buffered; such rows could never be written
+                dropDeletedPlayers(conn, uuids);
+                written = write(conn, uuids);
+            }
+        } catch (SQLException e) {
+            failedFlushes.increment();
+            throw e;
+        }
+
+        inFlight.clear();
+        for (File segment : closedSegments) {
+            try {
+                Files.deleteIfExists(segment.toPath());
+            } catch (IOException e) {
+                logger.warning("Could not delete flushed log spill segment " + segment.getName() + ", its rows will be written again on restart: " + e.getMessage());
+            }
+        }
+        closedSegments.clear();
+
+        long elapsed = System.nanoTime() - started;
+        rowsIngested.add(written);
+        flushes.increment();
+        flushNanos.add(elapsed);
+        lastFlushRows = written;
+        lastFlushMillis = elapsed / 1_000_000;
+        return written;
+    }
+
+    /**
+     * Closes the active segment. Unflushed rows stay on disk for the next {@link #replay}.
+     */
+    synchronized void close() {
+        if (segmentWriter == null) {
+            return;
+        }
+        try {
+            segmentWriter.close();
+        } catch (IOException e) {
+            logger.warning("Could not close log spill segment " + activeSegment.getName() + ": " + e.getMessage());
+        }
+        segmentWriter = null;
+    }
+
+    DatabaseMetrics.IngestStats stats() {
+        long count = flushes.sum();
+        long nanos = flushNanos.sum();
+        long rows = rowsIngested.sum();
+        return new DatabaseMetrics.IngestStats(rows, count, failedFlushes.sum(), buffered(),
+                nanos == 0 ? 0 : rows * 1_000_000_000.0 / nanos, lastFlushRows, lastFlushMillis);
+    }
+
+    /** Must be called with flushLock held. */
+    private int write(Connection conn, UuidBinding uuids) throws SQLException {
+        TransactionLogBatch logs = new TransactionLogBatch(uuids);
+        StringBuilder referralCsv = new StringBuilder();
+        List<UUID[]> referralPairs = new ArrayList<>();
+        for (String[] record : inFlight) {
+            if (TRANSACTION.equals(record[0])) {
+                logs.add(UUID.fromString(record[1]), record[2], record[3], Long.parseLong(record[4]),
+                        record[5] != null ? new BigDecimal(record[5]) : null, record[6], record[7],
+                        record[8] != null ? UUID.fromString(record[8]) : null, Integer.parseInt(record[9]));
+            } else if (REFERRAL.equals(record[0])) {
+                CopyCsv.appendRecord(referralCsv, record[1], record[2], record[3]);
+                referralPairs.add(new UUID[]{UUID.fromString(record[1]), UUID.fromString(record[2])});
+            }
+        }
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            int written = logs.size() + referralPairs.size();
+            logs.flush(conn);
+            if (!referralPairs.isEmpty()) {
+                try {
+                    conn.unwrap(PGConnection.class).getCopyAPI().copyIn(REF_LOGS_COPY_SQL, new StringReader(referralCsv.toString()));
+                } catch (IOException e) {
+                    throw new SQLException("COPY into ref_logs failed: " + e.getMessage(), e);
+                }
+                ReferralStatsRollup.seedPairs(conn, uuids, referralPairs);
+            }
+            conn.commit();
+            return written;
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Drops rows whose player no longer exists and clears deleted source players, like the foreign keys' ON DELETE.
+     * Must be called with flushLock held.
+     */
+    private void dropDeletedPlayers(Connection conn, UuidBinding uuids) throws SQLException {
+        Set<UUID> referenced = new HashSet<>();
+        for (String[] record : inFlight) {
+            if (TRANSACTION.equals(record[0])) {
+                referenced.add(UUID.fromString(record[1]));
+                if (record[8] != null) {
+                    referenced.add(UUID.fromString(record[8]));
+                }
+            } else if (REFERRAL.equals(record[0])) {
+                referenced.add(UUID.fromString(record[1]));
+                referenced.add(UUID.fromString(record[2]));
+            }
+        }
+        Set<String> existing = new HashSet<>();
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT uuid FROM players WHERE uuid = ANY(?);")) {
+            pstmt.setArray(1, uuids.createArray(conn, referenced));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    existing.add(uuids.read(rs, "uuid").toString());
+                }
+            }
+        }
+        int before = inFlight.size();
+        inFlight.removeIf(record -> TRANSACTION.equals(record[0])
+                ? !existing.contains(record[1])
+                : !existing.contains(record[1]) || !existing.contains(record[2]));
+        for (String[] record : inFlight) {
+            if (TRANSACTION.equals(record[0]) && record[8] != null && !existing.contains(record[8])) {
+                record[8] = null;
+            }
+        }
+        logger.warning("Dropped " + (before - inFlight.size()) + " buffered log rows of deleted players.");
+    }
+
+    /** Must be called while holding this. */
+    private void openSegment() throws IOException {
+        activeSegment = new File(spillDirectory, SEGMENT_PREFIX + nextSegment++ + SEGMENT_SUFFIX);
+        segmentWriter = new BufferedWriter(Files.newBufferedWriter(activeSegment.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+    }
+
+    private static long segmentNumber(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
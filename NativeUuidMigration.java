@@ -0,0 +1,135 @@
+package com.minepath.login.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Opt-in migration of every player key from VARCHAR(36) to the PostgreSQL {@code uuid} type.
+ *
+ * Runs as one transaction: foreign keys to players are dropped, the columns are converted with
+ * {@code USING col::uuid}, and the same foreign keys are re-created from their saved definitions.
+ * Either every column is converted or none is, so the plugin and the NestJS backend never see a mix
+ * of types. The ALTERs rewrite the tables under an exclusive lock, so run it in a maintenance window
+ * on large installations.
+ */
+final class NativeUuidMigration {
+
+    // Every column that holds a player UUID, by table
+    private static final String[][] COLUMNS = {
+            {"players", "uuid", "referred_by", "managed_by_uuid"},
+            {"mine_to_earn", "player_uuid"},
+            {"ref_logs", "referrer_uuid", "referred_uuid"},
+            {"transaction_logs", "player_uuid", "source_player_uuid"},
+            {"commission_logs", "kol_uuid", "paid_by"},
+            {"referral_stats", "referrer_uuid", "referred_uuid"},
+            {"pending_credits", "player_uuid"},
+            {"referral_ancestry", "ancestor_uuid", "descendant_uuid"},
+            {"reward_requests", "player_uuid"}
+    };
+
+    private static final String UUID_PATTERN = "^[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}$";
+
+    private NativeUuidMigration() {
+    }
+
+    /**
+     * @return true if the keys are native uuid columns afterwards
+     */
+    static boolean migrate(Connection conn, Logger logger) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement statement = conn.createStatement()) {
+            // Give up instead of queueing every other query behind the ALTERs
+            statement.execute("SET LOCAL lock_timeout = '30s';");
+
+            List<String> alters = new ArrayList<>();
+            for (String[] table : COLUMNS) {
+                StringBuilder alter = new StringBuilder();
+                for (int i = 1; i < table.length; i++) {
+                    String type = columnType(conn, table[0], table[i]);
+                    if (type == null || type.equals("uuid")) {
+                        continue;
+                    }
+                    long invalid = countInvalid(conn, table[0], table[i]);
+                    if (invalid > 0) {
+                        logger.warning("Native uuid migration skipped: " + table[0] + "." + table[i] + " has " + invalid + " values that are not UUIDs.");
+                        conn.rollback();
+                        return false;
+                    }
+                    alter.append(alter.length() == 0 ? "ALTER TABLE " + table[0] + " " : ", ")
+                            .append("ALTER COLUMN ").append(table[i]).append(" TYPE UUID USING ").append(table[i]).append("::uuid");
+                }
+                if (alter.length() > 0) {
+                    alters.add(alter.append(";").toString());
+                }
+            }
+            if (alters.isEmpty()) {
+                conn.rollback();
+                return true;
+            }
+
+            // Only top-level constraints: the copies on transaction_logs partitions follow their parent
+            List<String> dropForeignKeys = new ArrayList<>();
+            List<String> addForeignKeys = new ArrayList<>();
+            String foreignKeysSql = "SELECT conrelid::regclass::text AS table_name, quote_ident(conname) AS name, pg_get_constraintdef(oid) AS definition " +
+                                    "FROM pg_constraint WHERE contype = 'f' AND confrelid = 'players'::regclass AND conparentid = 0;";
+            try (ResultSet rs = statement.executeQuery(foreignKeysSql)) {
+                while (rs.next()) {
+                    dropForeignKeys.add("ALTER TABLE " + rs.getString("table_name") + " DROP CONSTRAINT " + rs.getString("name") + ";");
+                    addForeignKeys.add("ALTER TABLE " + rs.getString("table_name") + " ADD CONSTRAINT " + rs.getString("name") + " " + rs.getString("definition") + ";");
+                }
+            }
+
+            for (String sql : dropForeignKeys) {
+                statement.execute(sql);
+            }
+            // Its WHEN clause pins the type of referred_by, so it has to go while the column changes
+            statement.execute("DROP TRIGGER IF EXISTS trg_players_referral_graph_update ON players;");
+            for (String sql : alters) {
+                statement.execute(sql);
+            }
+            for (String sql : addForeignKeys) {
+                statement.execute(sql);
+            }
+            statement.execute(SchemaMigrator.REFERRAL_GRAPH_UPDATE_TRIGGER_SQL);
+            conn.commit();
+            logger.info("Migrated player keys to the native uuid type (" + alters.size() + " tables).");
+            return true;
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * @return the column's data_type, or null if the table or column does not exist
+     */
+    private static String columnType(Connection conn, String table, String column) throws SQLException {
+        String sql = "SELECT data_type FROM information_schema.columns WHERE table_schema = current_schema() AND table_name = ? AND column_name = ?;";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, table);
+            pstmt.setString(2, column);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getString("data_type") : null;
+            }
+        }
+    }
+
+    private static long countInvalid(Connection conn, String table, String column) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM " + table + " WHERE " + column + " IS NOT NULL AND " + column + " !~ ?;";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, UUID_PATTERN);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.minepath.login.db;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of {@link DatabaseManager.PlayerProfile} snapshots with size and TTL eviction.
+ *
+ * Invalidation is per field: a mutator marks only the columns it changed as stale, and lookups for
+ * other fields keep hitting the cached row. A lookup for a stale field is a miss; the caller reloads
+ * the whole row and puts it back, which clears every stale mark.
+ *
+ * To keep a slow load from overwriting a newer invalidation, callers take {@link #version(UUID)}
+ * before reading the row and pass it to {@link #put}; the put is dropped if the player's stripe was
+ * invalidated in between. The version check and the put run under the stripe's lock, as do
+ * invalidations, so an invalidation can't slip in between them.
+ *
+ * Rows changed outside this plugin are only seen once the TTL runs out, which is why the cache is off by default.
+ */
+final class PlayerProfileCache {
+
+    enum Field {
+        MINE_BALANCE,
+        SOL_BALANCE,
+        SOLANA_ADDRESS,
+        FYSTACK_WALLET_ID,
+        REF_CODE,
+        REFERRED_BY,
+        TOTAL_REFERRED,
+        ALL_REFERRED,
+        TOTAL_REF_REWARD,
+        ROLE,
+        COMMISSION_RATE,
+        SOL_FEE_SHARE,
+        TOTAL_SOL_SHARE,
+        LAST_LOGIN;
+
+        final int mask = 1 << ordinal();
+    }
+
+    private static final int ALL_FIELDS = (1 << Field.values().length) - 1;
+    private static final int VERSION_STRIPES = 64;
+
+    private final ConcurrentHashMap<UUID, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+    private final Object[] locks = new Object[VERSION_STRIPES];
+    private final int maximumSize;
+    private final long ttlNanos;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    PlayerProfileCache(int maximumSize, long ttlMillis) {
+        this.maximumSize = Math.max(1, maximumSize);
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        for (int i = 0; i < VERSION_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return the cached profile if it is fresh and {@code field} is not stale, otherwise null
+     */
+    DatabaseManager.PlayerProfile get(UUID uuid, Field field) {
+        Entry entry = entries.get(uuid);
+        if (entry == null || (entry.staleMask & field.mask) != 0 || isExpired(entry, System.nanoTime())) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.profile;
+    }
+
+    long version(UUID uuid) {
+        return versions.get(stripe(uuid));
+    }
+
+    /**
+     * Caches a freshly loaded profile, unless the player was invalidated since {@code version} was taken.
+     */
+    void put(UUID uuid, DatabaseManager.PlayerProfile profile, long version) {
+        if (!entries.containsKey(uuid) && entries.size() >= maximumSize) {
+            evict();
+        }
+        synchronized (locks[stripe(uuid)]) {
+            if (versions.get(stripe(uuid)) == version) {
+                entries.put(uuid, new Entry(profile, System.nanoTime(), 0));
+            }
+        }
+    }
+
+    void invalidate(UUID uuid, Field... fields) {
+        int mask = 0;
+        for (Field field : fields) {
+            mask |= field.mask;
+        }
+        invalidate(uuid, mask);
+    }
+
+    void invalidate(Collection<UUID> uuids, Field... fields) {
+        for (UUID uuid : uuids) {
+            invalidate(uuid, fields);
+        }
+    }
+
+    void invalidateAll(UUID uuid) {
+        invalidate(uuid, ALL_FIELDS);
+    }
+
+    void remove(UUID uuid) {
+        synchronized (locks[stripe(uuid)]) {
+            versions.incrementAndGet(stripe(uuid));
+            entries.remove(uuid);
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void invalidate(UUID uuid, int mask) {
+        synchronized (locks[stripe(uuid)]) {
+            versions.incrementAndGet(stripe(uuid));
+            entries.computeIfPresent(uuid, (key, entry) -> new Entry(entry.profile, entry.loadedAtNanos, entry.staleMask | mask));
+        }
+    }
+
+    /**
+     * Drops expired entries, then the oldest one if the cache is still full.
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        entries.values().removeIf(entry -> isExpired(entry, now));
+        if (entries.size() < maximumSize) {
+            return;
+        }
+        UUID oldest = null;
+        long oldestLoadedAt = Long.MAX_VALUE;
+        for (Map.Entry<UUID, Entry> candidate : entries.entrySet()) {
+            if (candidate.getValue().loadedAtNanos < oldestLoadedAt) {
+                oldestLoadedAt = candidate.getValue().loadedAtNanos;
+                oldest = candidate.getKey();
+            }
+        }
+        if (oldest != null) {
+            entries.remove(oldest);
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.loadedAtNanos > ttlNanos;
+    }
+
+    private static int stripe(UUID uuid) {
+        return uuid.hashCode() & (VERSION_STRIPES - 1);
+    }
+
+    private static final class Entry {
+        final DatabaseManager.PlayerProfile profile;
+        final long loadedAtNanos;
+        final int staleMask;
+
+        Entry(DatabaseManager.PlayerProfile profile, long loadedAtNanos, int staleMask) {
+            this.profile = profile;
+            this.loadedAtNanos = loadedAtNanos;
+            this.staleMask = staleMask;
+        }
+    }
+}
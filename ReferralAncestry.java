@@ -0,0 +1,169 @@
+package com.minepath.login.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Maintenance of the {@code referral_ancestry} closure table: one row per (ancestor, descendant) pair of the
+ * referral tree with the number of referred_by hops between them (1 = direct referrer). Ancestor chains,
+ * downline counts and per-depth earnings become one indexed query instead of a walk over referred_by.
+ *
+ * Rows are written by DatabaseManager in the same transaction that sets referred_by: a new player inherits
+ * its referrer's ancestors one level deeper, and re-parenting moves the whole subtree. Chains are cut at
+ * the same 100-level limit as the walks, and a player is never its own ancestor. Deleting a player drops its
+ * rows through the foreign keys; links that passed through it stay until {@link #rebuild}.
+ */
+final class ReferralAncestry {
+
+    static final int MAX_DEPTH = 100;
+
+    /** Derives every row from players.referred_by; the one-time backfill, also used by {@link #rebuild}. */
+    static final String BACKFILL_SQL = "INSERT INTO referral_ancestry (ancestor_uuid, descendant_uuid, depth) " +
+            "WITH RECURSIVE chain (ancestor_uuid, descendant_uuid, depth) AS (" +
+            "SELECT p.referred_by, p.uuid, 1 FROM players p JOIN players r ON r.uuid = p.referred_by " +
+            "UNION ALL " +
+            "SELECT p.referred_by, c.descendant_uuid, c.depth + 1 FROM chain c " +
+            "JOIN players p ON p.uuid = c.ancestor_uuid JOIN players r ON r.uuid = p.referred_by " +
+            "WHERE c.depth < " + MAX_DEPTH + " AND c.ancestor_uuid <> c.descendant_uuid) " +
+            // A cycle in referred_by reaches the same ancestor at several depths; keep the nearest
+            "SELECT ancestor_uuid, descendant_uuid, MIN(depth) FROM chain WHERE ancestor_uuid <> descendant_uuid " +
+            "GROUP BY ancestor_uuid, descendant_uuid " +
+            "ON CONFLICT (descendant_uuid, ancestor_uuid) DO NOTHING;";
+
+    // The referrer itself at depth 1, then its ancestors one level deeper
+    private static final String ADD_LEAF_SQL = "INSERT INTO referral_ancestry (ancestor_uuid, descendant_uuid, depth) " +
+            "SELECT uuid, ?, 1 FROM players WHERE uuid = ? " +
+            "UNION ALL " +
+            "SELECT ancestor_uuid, ?, depth + 1 FROM referral_ancestry WHERE descendant_uuid = ? AND depth < " + MAX_DEPTH + " AND ancestor_uuid <> ? " +
+            "ON CONFLICT (descendant_uuid, ancestor_uuid) DO NOTHING;";
+
+    // Subtree of the moved player (itself included) and its old ancestors outside of it
+    private static final String DETACH_SQL = "DELETE FROM referral_ancestry " +
+            "WHERE descendant_uuid IN (SELECT descendant_uuid FROM referral_ancestry WHERE ancestor_uuid = ? UNION ALL SELECT ?) " +
+            "AND ancestor_uuid NOT IN (SELECT descendant_uuid FROM referral_ancestry WHERE ancestor_uuid = ? UNION ALL SELECT ?);";
+
+    // Every new ancestor (the referrer included) times every member of the subtree (the moved player included)
+    private static final String ATTACH_SQL = "INSERT INTO referral_ancestry (ancestor_uuid, descendant_uuid, depth) " +
+            "SELECT a.ancestor_uuid, s.descendant_uuid, a.depth + s.depth + 1 " +
+            "FROM (SELECT ancestor_uuid, depth FROM referral_ancestry WHERE descendant_uuid = ? " +
+            "UNION ALL SELECT uuid, 0 FROM players WHERE uuid = ?) a " +
+            "CROSS JOIN (SELECT descendant_uuid, depth FROM referral_ancestry WHERE ancestor_uuid = ? UNION ALL SELECT ?, 0) s " +
+            "WHERE a.depth + s.depth + 1 <= " + MAX_DEPTH + " AND a.ancestor_uuid <> s.descendant_uuid " +
+            "ON CONFLICT (descendant_uuid, ancestor_uuid) DO NOTHING;";
+
+    private static final String IS_ANCESTOR_SQL = "SELECT 1 FROM referral_ancestry WHERE ancestor_uuid = ? AND descendant_uuid = ?;";
+
+    private static final String ANCESTORS_SQL = "SELECT a.ancestor_uuid, a.depth, p.commission_rate FROM referral_ancestry a " +
+            "JOIN players p ON p.uuid = a.ancestor_uuid WHERE a.descendant_uuid = ? ORDER BY a.depth;";
+
+    private ReferralAncestry() {
+    }
+
+    /**
+     * Adds the rows of a player that was just given its first referrer and has no referrals of its own yet.
+     */
+    static void addLeaf(Connection conn, UuidBinding uuids, UUID playerUUID, UUID referrerUUID) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(ADD_LEAF_SQL)) {
+            uuids.bind(pstmt, 1, playerUUID);
+            uuids.bind(pstmt, 2, referrerUUID);
+            uuids.bind(pstmt, 3, playerUUID);
+            uuids.bind(pstmt, 4, referrerUUID);
+            uuids.bind(pstmt, 5, playerUUID);
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Moves a player and its whole downline under a new referrer, or makes it a root if the referrer is null.
+     */
+    static void move(Connection conn, UuidBinding uuids, UUID playerUUID, UUID referrerUUID) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(DETACH_SQL)) {
+            for (int i = 1; i <= 4; i++) {
+                uuids.bind(pstmt, i, playerUUID);
+            }
+            pstmt.executeUpdate();
+        }
+        if (referrerUUID == null) {
+            return;
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(ATTACH_SQL)) {
+            uuids.bind(pstmt, 1, referrerUUID);
+            uuids.bind(pstmt, 2, referrerUUID);
+            uuids.bind(pstmt, 3, playerUUID);
+            uuids.bind(pstmt, 4, playerUUID);
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * @return whether {@code ancestorUUID} is {@code playerUUID} or above it in the tree, i.e. whether making
+     *         {@code playerUUID} the referrer of {@code ancestorUUID} would close a cycle
+     */
+    static boolean isSelfOrAncestor(Connection conn, UuidBinding uuids, UUID ancestorUUID, UUID playerUUID) throws SQLException {
+        if (ancestorUUID.equals(playerUUID)) {
+            return true;
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(IS_ANCESTOR_SQL)) {
+            uuids.bind(pstmt, 1, ancestorUUID);
+            uuids.bind(pstmt, 2, playerUUID);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * @return the player's ancestors with their commission rate, nearest first
+     */
+    static List<Ancestor> ancestors(Connection conn, UuidBinding uuids, UUID playerUUID) throws SQLException {
+        List<Ancestor> ancestors = new ArrayList<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(ANCESTORS_SQL)) {
+            uuids.bind(pstmt, 1, playerUUID);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    ancestors.add(new Ancestor(uuids.read(rs, "ancestor_uuid"), rs.getInt("depth"), rs.getDouble("commission_rate")));
+                }
+            }
+        }
+        return ancestors;
+    }
+
+    /**
+     * Recomputes every row from players.referred_by in one transaction, e.g. after players were deleted
+     * or referred_by was changed outside the plugin.
+     * @return the number of rows afterwards
+     */
+    static int rebuild(Connection conn) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement statement = conn.createStatement()) {
+            statement.executeUpdate("DELETE FROM referral_ancestry;");
+            int rows = statement.executeUpdate(BACKFILL_SQL);
+            conn.commit();
+            return rows;
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    static final class Ancestor {
+        final UUID uuid;
+        final int depth;
+        final double commissionRate;
+
+        Ancestor(UUID uuid, int depth, double commissionRate) {
+            this.uuid = uuid;
+            this.depth = depth;
+            this.commissionRate = commissionRate;
+        }
+    }
+}
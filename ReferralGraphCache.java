@@ -0,0 +1,399 @@
+package com.minepath.login.db;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory copy of players.referred_by and players.commission_rate, so referral chain walks
+ * are O(depth) memory reads instead of two SELECTs per ancestor.
+ *
+ * Every player (and every referrer UUID seen in referred_by) gets a slot; parent pointers are
+ * stored as slot indexes in an int[] and rates in a double[]. A slot is in one of three states:
+ * loaded from a players row, known to have no players row, or unknown (never loaded or
+ * invalidated), in which case {@link #get(UUID)} returns null and the caller reads the row from
+ * the database and hands it back through {@link #put} or {@link #markAbsent}.
+ *
+ * Rows edited outside the plugin (e.g. commission_rate changed by the admin backend) are picked up
+ * through the {@value #NOTIFY_CHANNEL} channel, fed by triggers on players. Inserts notify as well, so a
+ * referrer cached as absent is read again once another writer creates its row.
+ */
+final class ReferralGraphCache {
+
+    static final double DEFAULT_COMMISSION_RATE = 0.3;
+    static final String NOTIFY_CHANNEL = "minepath_referral_graph";
+    static final String READ_SQL = "SELECT referred_by, commission_rate FROM players WHERE uuid = ?;";
+
+    /** Returned for UUIDs that have no players row: no referrer, default rate, nothing to credit. */
+    static final Node ABSENT = new Node(null, DEFAULT_COMMISSION_RATE, false);
+
+    private static final int NO_PARENT = -1;
+    private static final byte STATE_UNKNOWN = 0;
+    private static final byte STATE_PRESENT = 1;
+    private static final byte STATE_ABSENT = 2;
+
+    private final Logger logger;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private Map<UUID, Integer> index = new HashMap<>();
+    private UUID[] uuids = new UUID[0];
+    private int[] parents = new int[0];
+    private double[] rates = new double[0];
+    private byte[] states = new byte[0];
+    private int size;
+    private volatile boolean loaded;
+
+    private volatile Thread listenerThread;
+
+    ReferralGraphCache(Logger logger) {
+        this.logger = logger;
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Replaces the whole cache with the current contents of the players table.
+     */
+    void load(Connection conn, UuidBinding uuidBinding) throws SQLException {
+        Map<UUID, Integer> newIndex = new HashMap<>();
+        Map<UUID, UUID> parentOf = new HashMap<>();
+        Map<UUID, Double> rateOf = new HashMap<>();
+
+        String sql = "SELECT uuid, referred_by, commission_rate FROM players;";
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery(sql)) {
+            while (rs.next()) {
+                UUID uuid = uuidBinding.read(rs, "uuid");
+                parentOf.put(uuid, uuidBinding.read(rs, "referred_by"));
+                rateOf.put(uuid, rs.getDouble("commission_rate"));
+            }
+        }
+
+        int capacity = Math.max(16, parentOf.size() + parentOf.size() / 4);
+        UUID[] newUuids = new UUID[capacity];
+        int[] newParents = new int[capacity];
+        double[] newRates = new double[capacity];
+        byte[] newStates = new byte[capacity];
+        int newSize = 0;
+
+        for (Map.Entry<UUID, Double> entry : rateOf.entrySet()) {
+            newIndex.put(entry.getKey(), newSize);
+            newUuids[newSize] = entry.getKey();
+            newRates[newSize] = entry.getValue();
+            newStates[newSize] = STATE_PRESENT;
+            newSize++;
+        }
+        for (Map.Entry<UUID, UUID> entry : parentOf.entrySet()) {
+            int slot = newIndex.get(entry.getKey());
+            UUID parent = entry.getValue();
+            if (parent == null) {
+                newParents[slot] = NO_PARENT;
+                continue;
+            }
+            Integer parentSlot = newIndex.get(parent);
+            if (parentSlot == null) {
+                // Dangling referred_by: the referrer has no players row
+                if (newSize == newUuids.length) {
+                    int grown = newSize * 2;
+                    newUuids = Arrays.copyOf(newUuids, grown);
+                    newParents = Arrays.copyOf(newParents, grown);
+                    newRates = Arrays.copyOf(newRates, grown);
+                    newStates = Arrays.copyOf(newStates, grown);
+                }
+                parentSlot = newSize;
+                newIndex.put(parent, parentSlot);
+                newUuids[parentSlot] = parent;
+                newParents[parentSlot] = NO_PARENT;
+                newRates[parentSlot] = DEFAULT_COMMISSION_RATE;
+                newStates[parentSlot] = STATE_ABSENT;
+                newSize++;
+            }
+            newParents[slot] = parentSlot;
+        }
+
+        lock.writeLock().lock();
+        try {
+            index = newIndex;
+            uuids = newUuids;
+            parents = newParents;
+            rates = newRates;
+            states = newStates;
+            size = newSize;
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("Loaded referral graph cache with " + rateOf.size() + " players.");
+    }
+
+    /**
+     * @return the cached node, {@link #ABSENT} if the player is known to have no players row,
+     *         or null if the player is not cached and must be read from the database
+     */
+    Node get(UUID uuid) {
+        lock.readLock().lock();
+        try {
+            Integer slot = index.get(uuid);
+            if (slot == null) {
+                return null;
+            }
+            switch (states[slot]) {
+                case STATE_PRESENT:
+                    int parent = parents[slot];
+                    return new Node(parent != NO_PARENT ? uuids[parent] : null, rates[slot], true);
+                case STATE_ABSENT:
+                    return ABSENT;
+                default:
+                    return null;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores (or overwrites) a player's parent pointer and commission rate.
+     */
+    void put(UUID uuid, UUID referredBy, double commissionRate) {
+        lock.writeLock().lock();
+        try {
+            int slot = slotFor(uuid);
+            parents[slot] = referredBy != null ? slotFor(referredBy) : NO_PARENT;
+            rates[slot] = commissionRate;
+            states[slot] = STATE_PRESENT;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void markAbsent(UUID uuid) {
+        lock.writeLock().lock();
+        try {
+            int slot = slotFor(uuid);
+            parents[slot] = NO_PARENT;
+            rates[slot] = DEFAULT_COMMISSION_RATE;
+            states[slot] = STATE_ABSENT;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Updates the parent pointer of a cached player. Uncached players are left alone; they are
+     * read from the database on first use.
+     */
+    void setReferredBy(UUID uuid, UUID referredBy) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = index.get(uuid);
+            if (slot != null && states[slot] == STATE_PRESENT) {
+                parents[slot] = referredBy != null ? slotFor(referredBy) : NO_PARENT;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void setCommissionRate(UUID uuid, double commissionRate) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = index.get(uuid);
+            if (slot != null && states[slot] == STATE_PRESENT) {
+                rates[slot] = commissionRate;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets one player, so the next lookup reads the row from the database again.
+     */
+    void invalidate(UUID uuid) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = index.get(uuid);
+            if (slot != null) {
+                states[slot] = STATE_UNKNOWN;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets every player. Lookups fall back to the database until the next {@link #load}.
+     */
+    void invalidateAll() {
+        lock.writeLock().lock();
+        try {
+            index = new HashMap<>();
+            uuids = new UUID[0];
+            parents = new int[0];
+            rates = new double[0];
+            states = new byte[0];
+            size = 0;
+            loaded = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads one player's row from the database into the cache.
+     */
+    Node refresh(UUID uuid, Connection conn, UuidBinding uuidBinding) throws SQLException {
+        return remember(uuid, read(uuid, conn, uuidBinding));
+    }
+
+    /**
+     * Caches a node just read from the database, or marks the player absent.
+     * @return the node
+     */
+    Node remember(UUID uuid, Node node) {
+        if (node.exists) {
+            put(uuid, node.referredBy, node.commissionRate);
+        } else {
+            markAbsent(uuid);
+        }
+        return node;
+    }
+
+    /**
+     * Reads one player's referred_by and commission_rate without touching any cache.
+     * @return the node, or {@link #ABSENT} if the player has no players row
+     */
+    static Node read(UUID uuid, Connection conn, UuidBinding uuidBinding) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(READ_SQL)) {
+            return read(uuid, pstmt, uuidBinding);
+        }
+    }
+
+    /**
+     * Same as {@link #read(UUID, Connection, UuidBinding)} on a statement prepared from {@link #READ_SQL},
+     * so walks up a chain can reuse one statement for every level.
+     */
+    static Node read(UUID uuid, PreparedStatement pstmt, UuidBinding uuidBinding) throws SQLException {
+        uuidBinding.bind(pstmt, 1, uuid);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            if (rs.next()) {
+                return new Node(uuidBinding.read(rs, "referred_by"), rs.getDouble("commission_rate"), true);
+            }
+        }
+        return ABSENT;
+    }
+
+    /**
+     * Starts a daemon thread that LISTENs on {@value #NOTIFY_CHANNEL} and refreshes the players
+     * named in each notification. The thread holds one pooled connection while it runs; after a
+     * lost connection it reloads the whole cache, since notifications may have been missed.
+     */
+    void startListener(DatabaseManager databaseManager) {
+        if (listenerThread != null) {
+            return;
+        }
+        Thread thread = new Thread(() -> listen(databaseManager), "Minepath-ReferralGraphListener");
+        thread.setDaemon(true);
+        listenerThread = thread;
+        thread.start();
+    }
+
+    void stopListener() {
+        Thread thread = listenerThread;
+        listenerThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void listen(DatabaseManager databaseManager) {
+        boolean reconnecting = false;
+        while (listenerThread == Thread.currentThread()) {
+            try (Connection conn = databaseManager.getConnection()) {
+                try (Statement statement = conn.createStatement()) {
+                    statement.execute("LISTEN " + NOTIFY_CHANNEL + ";");
+                }
+                if (reconnecting) {
+                    load(conn, databaseManager.getUuidBinding());
+                }
+                PGConnection pgConnection = conn.unwrap(PGConnection.class);
+                while (listenerThread == Thread.currentThread()) {
+                    PGNotification[] notifications = pgConnection.getNotifications(1000);
+                    if (notifications == null) {
+                        continue;
+                    }
+                    for (PGNotification notification : notifications) {
+                        try {
+                            refresh(UUID.fromString(notification.getParameter()), conn, databaseManager.getUuidBinding());
+                        } catch (IllegalArgumentException e) {
+                            logger.warning("Ignoring malformed referral graph notification: " + notification.getParameter());
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                if (listenerThread != Thread.currentThread()) {
+                    return;
+                }
+                logger.log(Level.WARNING, "Referral graph listener lost its connection, retrying in 5 seconds", e);
+                reconnecting = true;
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Must be called with the write lock held. */
+    private int slotFor(UUID uuid) {
+        Integer slot = index.get(uuid);
+        if (slot != null) {
+            return slot;
+        }
+        if (size == uuids.length) {
+            int grown = Math.max(16, size * 2);
+            uuids = Arrays.copyOf(uuids, grown);
+            parents = Arrays.copyOf(parents, grown);
+            rates = Arrays.copyOf(rates, grown);
+            states = Arrays.copyOf(states, grown);
+        }
+        int newSlot = size++;
+        index.put(uuid, newSlot);
+        uuids[newSlot] = uuid;
+        parents[newSlot] = NO_PARENT;
+        rates[newSlot] = DEFAULT_COMMISSION_RATE;
+        states[newSlot] = STATE_UNKNOWN;
+        return newSlot;
+    }
+
+    /**
+     * Parent pointer and commission rate of one player in the referral tree.
+     */
+    static final class Node {
+        final UUID referredBy;
+        final double commissionRate;
+        /** false if the player has no players row and can't be credited */
+        final boolean exists;
+
+        Node(UUID referredBy, double commissionRate, boolean exists) {
+            this.referredBy = referredBy;
+            this.commissionRate = commissionRate;
+            this.exists = exists;
+        }
+    }
+}
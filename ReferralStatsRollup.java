@@ -0,0 +1,246 @@
+package com.minepath.login.db;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Maintenance of the {@code referral_stats} rollup: one row per (referrer, referred) pair with the
+ * referred player's transaction_logs totals, so the referral dashboard reads one index range instead of
+ * joining ref_logs with the whole log history.
+ *
+ * The totals use the same definitions the dashboard queries used to compute on the fly:
+ * SOL claimed is the sum of sol_amount over SUCCESS rows, MINE claimed the sum of amount over SUCCESS rows,
+ * and the transaction count is the sum of entry_count (1 per row, more for ledger aggregates). Every log row is written by {@link TransactionLogBatch},
+ * which calls {@link #apply} in the same transaction, so the rollup commits or rolls back with the rows it counts.
+ * When transaction_logs partitions are dropped by retention, their totals move to the archived_* columns;
+ * the totals stay lifetime totals and the check compares the logs against total minus archived.
+ */
+final class ReferralStatsRollup {
+
+    // Aggregates over transaction_logs rows aliased tl, in column order sol, mine, transactions
+    private static final String AGGREGATES = "COALESCE(SUM(CASE WHEN tl.status = 'SUCCESS' AND tl.sol_amount IS NOT NULL THEN tl.sol_amount ELSE 0 END), 0), " +
+                                             "COALESCE(SUM(CASE WHEN tl.status = 'SUCCESS' THEN tl.amount ELSE 0 END), 0), " +
+                                             "COALESCE(SUM(tl.entry_count), 0)";
+
+    /** Adds every ref_logs pair that has no rollup row yet, computed from the full history. */
+    static final String INSERT_MISSING_SQL = "INSERT INTO referral_stats (referrer_uuid, referred_uuid, total_sol_claimed, total_mine_claimed, total_transactions) " +
+            "SELECT rl.referrer_uuid, rl.referred_uuid, " + AGGREGATES + " " +
+            "FROM (SELECT DISTINCT r.referrer_uuid, r.referred_uuid FROM ref_logs r " +
+            "WHERE NOT EXISTS (SELECT 1 FROM referral_stats s WHERE s.referrer_uuid = r.referrer_uuid AND s.referred_uuid = r.referred_uuid)) rl " +
+            "LEFT JOIN transaction_logs tl ON tl.player_uuid = rl.referred_uuid " +
+            "GROUP BY rl.referrer_uuid, rl.referred_uuid " +
+            "ON CONFLICT (referrer_uuid, referred_uuid) DO NOTHING;";
+
+    // The referred player may already have history when the referral is logged, so the row starts from it
+    private static final String SEED_PAIR_SQL = "INSERT INTO referral_stats (referrer_uuid, referred_uuid, total_sol_claimed, total_mine_claimed, total_transactions) " +
+            "SELECT ?, ?, " + AGGREGATES + " FROM transaction_logs tl WHERE tl.player_uuid = ? " +
+            "ON CONFLICT (referrer_uuid, referred_uuid) DO NOTHING;";
+
+    private static final String SEED_PAIRS_SQL = "INSERT INTO referral_stats (referrer_uuid, referred_uuid, total_sol_claimed, total_mine_claimed, total_transactions) " +
+            "SELECT p.referrer_uuid, p.referred_uuid, " + AGGREGATES + " FROM unnest(?, ?) AS p(referrer_uuid, referred_uuid) " +
+            "LEFT JOIN transaction_logs tl ON tl.player_uuid = p.referred_uuid " +
+            "GROUP BY p.referrer_uuid, p.referred_uuid " +
+            "ON CONFLICT (referrer_uuid, referred_uuid) DO NOTHING;";
+
+    // UPDATE ... FROM unnest() leaves the row order to the planner, so the rows are locked in key order first
+    private static final String LOCK_SQL = "SELECT 1 FROM referral_stats WHERE referred_uuid = ANY(?) " +
+            "ORDER BY referred_uuid, referrer_uuid FOR NO KEY UPDATE;";
+
+    private static final String APPLY_SQL = "UPDATE referral_stats rs SET " +
+            "total_sol_claimed = rs.total_sol_claimed + v.sol, " +
+            "total_mine_claimed = rs.total_mine_claimed + v.mine, " +
+            "total_transactions = rs.total_transactions + v.transactions " +
+            "FROM unnest(?, ?, ?, ?) AS v(referred_uuid, sol, mine, transactions) " +
+            "WHERE rs.referred_uuid = v.referred_uuid;";
+
+    private static final String DRIFT_SQL = "SELECT rs.referrer_uuid, rs.referred_uuid FROM referral_stats rs " +
+            "CROSS JOIN LATERAL (SELECT " + AGGREGATES + " FROM transaction_logs tl WHERE tl.player_uuid = rs.referred_uuid) a(sol, mine, transactions) " +
+            "WHERE (rs.total_sol_claimed - rs.archived_sol_claimed, rs.total_mine_claimed - rs.archived_mine_claimed, rs.total_transactions - rs.archived_transactions) " +
+            "IS DISTINCT FROM (a.sol, a.mine, a.transactions);";
+
+    private static final String RECOMPUTE_SQL = "UPDATE referral_stats rs SET (total_sol_claimed, total_mine_claimed, total_transactions) = " +
+            "(SELECT rs.archived_sol_claimed + a.sol, rs.archived_mine_claimed + a.mine, rs.archived_transactions + a.transactions " +
+            "FROM (SELECT " + AGGREGATES + " FROM transaction_logs tl WHERE tl.player_uuid = ?) a(sol, mine, transactions)) " +
+            "WHERE rs.referrer_uuid = ? AND rs.referred_uuid = ?;";
+
+    private ReferralStatsRollup() {
+    }
+
+    /**
+     * Creates the rollup row for a newly logged referral. Call in the transaction that inserts the ref_logs row.
+     */
+    static void seedPair(Connection conn, UuidBinding uuids, UUID referrerUUID, UUID referredUUID) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(SEED_PAIR_SQL)) {
+            uuids.bind(pstmt, 1, referrerUUID);
+            uuids.bind(pstmt, 2, referredUUID);
+            uuids.bind(pstmt, 3, referredUUID);
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * {@link #seedPair} for many referrals in one statement.
+     * @param pairs {referrer, referred} per referral
+     */
+    static void seedPairs(Connection conn, UuidBinding uuids, List<UUID[]> pairs) throws SQLException {
+        if (pairs.isEmpty()) {
+            return;
+        }
+        List<UUID> referrers = new ArrayList<>(pairs.size());
+        List<UUID> referred = new ArrayList<>(pairs.size());
+        for (UUID[] pair : pairs) {
+            referrers.add(pair[0]);
+            referred.add(pair[1]);
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(SEED_PAIRS_SQL)) {
+            pstmt.setArray(1, uuids.createArray(conn, referrers));
+            pstmt.setArray(2, uuids.createArray(conn, referred));
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Adds freshly inserted log rows to every rollup row of their players, as one UPDATE after locking
+     * the rows in key order. Call in the transaction that inserted the rows.
+     */
+    static void apply(Connection conn, UuidBinding uuids, Deltas deltas) throws SQLException {
+        if (deltas.byPlayer.isEmpty()) {
+            return;
+        }
+        int size = deltas.byPlayer.size();
+        List<UUID> players = new ArrayList<>(size);
+        BigDecimal[] sol = new BigDecimal[size];
+        Long[] mine = new Long[size];
+        Long[] transactions = new Long[size];
+        int i = 0;
+        for (Map.Entry<UUID, Delta> entry : deltas.byPlayer.entrySet()) {
+            players.add(entry.getKey());
+            sol[i] = entry.getValue().sol;
+            mine[i] = entry.getValue().mine;
+            transactions[i] = entry.getValue().transactions;
+            i++;
+        }
+        // Concurrent writers lock the rollup rows in the same order, so overlapping batches can't deadlock
+        try (PreparedStatement lock = conn.prepareStatement(LOCK_SQL)) {
+            lock.setArray(1, uuids.createArray(conn, players));
+            lock.executeQuery().close();
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(APPLY_SQL)) {
+            pstmt.setArray(1, uuids.createArray(conn, players));
+            pstmt.setArray(2, conn.createArrayOf("numeric", sol));
+            pstmt.setArray(3, conn.createArrayOf("int8", mine));
+            pstmt.setArray(4, conn.createArrayOf("int8", transactions));
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Moves the totals of a transaction_logs partition that is about to be dropped into the archived_* columns.
+     * Call in the transaction that drops the partition.
+     */
+    static void archive(Connection conn, String partition) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            statement.executeUpdate("UPDATE referral_stats rs SET " +
+                    "archived_sol_claimed = rs.archived_sol_claimed + a.sol, " +
+                    "archived_mine_claimed = rs.archived_mine_claimed + a.mine, " +
+                    "archived_transactions = rs.archived_transactions + a.transactions " +
+                    "FROM (SELECT tl.player_uuid, " + AGGREGATES + " FROM " + partition + " tl GROUP BY tl.player_uuid) a(player_uuid, sol, mine, transactions) " +
+                    "WHERE rs.referred_uuid = a.player_uuid;");
+        }
+    }
+
+    /**
+     * Compares every rollup row with the log history and adds rows for referrals that have none.
+     * Must be called on a connection in auto-commit mode.
+     * @param repair recompute drifted rows and insert missing ones; false only counts them
+     * @return the number of pairs that were missing or out of sync
+     */
+    static int check(Connection conn, UuidBinding uuids, boolean repair) throws SQLException {
+        int outOfSync;
+        if (repair) {
+            try (Statement statement = conn.createStatement()) {
+                outOfSync = statement.executeUpdate(INSERT_MISSING_SQL);
+            }
+        } else {
+            String countMissingSql = "SELECT COUNT(*) FROM (SELECT DISTINCT r.referrer_uuid, r.referred_uuid FROM ref_logs r " +
+                                     "WHERE NOT EXISTS (SELECT 1 FROM referral_stats s WHERE s.referrer_uuid = r.referrer_uuid AND s.referred_uuid = r.referred_uuid)) missing;";
+            try (Statement statement = conn.createStatement();
+                 ResultSet rs = statement.executeQuery(countMissingSql)) {
+                outOfSync = rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+
+        // One statement, one snapshot: log rows and their rollup update commit together, so in-flight writes never show up as drift
+        List<UUID[]> drifted = new ArrayList<>();
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery(DRIFT_SQL)) {
+            while (rs.next()) {
+                drifted.add(new UUID[]{uuids.read(rs, "referrer_uuid"), uuids.read(rs, "referred_uuid")});
+            }
+        }
+        outOfSync += drifted.size();
+        if (!repair || drifted.isEmpty()) {
+            return outOfSync;
+        }
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement lock = conn.prepareStatement("SELECT 1 FROM referral_stats WHERE referrer_uuid = ? AND referred_uuid = ? FOR UPDATE;");
+             PreparedStatement recompute = conn.prepareStatement(RECOMPUTE_SQL)) {
+            for (UUID[] pair : drifted) {
+                // Lock first: writers hold the row until they commit, so the recompute's snapshot,
+                // taken after the lock is granted, contains every log row already counted in the row
+                uuids.bind(lock, 1, pair[0]);
+                uuids.bind(lock, 2, pair[1]);
+                lock.executeQuery().close();
+
+                uuids.bind(recompute, 1, pair[1]);
+                uuids.bind(recompute, 2, pair[0]);
+                uuids.bind(recompute, 3, pair[1]);
+                recompute.executeUpdate();
+                conn.commit();
+            }
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        return outOfSync;
+    }
+
+    /**
+     * Per-player totals of a set of log rows, built while the rows are buffered.
+     */
+    static final class Deltas {
+        // Same player order as BalanceCredits and DeltaAccumulator
+        private final Map<UUID, Delta> byPlayer = new TreeMap<>(Comparator.comparing(UUID::toString));
+
+        void add(UUID playerUUID, String status, long amount, BigDecimal solAmount, int entryCount) {
+            Delta delta = byPlayer.computeIfAbsent(playerUUID, uuid -> new Delta());
+            delta.transactions += entryCount;
+            if ("SUCCESS".equals(status)) {
+                delta.mine += amount;
+                if (solAmount != null) {
+                    delta.sol = delta.sol.add(solAmount);
+                }
+            }
+        }
+    }
+
+    private static final class Delta {
+        BigDecimal sol = BigDecimal.ZERO;
+        long mine;
+        long transactions;
+    }
+}
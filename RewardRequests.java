@@ -0,0 +1,59 @@
+package com.minepath.login.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * Idempotency keys of reward and commission calls, kept in {@code reward_requests}.
+ *
+ * A keyed call claims its key with an insert in the same transaction that applies the reward, so the key
+ * commits exactly when the reward does. A second call with the same key finds the row and does nothing;
+ * one that races the first blocks on the unique index until the first commits (duplicate) or rolls back
+ * (it proceeds). Keys are kept for a retention window and then purged, so callers must not retry
+ * older requests.
+ */
+final class RewardRequests {
+
+    private static final String CLAIM_SQL = "INSERT INTO reward_requests (request_key, operation, player_uuid) VALUES (?, ?, ?) " +
+                                            "ON CONFLICT (request_key) DO NOTHING;";
+    private static final String PURGE_SQL = "DELETE FROM reward_requests WHERE request_key IN (" +
+                                            "SELECT request_key FROM reward_requests " +
+                                            "WHERE created_at < (now() at time zone 'utc') - make_interval(hours => ?) LIMIT ?);";
+    private static final int PURGE_CHUNK = 10000;
+
+    private RewardRequests() {
+    }
+
+    /**
+     * Claims a key inside the caller's transaction.
+     * @return false if the key was already used, in which case the caller must apply nothing
+     */
+    static boolean claim(Connection conn, UuidBinding uuids, String requestKey, String operation, UUID playerUUID) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(CLAIM_SQL)) {
+            pstmt.setString(1, requestKey);
+            pstmt.setString(2, operation);
+            uuids.bind(pstmt, 3, playerUUID);
+            return pstmt.executeUpdate() == 1;
+        }
+    }
+
+    /**
+     * Deletes keys older than the retention, one chunk per statement. Must be called in auto-commit mode.
+     * @return the number of keys deleted
+     */
+    static int purge(Connection conn, int retentionHours) throws SQLException {
+        int purged = 0;
+        try (PreparedStatement pstmt = conn.prepareStatement(PURGE_SQL)) {
+            pstmt.setInt(1, retentionHours);
+            pstmt.setInt(2, PURGE_CHUNK);
+            int deleted;
+            do {
+                deleted = pstmt.executeUpdate();
+                purged += deleted;
+            } while (deleted == PURGE_CHUNK);
+        }
+        return purged;
+    }
+}
@@ -0,0 +1,120 @@
+package com.minepath.login.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Startup check that every hot DatabaseManager lookup can use an index.
+ *
+ * Each query is EXPLAINed with sample parameters and {@code enable_seqscan} turned off, so the planner
+ * only picks a sequential scan when no usable index exists. That keeps small or freshly created tables,
+ * where a seq scan is genuinely cheaper, from producing false warnings.
+ * The queries mirror the WHERE clauses in DatabaseManager; keep them in sync when a lookup changes.
+ */
+final class SchemaAdvisor {
+
+    private static final UUID SAMPLE_UUID = new UUID(0L, 0L);
+
+    private SchemaAdvisor() {
+    }
+
+    /**
+     * @return one warning per query whose plan still contains a sequential scan
+     */
+    static List<String> check(Connection conn, UuidBinding uuids) throws SQLException {
+        List<Check> checks = new ArrayList<>();
+        checks.add(new Check("player row by uuid (profile, balances)",
+                "SELECT mine_balance FROM players WHERE uuid = ?",
+                pstmt -> uuids.bind(pstmt, 1, SAMPLE_UUID)));
+        checks.add(new Check("getPlayerByRefCode / isRefCodeExists",
+                "SELECT uuid FROM players WHERE ref_code = ?",
+                pstmt -> pstmt.setString(1, "AAAAAA")));
+        checks.add(new Check("getPlayerUUIDBySolanaAddress",
+                "SELECT uuid FROM players WHERE solana_address = ?",
+                pstmt -> pstmt.setString(1, "sample")));
+        checks.add(new Check("referral downline by referred_by",
+                "SELECT uuid FROM players WHERE referred_by = ?",
+                pstmt -> uuids.bind(pstmt, 1, SAMPLE_UUID)));
+        checks.add(new Check("batch referral lookup by uuid = ANY",
+                "SELECT uuid, referred_by, commission_rate FROM players WHERE uuid = ANY(?)",
+                pstmt -> pstmt.setArray(1, uuids.createArray(conn, Collections.singletonList(SAMPLE_UUID)))));
+        checks.add(new Check("getUpgradeLevel",
+                "SELECT upgrade_speed FROM mine_to_earn WHERE player_uuid = ?",
+                pstmt -> uuids.bind(pstmt, 1, SAMPLE_UUID)));
+        checks.add(new Check("getRefLogsByReferrer",
+                "SELECT referred_uuid FROM ref_logs WHERE referrer_uuid = ? ORDER BY created_at DESC",
+                pstmt -> uuids.bind(pstmt, 1, SAMPLE_UUID)));
+        checks.add(new Check("getTransactionLogs",
+                "SELECT id FROM transaction_logs WHERE player_uuid = ? ORDER BY created_at DESC, id DESC LIMIT 50",
+                pstmt -> uuids.bind(pstmt, 1, SAMPLE_UUID)));
+        checks.add(new Check("getReferralStats / getTotalSolClaimedByReferrals",
+                "SELECT referred_uuid, total_sol_claimed FROM referral_stats WHERE referrer_uuid = ?",
+                pstmt -> uuids.bind(pstmt, 1, SAMPLE_UUID)));
+        checks.add(new Check("referral_stats update by transaction log writers",
+                "SELECT referrer_uuid FROM referral_stats WHERE referred_uuid = ?",
+                pstmt -> uuids.bind(pstmt, 1, SAMPLE_UUID)));
+
+        List<String> warnings = new ArrayList<>();
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("SET LOCAL enable_seqscan = off;");
+            }
+            for (Check check : checks) {
+                String seqScan = findSeqScan(conn, check);
+                if (seqScan != null) {
+                    warnings.add(check.label + " plans a sequential scan (" + seqScan + "); an index is missing.");
+                }
+            }
+        } finally {
+            conn.rollback();
+            conn.setAutoCommit(autoCommit);
+        }
+        return warnings;
+    }
+
+    /**
+     * @return the first "Seq Scan on ..." plan line, or null if the plan has none
+     */
+    private static String findSeqScan(Connection conn, Check check) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("EXPLAIN " + check.sql)) {
+            check.binder.bind(pstmt);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    String line = rs.getString(1).trim();
+                    int at = line.indexOf("Seq Scan on ");
+                    if (at >= 0) {
+                        int end = line.indexOf("  (", at);
+                        return end > at ? line.substring(at, end) : line.substring(at);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    @FunctionalInterface
+    private interface Binder {
+        void bind(PreparedStatement pstmt) throws SQLException;
+    }
+
+    private static final class Check {
+        final String label;
+        final String sql;
+        final Binder binder;
+
+        Check(String label, String sql, Binder binder) {
+            this.label = label;
+            this.sql = sql;
+            this.binder = binder;
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package com.minepath.login.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Versioned schema migrations for the plugin's tables.
+ *
+ * The applied version is stored in {@code schema_version}; startup on an up-to-date schema costs a single
+ * query. Pending migrations run in order under a session advisory lock, so several game servers starting
+ * at once apply each step exactly once. Every step runs in its own transaction and records its version in
+ * the same commit, except steps that build indexes CONCURRENTLY, which cannot run inside a transaction;
+ * those are written to be safe to re-run and record their version right after they finish.
+ *
+ * Add new steps at the end of {@link #registerMigrations()} with the next version number. Never edit or
+ * renumber a step that has shipped.
+ */
+final class SchemaMigrator {
+
+    // Arbitrary constant shared by every server using this database ("MinePath" in ASCII)
+    static final long ADVISORY_LOCK_KEY = 0x4D696E6550617468L;
+    private static final String UNDEFINED_TABLE = "42P01";
+
+    static final String REFERRAL_GRAPH_NOTIFY_FUNCTION_SQL = "CREATE OR REPLACE FUNCTION minepath_notify_referral_graph() RETURNS trigger AS $$ BEGIN " +
+            "IF TG_OP = 'DELETE' THEN PERFORM pg_notify('" + ReferralGraphCache.NOTIFY_CHANNEL + "', OLD.uuid::text); " +
+            "ELSE PERFORM pg_notify('" + ReferralGraphCache.NOTIFY_CHANNEL + "', NEW.uuid::text); END IF; " +
+            "RETURN NULL; END $$ LANGUAGE plpgsql;";
+    static final String REFERRAL_GRAPH_UPDATE_TRIGGER_SQL = "DO $$ BEGIN IF NOT EXISTS (SELECT 1 FROM pg_trigger WHERE tgname = 'trg_players_referral_graph_update') THEN " +
+            "CREATE TRIGGER trg_players_referral_graph_update AFTER UPDATE OF referred_by, commission_rate ON players FOR EACH ROW " +
+            "WHEN (OLD.referred_by IS DISTINCT FROM NEW.referred_by OR OLD.commission_rate IS DISTINCT FROM NEW.commission_rate) " +
+            "EXECUTE FUNCTION minepath_notify_referral_graph(); END IF; END $$;";
+    static final String REFERRAL_GRAPH_DELETE_TRIGGER_SQL = "DO $$ BEGIN IF NOT EXISTS (SELECT 1 FROM pg_trigger WHERE tgname = 'trg_players_referral_graph_delete') THEN " +
+            "CREATE TRIGGER trg_players_referral_graph_delete AFTER DELETE ON players FOR EACH ROW " +
+            "EXECUTE FUNCTION minepath_notify_referral_graph(); END IF; END $$;";
+    static final String REFERRAL_GRAPH_INSERT_TRIGGER_SQL = "DO $$ BEGIN IF NOT EXISTS (SELECT 1 FROM pg_trigger WHERE tgname = 'trg_players_referral_graph_insert') THEN " +
+            "CREATE TRIGGER trg_players_referral_graph_insert AFTER INSERT ON players FOR EACH ROW " +
+            "EXECUTE FUNCTION minepath_notify_referral_graph(); END IF; END $$;";
+
+    // Migration 6's backfill as shipped: it runs before migration 8 adds entry_count, so it counts rows
+    // instead of using ReferralStatsRollup's aggregates, which sum entry_count
+    private static final String REFERRAL_STATS_BACKFILL_SQL = "INSERT INTO referral_stats (referrer_uuid, referred_uuid, total_sol_claimed, total_mine_claimed, total_transactions) " +
+            "SELECT rl.referrer_uuid, rl.referred_uuid, " +
+            "COALESCE(SUM(CASE WHEN tl.status = 'SUCCESS' AND tl.sol_amount IS NOT NULL THEN tl.sol_amount ELSE 0 END), 0), " +
+            "COALESCE(SUM(CASE WHEN tl.status = 'SUCCESS' THEN tl.amount ELSE 0 END), 0), " +
+            "COUNT(tl.id) " +
+            "FROM (SELECT DISTINCT r.referrer_uuid, r.referred_uuid FROM ref_logs r " +
+            "WHERE NOT EXISTS (SELECT 1 FROM referral_stats s WHERE s.referrer_uuid = r.referrer_uuid AND s.referred_uuid = r.referred_uuid)) rl " +
+            "LEFT JOIN transaction_logs tl ON tl.player_uuid = rl.referred_uuid " +
+            "GROUP BY rl.referrer_uuid, rl.referred_uuid " +
+            "ON CONFLICT (referrer_uuid, referred_uuid) DO NOTHING;";
+
+    private final Logger logger;
+    private final boolean concurrentIndexes;
+    private final UuidBinding uuids;
+    private final List<Migration> migrations = new ArrayList<>();
+
+    /**
+     * @param concurrentIndexes build indexes on existing tables with CREATE INDEX CONCURRENTLY
+     * @param uuids how the existing player keys are stored; new tables use the same column type
+     */
+    SchemaMigrator(Logger logger, boolean concurrentIndexes, UuidBinding uuids) {
+        this.logger = logger;
+        this.concurrentIndexes = concurrentIndexes;
+        this.uuids = uuids;
+        registerMigrations();
+    }
+
+    private void registerMigrations() {
+        // Everything createTable() used to run on every boot. Idempotent, so it also brings
+        // installations from any earlier plugin version up to date.
+        add(1, "baseline schema", true, conn -> execute(conn,
+                "CREATE TABLE IF NOT EXISTS players (" +
+                        "uuid VARCHAR(36) PRIMARY KEY," +
+                        "password VARCHAR(255) NOT NULL" +
+                        ");",
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS fystack_wallet_id VARCHAR(255);",
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS solana_address VARCHAR(255);",
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS mine_balance BIGINT NOT NULL DEFAULT 0;",
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS sol_balance NUMERIC(38, 18) NOT NULL DEFAULT 0.0;",
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS last_login TIMESTAMPTZ;",
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS username VARCHAR(16);",
+
+                // Referral system columns
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS ref_code VARCHAR(6);",
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS referred_by VARCHAR(36);", // UUID of referrer
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS total_ref_reward BIGINT NOT NULL DEFAULT 0;",
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS total_referred INTEGER NOT NULL DEFAULT 0;", // F1 only
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS all_referred INTEGER NOT NULL DEFAULT 0;", // F1 + F2 + F3 + ... (all levels)
+
+                // Role and Commission Rate Columns
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS role VARCHAR(10) NOT NULL DEFAULT 'USER';",
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS commission_rate DOUBLE PRECISION NOT NULL DEFAULT 0.3;",
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS sol_fee_share DOUBLE PRECISION NOT NULL DEFAULT 0.0;",
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS total_sol_share NUMERIC(38, 18) NOT NULL DEFAULT 0.0;",
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS managed_by_uuid VARCHAR(36) NULL;",
+                "ALTER TABLE players ADD COLUMN IF NOT EXISTS total_payout NUMERIC(38, 18) NOT NULL DEFAULT 0.0;",
+                "DO $$ BEGIN IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'fk_managed_by') THEN ALTER TABLE players ADD CONSTRAINT fk_managed_by FOREIGN KEY (managed_by_uuid) REFERENCES players(uuid) ON DELETE SET NULL; END IF; END $$;",
+
+                // Create mine_to_earn table for player upgrades
+                "CREATE TABLE IF NOT EXISTS mine_to_earn (" +
+                        "player_uuid VARCHAR(36) PRIMARY KEY," +
+                        "upgrade_speed INTEGER NOT NULL DEFAULT 0," +
+                        "upgrade_inventory INTEGER NOT NULL DEFAULT 0," +
+                        "upgrade_reset_cooldown INTEGER NOT NULL DEFAULT 0," +
+                        "upgrade_passive_income INTEGER NOT NULL DEFAULT 0," +
+                        "upgrade_mining_area INTEGER NOT NULL DEFAULT 0," +
+                        "FOREIGN KEY (player_uuid) REFERENCES players(uuid) ON DELETE CASCADE" +
+                        ");",
+
+                // Create ref_logs table - Lưu lịch sử referral
+                "CREATE TABLE IF NOT EXISTS ref_logs (" +
+                        "id SERIAL PRIMARY KEY," +
+                        "referrer_uuid VARCHAR(36) NOT NULL," +
+                        "referred_uuid VARCHAR(36) NOT NULL," +
+                        "ref_code VARCHAR(6) NOT NULL," +
+                        "created_at TIMESTAMPTZ NOT NULL DEFAULT (now() at time zone 'utc')," +
+                        "FOREIGN KEY (referrer_uuid) REFERENCES players(uuid) ON DELETE CASCADE," +
+                        "FOREIGN KEY (referred_uuid) REFERENCES players(uuid) ON DELETE CASCADE" +
+                        ");",
+
+                // Create transaction_logs table - Lưu lịch sử giao dịch SOL
+                "CREATE TABLE IF NOT EXISTS transaction_logs (" +
+                        "id SERIAL PRIMARY KEY," +
+                        "player_uuid VARCHAR(36) NOT NULL," +
+                        "transaction_type VARCHAR(50) NOT NULL," +
+                        "method VARCHAR(50) NOT NULL," +
+                        "amount BIGINT NOT NULL," +
+                        "sol_amount DECIMAL(20, 9)," +
+                        "transaction_hash VARCHAR(255)," +
+                        "status VARCHAR(20) NOT NULL DEFAULT 'PENDING'," +
+                        "source_player_uuid VARCHAR(36)," + // Who generated this transaction (for commissions)
+                        "created_at TIMESTAMPTZ NOT NULL DEFAULT (now() at time zone 'utc')," +
+                        "FOREIGN KEY (player_uuid) REFERENCES players(uuid) ON DELETE CASCADE," +
+                        "FOREIGN KEY (source_player_uuid) REFERENCES players(uuid) ON DELETE SET NULL" + // Set null if source player is deleted
+                        ");",
+                // Add source_player_uuid to transaction_logs if it doesn't exist (for existing databases)
+                "ALTER TABLE transaction_logs ADD COLUMN IF NOT EXISTS source_player_uuid VARCHAR(36) NULL;",
+                "DO $$ BEGIN IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'fk_source_player') THEN ALTER TABLE transaction_logs ADD CONSTRAINT fk_source_player FOREIGN KEY (source_player_uuid) REFERENCES players(uuid) ON DELETE SET NULL; END IF; END $$;",
+
+                // Create commission_logs table - Lưu lịch sử payout SOL cho KOL (sử dụng ngoài plugin)
+                "CREATE TABLE IF NOT EXISTS commission_logs (" +
+                        "id SERIAL PRIMARY KEY," +
+                        "kol_uuid VARCHAR(36)," +
+                        "amount NUMERIC(38, 18) NOT NULL," +
+                        "asset VARCHAR(16) NOT NULL DEFAULT 'SOL'," +
+                        "method VARCHAR(50)," +
+                        "tx_hash VARCHAR(255)," +
+                        "paid_by VARCHAR(36)," +
+                        "note TEXT," +
+                        "status VARCHAR(20) NOT NULL DEFAULT 'SUCCESS'," +
+                        "created_at TIMESTAMPTZ NOT NULL DEFAULT (now() at time zone 'utc')" +
+                        ");",
+
+                // Create indexes for better query performance
+                "CREATE INDEX IF NOT EXISTS idx_ref_logs_referrer ON ref_logs(referrer_uuid);",
+                "CREATE INDEX IF NOT EXISTS idx_ref_logs_referred ON ref_logs(referred_uuid);",
+                "CREATE INDEX IF NOT EXISTS idx_ref_logs_created_at ON ref_logs(created_at);",
+                "CREATE INDEX IF NOT EXISTS idx_transaction_logs_player ON transaction_logs(player_uuid);",
+                "CREATE INDEX IF NOT EXISTS idx_transaction_logs_method ON transaction_logs(method);",
+                "CREATE INDEX IF NOT EXISTS idx_transaction_logs_created_at ON transaction_logs(created_at);",
+                "CREATE INDEX IF NOT EXISTS idx_transaction_logs_source_player ON transaction_logs(source_player_uuid);",
+                // Indexes for commission_logs
+                "CREATE INDEX IF NOT EXISTS idx_commission_logs_kol ON commission_logs(kol_uuid);",
+                "CREATE INDEX IF NOT EXISTS idx_commission_logs_created_at ON commission_logs(created_at);",
+                "CREATE INDEX IF NOT EXISTS idx_commission_logs_status ON commission_logs(status);"));
+
+        // For existing installations created before sol_balance was NUMERIC(38, 18). Only rewrites the
+        // table when the type actually differs, instead of on every boot.
+        add(2, "sol_balance as NUMERIC(38, 18)", true, conn -> {
+            String sql = "SELECT data_type, numeric_precision, numeric_scale FROM information_schema.columns " +
+                         "WHERE table_schema = current_schema() AND table_name = 'players' AND column_name = 'sol_balance';";
+            boolean upToDate;
+            try (Statement statement = conn.createStatement();
+                 ResultSet rs = statement.executeQuery(sql)) {
+                upToDate = !rs.next() || ("numeric".equals(rs.getString("data_type"))
+                        && rs.getInt("numeric_precision") == 38 && rs.getInt("numeric_scale") == 18);
+            }
+            if (!upToDate) {
+                execute(conn, "ALTER TABLE players ALTER COLUMN sol_balance TYPE NUMERIC(38, 18) USING sol_balance::NUMERIC(38, 18);");
+            }
+        });
+
+        // Notify the plugin's referral graph cache when referred_by / commission_rate change outside of it
+        add(3, "referral graph change notifications", true, conn -> execute(conn,
+                REFERRAL_GRAPH_NOTIFY_FUNCTION_SQL,
+                REFERRAL_GRAPH_UPDATE_TRIGGER_SQL,
+                REFERRAL_GRAPH_DELETE_TRIGGER_SQL));
+
+        // Lookup indexes for ref_code, solana_address and referred_by
+        add(4, "players lookup indexes", false, conn -> {
+            if (hasDuplicateRefCodes(conn)) {
+                logger.warning("players.ref_code has duplicate values, using a non-unique index. " +
+                        "Fix the duplicates and create idx_players_ref_code (UNIQUE, WHERE ref_code IS NOT NULL) by hand.");
+                createIndex(conn, "idx_players_ref_code_lookup", "ON players(ref_code) WHERE ref_code IS NOT NULL", false);
+            } else {
+                createIndex(conn, "idx_players_ref_code", "ON players(ref_code) WHERE ref_code IS NOT NULL", true);
+            }
+            createIndex(conn, "idx_players_solana_address", "ON players(solana_address) WHERE solana_address IS NOT NULL", false);
+            createIndex(conn, "idx_players_referred_by", "ON players(referred_by) WHERE referred_by IS NOT NULL", false);
+        });
+
+        // Keyset pagination of a player's history; also serves every player_uuid lookup, so it replaces idx_transaction_logs_player
+        add(5, "transaction_logs history index", false, conn -> {
+            createIndex(conn, "idx_transaction_logs_player_created", "ON transaction_logs(player_uuid, created_at DESC, id DESC)", false);
+            execute(conn, "DROP INDEX " + (concurrentIndexes ? "CONCURRENTLY " : "") + "IF EXISTS idx_transaction_logs_player;");
+        });
+
+        // Per-referral totals for the referral dashboard, maintained by ReferralStatsRollup, backfilled from the logs
+        add(6, "referral_stats rollup", true, conn -> execute(conn,
+                "CREATE TABLE IF NOT EXISTS referral_stats (" +
+                        "referrer_uuid " + uuids.columnType + " NOT NULL," +
+                        "referred_uuid " + uuids.columnType + " NOT NULL," +
+                        "total_sol_claimed NUMERIC(38, 18) NOT NULL DEFAULT 0," +
+                        "total_mine_claimed BIGINT NOT NULL DEFAULT 0," +
+                        "total_transactions BIGINT NOT NULL DEFAULT 0," +
+                        "PRIMARY KEY (referrer_uuid, referred_uuid)," +
+                        "FOREIGN KEY (referrer_uuid) REFERENCES players(uuid) ON DELETE CASCADE," +
+                        "FOREIGN KEY (referred_uuid) REFERENCES players(uuid) ON DELETE CASCADE" +
+                        ");",
+                // Log writers update the rollup by the player the rows belong to
+                "CREATE INDEX IF NOT EXISTS idx_referral_stats_referred ON referral_stats(referred_uuid);",
+                REFERRAL_STATS_BACKFILL_SQL));
+
+        // Totals of transaction_logs partitions dropped by retention, so the rollup check can tell them from drift
+        add(7, "referral_stats archived totals", true, conn -> execute(conn,
+                "ALTER TABLE referral_stats ADD COLUMN IF NOT EXISTS archived_sol_claimed NUMERIC(38, 18) NOT NULL DEFAULT 0;",
+                "ALTER TABLE referral_stats ADD COLUMN IF NOT EXISTS archived_mine_claimed BIGINT NOT NULL DEFAULT 0;",
+                "ALTER TABLE referral_stats ADD COLUMN IF NOT EXISTS archived_transactions BIGINT NOT NULL DEFAULT 0;"));
+
+        // Number of credits a row stands for; ledger mode writes one row per player, method and source per interval.
+        // Every existing row stands for one credit, so rollup counts taken with COUNT(tl.id) already equal SUM(entry_count)
+        add(8, "transaction_logs entry_count", true, conn -> execute(conn,
+                "ALTER TABLE transaction_logs ADD COLUMN IF NOT EXISTS entry_count INTEGER NOT NULL DEFAULT 1;"));
+
+        // Append-only credits for hot accounts, merged into players by BalanceCredits so payouts don't queue on one row lock
+        add(9, "pending_credits", true, conn -> execute(conn,
+                "CREATE TABLE IF NOT EXISTS pending_credits (" +
+                        "id BIGSERIAL PRIMARY KEY," +
+                        "player_uuid " + uuids.columnType + " NOT NULL," +
+                        "mine_delta BIGINT NOT NULL DEFAULT 0," +
+                        "ref_reward_delta BIGINT NOT NULL DEFAULT 0," +
+                        "created_at TIMESTAMPTZ NOT NULL DEFAULT (now() at time zone 'utc')," +
+                        "FOREIGN KEY (player_uuid) REFERENCES players(uuid) ON DELETE CASCADE" +
+                        ");",
+                "CREATE INDEX IF NOT EXISTS idx_pending_credits_player ON pending_credits(player_uuid);"));
+
+        // Closure table of the referral tree, maintained by DatabaseManager through ReferralAncestry, backfilled from referred_by
+        add(10, "referral_ancestry closure table", true, conn -> execute(conn,
+                "CREATE TABLE IF NOT EXISTS referral_ancestry (" +
+                        "ancestor_uuid " + uuids.columnType + " NOT NULL," +
+                        "descendant_uuid " + uuids.columnType + " NOT NULL," +
+                        "depth INTEGER NOT NULL," +
+                        "PRIMARY KEY (descendant_uuid, ancestor_uuid)," +
+                        "FOREIGN KEY (ancestor_uuid) REFERENCES players(uuid) ON DELETE CASCADE," +
+                        "FOREIGN KEY (descendant_uuid) REFERENCES players(uuid) ON DELETE CASCADE" +
+                        ");",
+                // Downline lookups, optionally cut at a depth; ancestor chains use the primary key
+                "CREATE INDEX IF NOT EXISTS idx_referral_ancestry_ancestor ON referral_ancestry(ancestor_uuid, depth);",
+                ReferralAncestry.BACKFILL_SQL));
+
+        // Idempotency keys of reward calls, see RewardRequests; no foreign key so a key outlives a deleted player
+        add(11, "reward_requests", true, conn -> execute(conn,
+                "CREATE TABLE IF NOT EXISTS reward_requests (" +
+                        "request_key VARCHAR(128) PRIMARY KEY," +
+                        "operation VARCHAR(32) NOT NULL," +
+                        "player_uuid " + uuids.columnType + " NOT NULL," +
+                        "created_at TIMESTAMPTZ NOT NULL DEFAULT (now() at time zone 'utc')" +
+                        ");",
+                "CREATE INDEX IF NOT EXISTS idx_reward_requests_created_at ON reward_requests(created_at);"));
+
+        // A referrer cached as having no players row must be re-read once another writer inserts it
+        add(12, "referral graph insert notifications", true, conn -> execute(conn,
+                REFERRAL_GRAPH_INSERT_TRIGGER_SQL));
+    }
+
+    /**
+     * Brings the schema up to date.
+     * Must be called on a connection in auto-commit mode.
+     * @return the number of migrations applied, 0 if the schema already was current
+     */
+    int migrate(Connection conn) throws SQLException {
+        int latest = migrations.get(migrations.size() - 1).version;
+        if (currentVersion(conn) >= latest) {
+            return 0;
+        }
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(true);
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("SELECT pg_advisory_lock(" + ADVISORY_LOCK_KEY + ");");
+            try {
+                statement.execute("CREATE TABLE IF NOT EXISTS schema_version (" +
+                        "version INTEGER PRIMARY KEY," +
+                        "description VARCHAR(255) NOT NULL," +
+                        "applied_at TIMESTAMPTZ NOT NULL DEFAULT now()" +
+                        ");");
+                // Another server may have migrated while this one waited for the lock
+                int current = currentVersion(conn);
+                int applied = 0;
+                for (Migration migration : migrations) {
+                    if (migration.version > current) {
+                        apply(conn, migration);
+                        applied++;
+                    }
+                }
+                return applied;
+            } finally {
+                statement.execute("SELECT pg_advisory_unlock(" + ADVISORY_LOCK_KEY + ");");
+            }
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private void apply(Connection conn, Migration migration) throws SQLException {
+        long started = System.nanoTime();
+        if (migration.transactional) {
+            conn.setAutoCommit(false);
+            try {
+                migration.step.apply(conn);
+                recordVersion(conn, migration);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw new SQLException("Schema migration " + migration.version + " (" + migration.description + ") failed: " + e.getMessage(), e);
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } else {
+            try {
+                migration.step.apply(conn);
+                recordVersion(conn, migration);
+            } catch (SQLException e) {
+                throw new SQLException("Schema migration " + migration.version + " (" + migration.description + ") failed: " + e.getMessage(), e);
+            }
+        }
+        logger.info("Applied schema migration " + migration.version + " (" + migration.description + ") in "
+                + (System.nanoTime() - started) / 1_000_000 + " ms.");
+    }
+
+    /**
+     * @return the highest applied version, 0 on a database that has never been migrated
+     */
+    private static int currentVersion(Connection conn) throws SQLException {
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version;")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            if (UNDEFINED_TABLE.equals(e.getSQLState())) {
+                return 0;
+            }
+            throw e;
+        }
+    }
+
+    private static void recordVersion(Connection conn, Migration migration) throws SQLException {
+        String sql = "INSERT INTO schema_version (version, description) VALUES (?, ?) ON CONFLICT (version) DO NOTHING;";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, migration.version);
+            pstmt.setString(2, migration.description);
+            pstmt.executeUpdate();
+        }
+    }
+
+    private static void execute(Connection conn, String... statements) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    /**
+     * Creates the index unless a valid one with that name exists. An invalid index left behind by an
+     * interrupted CONCURRENTLY build is dropped and rebuilt, since IF NOT EXISTS would keep it forever.
+     * Only for non-transactional steps when concurrent builds are on.
+     */
+    private void createIndex(Connection conn, String name, String definition, boolean unique) throws SQLException {
+        Boolean valid = indexValidity(conn, name);
+        if (Boolean.TRUE.equals(valid)) {
+            return;
+        }
+        if (valid != null) {
+            logger.warning("Rebuilding invalid index " + name + ".");
+            execute(conn, "DROP INDEX " + (concurrentIndexes ? "CONCURRENTLY " : "") + "IF EXISTS " + name + ";");
+        }
+        execute(conn, "CREATE " + (unique ? "UNIQUE " : "") + "INDEX " + (concurrentIndexes ? "CONCURRENTLY " : "") +
+                "IF NOT EXISTS " + name + " " + definition + ";");
+    }
+
+    /**
+     * @return whether the index is valid, or null if it does not exist
+     */
+    private static Boolean indexValidity(Connection conn, String name) throws SQLException {
+        String sql = "SELECT i.indisvalid FROM pg_class c JOIN pg_index i ON i.indexrelid = c.oid " +
+                     "WHERE c.relname = ? AND c.relnamespace = current_schema()::regnamespace;";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, name);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getBoolean(1) : null;
+            }
+        }
+    }
+
+    private static boolean hasDuplicateRefCodes(Connection conn) throws SQLException {
+        String sql = "SELECT 1 FROM players WHERE ref_code IS NOT NULL GROUP BY ref_code HAVING COUNT(*) > 1 LIMIT 1;";
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery(sql)) {
+            return rs.next();
+        }
+    }
+
+    private void add(int version, String description, boolean transactional, Step step) {
+        if (!migrations.isEmpty() && migrations.get(migrations.size() - 1).version >= version) {
+            throw new IllegalStateException("Schema migrations must be registered in increasing version order: " + version);
+        }
+        migrations.add(new Migration(version, description, transactional, step));
+    }
+
+    @FunctionalInterface
+    interface Step {
+        void apply(Connection conn) throws SQLException;
+    }
+
+    private static final class Migration {
+        final int version;
+        final String description;
+        final boolean transactional;
+        final Step step;
+
+        Migration(int version, String description, boolean transactional, Step step) {
+            this.version = version;
+            this.description = description;
+            this.transactional = transactional;
+            this.step = step;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.minepath.login.db;
+
+import org.postgresql.PGConnection;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Buffers transaction_logs rows for one unit of work and writes them with a single
+ * executeBatch (or one COPY for large batches) on the caller's connection, so the log rows commit or roll back together
+ * with the balance changes they describe. The flush also updates the referral_stats rollup
+ * ({@link ReferralStatsRollup}) for the same rows.
+ *
+ * In ledger mode, rows the {@link LedgerAggregator} accepts are held back instead of written, and
+ * handed to the aggregator by {@link #committed()} once the caller's transaction has committed.
+ */
+final class TransactionLogBatch {
+
+    static final String INSERT_SQL = "INSERT INTO transaction_logs (player_uuid, transaction_type, method, amount, sol_amount, transaction_hash, status, source_player_uuid, entry_count) " +
+                                     "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?);";
+    static final String COPY_SQL = "COPY transaction_logs (player_uuid, transaction_type, method, amount, sol_amount, transaction_hash, status, source_player_uuid, entry_count) " +
+                                   "FROM STDIN WITH (FORMAT csv);";
+    // Below this many rows the batched INSERT is as fast and needs no CSV encoding
+    private static final int COPY_THRESHOLD = 100;
+
+    private final UuidBinding uuids;
+    private final LedgerAggregator ledger; // null unless ledger mode is enabled
+    private final List<Row> rows = new ArrayList<>();
+    // Rows for the ledger, kept until the caller's transaction commits
+    private final List<Row> deferred = new ArrayList<>();
+    // Every player a row was added for, kept across flushes for post-commit cache invalidation
+    private final Set<UUID> playerUUIDs = new LinkedHashSet<>();
+
+    TransactionLogBatch(UuidBinding uuids) {
+        this(uuids, null);
+    }
+
+    TransactionLogBatch(UuidBinding uuids, LedgerAggregator ledger) {
+        this.uuids = uuids;
+        this.ledger = ledger;
+    }
+
+    void add(UUID playerUUID, String transactionType, String method, long amount, BigDecimal solAmount,
+             String transactionHash, String status, UUID sourcePlayerUUID) {
+        add(playerUUID, transactionType, method, amount, solAmount, transactionHash, status, sourcePlayerUUID, 1);
+    }
+
+    /**
+     * @param entryCount how many credits the row stands for; more than 1 only for ledger aggregates
+     */
+    void add(UUID playerUUID, String transactionType, String method, long amount, BigDecimal solAmount,
+             String transactionHash, String status, UUID sourcePlayerUUID, int entryCount) {
+        Row row = new Row(playerUUID, transactionType, method, amount, solAmount, transactionHash, status, sourcePlayerUUID, entryCount);
+        if (ledger != null && LedgerAggregator.accepts(transactionType, method, solAmount, transactionHash, status)) {
+            deferred.add(row);
+        } else {
+            rows.add(row);
+        }
+        playerUUIDs.add(playerUUID);
+    }
+
+    /**
+     * Hands the rows held back for the ledger to the aggregator. Call right after the caller's transaction commits.
+     */
+    void committed() {
+        for (Row row : deferred) {
+            ledger.add(row.playerUUID, row.method, row.sourcePlayerUUID, row.amount, row.entryCount);
+        }
+        deferred.clear();
+    }
+
+    /**
+     * Drops the queued rows of players that turned out to have no players row; the foreign key would reject them.
+     */
+    void discard(Collection<UUID> missingPlayers) {
+        if (missingPlayers.isEmpty()) {
+            return;
+        }
+        rows.removeIf(row -> missingPlayers.contains(row.playerUUID));
+        deferred.removeIf(row -> missingPlayers.contains(row.playerUUID));
+        playerUUIDs.removeAll(missingPlayers);
+    }
+
+    /**
+     * @return every player a row was added for since this batch was created, including flushed rows
+     */
+    Set<UUID> playerUUIDs() {
+        return playerUUIDs;
+    }
+
+    boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    int size() {
+        return rows.size();
+    }
+
+    /**
+     * Writes every buffered row and its referral_stats delta on the given connection and clears the buffer.
+     * Does not commit; the caller owns the transaction.
+     * @return the number of rows written
+     */
+    int flush(Connection conn) throws SQLException {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        ReferralStatsRollup.Deltas deltas = new ReferralStatsRollup.Deltas();
+        for (Row row : rows) {
+            deltas.add(row.playerUUID, row.status, row.amount, row.solAmount, row.entryCount);
+        }
+        if (rows.size() >= COPY_THRESHOLD) {
+            copy(conn);
+        } else {
+            insert(conn);
+        }
+        ReferralStatsRollup.apply(conn, uuids, deltas);
+
+        int written = rows.size();
+        rows.clear();
+        return written;
+    }
+
+    private void insert(Connection conn) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(INSERT_SQL)) {
+            for (Row row : rows) {
+                uuids.bind(pstmt, 1, row.playerUUID);
+                pstmt.setString(2, row.transactionType);
+                pstmt.setString(3, row.method);
+                pstmt.setLong(4, row.amount);
+
+                if (row.solAmount != null) {
+                    pstmt.setBigDecimal(5, row.solAmount);
+                } else {
+                    pstmt.setNull(5, Types.DECIMAL);
+                }
+
+                if (row.transactionHash != null) {
+                    pstmt.setString(6, row.transactionHash);
+                } else {
+                    pstmt.setNull(6, Types.VARCHAR);
+                }
+
+                pstmt.setString(7, row.status);
+
+                uuids.bind(pstmt, 8, row.sourcePlayerUUID);
+                pstmt.setInt(9, row.entryCount);
+
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+    }
+
+    /**
+     * Streams the rows with COPY FROM STDIN, which skips the per-row bind and executor overhead of INSERT.
+     * Runs in the caller's transaction like the INSERT path.
+     */
+    private void copy(Connection conn) throws SQLException {
+        StringBuilder csv = new StringBuilder(rows.size() * 160);
+        for (Row row : rows) {
+            CopyCsv.appendRecord(csv, row.copyFields());
+        }
+        try {
+            conn.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_SQL, new StringReader(csv.toString()));
+        } catch (IOException e) {
+            throw new SQLException("COPY into transaction_logs failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static final class Row {
+        final UUID playerUUID;
+        final String transactionType;
+        final String method;
+        final long amount;
+        final BigDecimal solAmount;
+        final String transactionHash;
+        final String status;
+        final UUID sourcePlayerUUID;
+        final int entryCount;
+
+        Row(UUID playerUUID, String transactionType, String method, long amount, BigDecimal solAmount,
+            String transactionHash, String status, UUID sourcePlayerUUID, int entryCount) {
+            this.playerUUID = playerUUID;
+            this.transactionType = transactionType;
+            this.method = method;
+            this.amount = amount;
+            this.solAmount = solAmount;
+            this.transactionHash = transactionHash;
+            this.status = status;
+            this.sourcePlayerUUID = sourcePlayerUUID;
+            this.entryCount = entryCount;
+        }
+
+        /** In {@link #COPY_SQL} column order. */
+        String[] copyFields() {
+            return new String[]{
+                    playerUUID.toString(), transactionType, method, Long.toString(amount),
+                    solAmount != null ? solAmount.toPlainString() : null, transactionHash, status,
+                    sourcePlayerUUID != null ? sourcePlayerUUID.toString() : null, Integer.toString(entryCount)
+            };
+        }
+    }
+}
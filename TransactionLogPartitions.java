@@ -0,0 +1,334 @@
+package com.minepath.login.db;
+
+import org.postgresql.PGConnection;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opt-in monthly range partitioning of transaction_logs on created_at.
+ *
+ * {@link #convert} turns the existing table into the first partition, transaction_logs_legacy, covering
+ * everything before a month boundary. The expensive parts (the unique index the new primary key needs and
+ * the range check that lets ATTACH PARTITION skip its scan) are built beforehand without blocking writes,
+ * so the exclusive lock is only held for catalog changes.
+ *
+ * {@link #maintain} keeps partitions created a few months ahead and, when a retention is configured,
+ * exports partitions that ended before the cut-off to gzip-compressed CSV files and then drops them.
+ * Their totals are folded into referral_stats first (see {@link ReferralStatsRollup#archive}).
+ */
+final class TransactionLogPartitions {
+
+    // Conversion and maintenance from several servers must not interleave
+    private static final long LOCK_KEY = SchemaMigrator.ADVISORY_LOCK_KEY + 1;
+    static final String LEGACY_PARTITION = "transaction_logs_legacy";
+    private static final String LEGACY_RANGE_CHECK = "transaction_logs_legacy_range";
+    private static final String LEGACY_KEY_INDEX = "transaction_logs_legacy_id_created_at";
+
+    // The indexes of the partitioned table; the legacy table's copies are renamed and attached to them
+    private static final String[][] INDEXES = {
+            {"idx_transaction_logs_player_created", "(player_uuid, created_at DESC, id DESC)"},
+            {"idx_transaction_logs_method", "(method)"},
+            {"idx_transaction_logs_created_at", "(created_at)"},
+            {"idx_transaction_logs_source_player", "(source_player_uuid)"}
+    };
+
+    private final Logger logger;
+    private final int monthsAhead;
+    private final int retentionMonths;
+    private final File archiveDirectory;
+
+    /**
+     * @param monthsAhead how many months after the current one always have a partition
+     * @param retentionMonths full months of history kept besides the current one; 0 keeps everything
+     * @param archiveDirectory where dropped partitions are exported
+     */
+    TransactionLogPartitions(Logger logger, int monthsAhead, int retentionMonths, File archiveDirectory) {
+        this.logger = logger;
+        this.monthsAhead = Math.max(1, monthsAhead);
+        this.retentionMonths = Math.max(0, retentionMonths);
+        this.archiveDirectory = archiveDirectory;
+    }
+
+    static boolean isPartitioned(Connection conn) throws SQLException {
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT relkind FROM pg_class WHERE oid = to_regclass('transaction_logs');")) {
+            return rs.next() && "p".equals(rs.getString(1));
+        }
+    }
+
+    /**
+     * Converts transaction_logs into a partitioned table, unless it already is one.
+     * Must be called on a connection in auto-commit mode.
+     * @return true if the table was converted by this call
+     */
+    boolean convert(Connection conn) throws SQLException {
+        if (isPartitioned(conn)) {
+            return false;
+        }
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("SELECT pg_advisory_lock(" + LOCK_KEY + ");");
+            try {
+                if (isPartitioned(conn)) {
+                    return false;
+                }
+                // Leaves this and next month to the legacy partition, so the range check holds until the swap
+                YearMonth firstMonth = YearMonth.now(ZoneOffset.UTC).plusMonths(2);
+                String boundary = literal(firstMonth);
+                long started = System.nanoTime();
+
+                // Both run next to normal traffic: a concurrent index build and a check validated under SHARE UPDATE EXCLUSIVE
+                statement.execute("SET lock_timeout = '30s';");
+                try {
+                    if (Boolean.FALSE.equals(indexValidity(conn, LEGACY_KEY_INDEX))) {
+                        statement.execute("DROP INDEX CONCURRENTLY IF EXISTS " + LEGACY_KEY_INDEX + ";");
+                    }
+                    statement.execute("CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS " + LEGACY_KEY_INDEX + " ON transaction_logs(id, created_at);");
+                    statement.execute("ALTER TABLE transaction_logs DROP CONSTRAINT IF EXISTS " + LEGACY_RANGE_CHECK + ";");
+                    statement.execute("ALTER TABLE transaction_logs ADD CONSTRAINT " + LEGACY_RANGE_CHECK +
+                            " CHECK (created_at IS NOT NULL AND created_at < " + boundary + ") NOT VALID;");
+                    statement.execute("ALTER TABLE transaction_logs VALIDATE CONSTRAINT " + LEGACY_RANGE_CHECK + ";");
+                } finally {
+                    statement.execute("RESET lock_timeout;");
+                }
+
+                try {
+                    swap(conn, boundary);
+                } catch (SQLException e) {
+                    // Left on the unpartitioned table, the check would reject inserts once the boundary passes
+                    statement.execute("ALTER TABLE transaction_logs DROP CONSTRAINT IF EXISTS " + LEGACY_RANGE_CHECK + ";");
+                    throw e;
+                }
+                logger.info("Converted transaction_logs to monthly partitions in " + (System.nanoTime() - started) / 1_000_000 +
+                        " ms; rows before " + firstMonth + " stay in " + LEGACY_PARTITION + ".");
+                return true;
+            } finally {
+                statement.execute("SELECT pg_advisory_unlock(" + LOCK_KEY + ");");
+            }
+        }
+    }
+
+    private void swap(Connection conn, String boundary) throws SQLException {
+        conn.setAutoCommit(false);
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("SET LOCAL lock_timeout = '30s';");
+            String primaryKey = null;
+            try (ResultSet rs = statement.executeQuery("SELECT conname FROM pg_constraint WHERE conrelid = 'transaction_logs'::regclass AND contype = 'p';")) {
+                if (rs.next()) {
+                    primaryKey = rs.getString(1);
+                }
+            }
+            String sequence = null;
+            try (ResultSet rs = statement.executeQuery("SELECT pg_get_serial_sequence('transaction_logs', 'id');")) {
+                if (rs.next()) {
+                    sequence = rs.getString(1);
+                }
+            }
+
+            statement.execute("ALTER TABLE transaction_logs RENAME TO " + LEGACY_PARTITION + ";");
+            // A partition can't keep a primary key of its own; the (id, created_at) index built above is attached under the new one
+            if (primaryKey != null) {
+                statement.execute("ALTER TABLE " + LEGACY_PARTITION + " DROP CONSTRAINT \"" + primaryKey + "\";");
+            }
+            // Index names are schema-wide, so the legacy copies make way for the partitioned ones
+            for (String[] index : INDEXES) {
+                statement.execute("ALTER INDEX IF EXISTS " + index[0] + " RENAME TO " + index[0] + "_legacy;");
+            }
+
+            statement.execute("CREATE TABLE transaction_logs (LIKE " + LEGACY_PARTITION + " INCLUDING DEFAULTS) PARTITION BY RANGE (created_at);");
+            statement.execute("ALTER TABLE transaction_logs ADD PRIMARY KEY (id, created_at);");
+            statement.execute("ALTER TABLE transaction_logs ADD FOREIGN KEY (player_uuid) REFERENCES players(uuid) ON DELETE CASCADE;");
+            statement.execute("ALTER TABLE transaction_logs ADD CONSTRAINT fk_source_player FOREIGN KEY (source_player_uuid) REFERENCES players(uuid) ON DELETE SET NULL;");
+            for (String[] index : INDEXES) {
+                statement.execute("CREATE INDEX " + index[0] + " ON transaction_logs " + index[1] + ";");
+            }
+            // The legacy partition may be dropped by retention one day; the id sequence must outlive it
+            if (sequence != null) {
+                statement.execute("ALTER SEQUENCE " + sequence + " OWNED BY transaction_logs.id;");
+            }
+
+            // Matching indexes and foreign keys on the legacy table are attached instead of rebuilt
+            statement.execute("ALTER TABLE transaction_logs ATTACH PARTITION " + LEGACY_PARTITION + " FOR VALUES FROM (MINVALUE) TO (" + boundary + ");");
+            statement.execute("ALTER TABLE " + LEGACY_PARTITION + " DROP CONSTRAINT " + LEGACY_RANGE_CHECK + ";");
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Creates missing future partitions and retires partitions past the retention.
+     * Skips the run if another server is already maintaining. Must be called on a connection in auto-commit mode.
+     * @return the number of partitions created plus the number dropped
+     */
+    int maintain(Connection conn) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            try (ResultSet rs = statement.executeQuery("SELECT pg_try_advisory_lock(" + LOCK_KEY + ");")) {
+                if (!rs.next() || !rs.getBoolean(1)) {
+                    return 0;
+                }
+            }
+            try {
+                return createAhead(conn) + retire(conn);
+            } finally {
+                statement.execute("SELECT pg_advisory_unlock(" + LOCK_KEY + ");");
+            }
+        }
+    }
+
+    private int createAhead(Connection conn) throws SQLException {
+        Instant coveredUntil = null;
+        for (Partition partition : partitions(conn)) {
+            if (partition.upperBound != null && (coveredUntil == null || partition.upperBound.isAfter(coveredUntil))) {
+                coveredUntil = partition.upperBound;
+            }
+        }
+        YearMonth current = YearMonth.now(ZoneOffset.UTC);
+        YearMonth month = coveredUntil != null ? YearMonth.from(coveredUntil.atOffset(ZoneOffset.UTC)) : current;
+        if (month.isBefore(current)) {
+            month = current;
+        }
+        int created = 0;
+        try (Statement statement = conn.createStatement()) {
+            for (; !month.isAfter(current.plusMonths(monthsAhead)); month = month.plusMonths(1)) {
+                statement.execute("CREATE TABLE IF NOT EXISTS " + partitionName(month) + " PARTITION OF transaction_logs " +
+                        "FOR VALUES FROM (" + literal(month) + ") TO (" + literal(month.plusMonths(1)) + ");");
+                created++;
+            }
+        }
+        if (created > 0) {
+            logger.info("Created " + created + " transaction_logs partitions up to " + current.plusMonths(monthsAhead) + ".");
+        }
+        return created;
+    }
+
+    private int retire(Connection conn) throws SQLException {
+        if (retentionMonths == 0) {
+            return 0;
+        }
+        Instant cutoff = YearMonth.now(ZoneOffset.UTC).minusMonths(retentionMonths).atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant();
+        int dropped = 0;
+        for (Partition partition : partitions(conn)) {
+            if (partition.upperBound == null || partition.upperBound.isAfter(cutoff)) {
+                continue;
+            }
+            File archive;
+            try {
+                archive = export(conn, partition.name);
+            } catch (IOException e) {
+                logger.severe("Could not archive transaction_logs partition " + partition.name + ", keeping it: " + e.getMessage());
+                continue;
+            }
+
+            conn.setAutoCommit(false);
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("SET LOCAL lock_timeout = '30s';");
+                ReferralStatsRollup.archive(conn, partition.name);
+                statement.execute("ALTER TABLE transaction_logs DETACH PARTITION " + partition.name + ";");
+                statement.execute("DROP TABLE " + partition.name + ";");
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            logger.info("Archived transaction_logs partition " + partition.name + " to " + archive.getPath() + " and dropped it.");
+            dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * Writes the partition as gzip-compressed CSV with a header row, through a temporary file so a failed
+     * export never leaves a truncated archive behind.
+     */
+    private File export(Connection conn, String partition) throws SQLException, IOException {
+        if (!archiveDirectory.isDirectory() && !archiveDirectory.mkdirs()) {
+            throw new IOException("cannot create " + archiveDirectory.getPath());
+        }
+        File archive = new File(archiveDirectory, partition + ".csv.gz");
+        File temporary = new File(archiveDirectory, partition + ".csv.gz.tmp");
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(temporary), 1 << 16)) {
+            conn.unwrap(PGConnection.class).getCopyAPI()
+                    .copyOut("COPY " + partition + " TO STDOUT WITH (FORMAT csv, HEADER);", out);
+        } catch (SQLException | IOException e) {
+            Files.deleteIfExists(temporary.toPath());
+            throw e;
+        }
+        Files.move(temporary.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return archive;
+    }
+
+    /**
+     * @return every partition with its upper bound
+     */
+    private static List<Partition> partitions(Connection conn) throws SQLException {
+        String sql = "SELECT c.relname, " +
+                     "substring(pg_get_expr(c.relpartbound, c.oid) from 'TO \\(''([^'']+)''\\)')::timestamptz AS upper_bound " +
+                     "FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+                     "WHERE i.inhparent = 'transaction_logs'::regclass ORDER BY upper_bound;";
+        List<Partition> partitions = new ArrayList<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(sql);
+             ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                Timestamp upper = rs.getTimestamp("upper_bound");
+                partitions.add(new Partition(rs.getString("relname"), upper != null ? upper.toInstant() : null));
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * @return whether the index is valid, or null if it does not exist
+     */
+    private static Boolean indexValidity(Connection conn, String name) throws SQLException {
+        String sql = "SELECT i.indisvalid FROM pg_class c JOIN pg_index i ON i.indexrelid = c.oid " +
+                     "WHERE c.relname = ? AND c.relnamespace = current_schema()::regnamespace;";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, name);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getBoolean(1) : null;
+            }
+        }
+    }
+
+    private static String partitionName(YearMonth month) {
+        return String.format(Locale.ROOT, "transaction_logs_%04d_%02d", month.getYear(), month.getMonthValue());
+    }
+
+    private static String literal(YearMonth month) {
+        return "'" + month.atDay(1) + " 00:00:00+00'";
+    }
+
+    private static final class Partition {
+        final String name;
+        final Instant upperBound;
+
+        Partition(String name, Instant upperBound) {
+            this.name = name;
+            this.upperBound = upperBound;
+        }
+    }
+}
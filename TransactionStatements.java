@@ -0,0 +1,61 @@
+package com.minepath.login.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Prepared statements of one unit of work on one connection, keyed by SQL text.
+ *
+ * Loops that run the same statement once per referral level prepare it once here and reuse it, instead of
+ * allocating and closing a statement every iteration; batched updates go through {@link PreparedStatement#addBatch()}
+ * on the shared statement. Statements stay open until {@link #close()}, which the owner calls when the
+ * transaction is done, before the connection goes back to the pool.
+ */
+final class TransactionStatements implements AutoCloseable {
+
+    private final Connection conn;
+    private final Map<String, PreparedStatement> statements = new LinkedHashMap<>();
+
+    TransactionStatements(Connection conn) {
+        this.conn = conn;
+    }
+
+    Connection connection() {
+        return conn;
+    }
+
+    /**
+     * @return the statement for this SQL, prepared on first use; callers bind every parameter and must not close it
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement pstmt = statements.get(sql);
+        if (pstmt == null) {
+            pstmt = conn.prepareStatement(sql);
+            statements.put(sql, pstmt);
+        }
+        return pstmt;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        SQLException failure = null;
+        for (PreparedStatement pstmt : statements.values()) {
+            try {
+                pstmt.close();
+            } catch (SQLException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        statements.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
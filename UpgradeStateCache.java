@@ -0,0 +1,115 @@
+package com.minepath.login.db;
+
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Upgrade levels of online players. Entries are only created by explicit loads (join, server start,
+ * chunk load) and removed on quit; there is no TTL since mine_to_earn is only written through this plugin.
+ *
+ * Statements and loads run outside any lock; only the cache updates take the per-stripe lock. Each one
+ * compares the stripe's version with the one taken before it read, the same versioning as
+ * {@link PlayerProfileCache}. A write that finds another write or a removal finished while its statement ran
+ * can't tell which row is newer, so it marks the player stale instead of caching its own row. A stale player
+ * stays loaded but misses in {@link #get} until a later write or {@link #refresh} caches a row again.
+ */
+final class UpgradeStateCache {
+
+    private static final int STRIPES = 64;
+    // Cached for a loaded player whose row may be older than the database; never handed out
+    private static final DatabaseManager.UpgradeState STALE = new DatabaseManager.UpgradeState(0, 0, 0, 0, 0);
+
+    private final ConcurrentHashMap<UUID, DatabaseManager.UpgradeState> states = new ConcurrentHashMap<>();
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+    private final Object[] locks = new Object[STRIPES];
+
+    UpgradeStateCache() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return the cached state, or null if the player is not loaded or marked stale
+     */
+    DatabaseManager.UpgradeState get(UUID uuid) {
+        DatabaseManager.UpgradeState state = states.get(uuid);
+        return state != STALE ? state : null;
+    }
+
+    long version(UUID uuid) {
+        return versions.get(stripe(uuid));
+    }
+
+    /**
+     * Caches a freshly loaded state, unless a write for the player's stripe happened since {@code version} was taken.
+     */
+    void put(UUID uuid, DatabaseManager.UpgradeState state, long version) {
+        synchronized (locks[stripe(uuid)]) {
+            if (versions.get(stripe(uuid)) == version) {
+                states.put(uuid, state);
+            }
+        }
+    }
+
+    /**
+     * Caches a state read after {@link #get} missed, if the player is marked stale and nothing was written
+     * for the player's stripe since {@code version} was taken.
+     */
+    void refresh(UUID uuid, DatabaseManager.UpgradeState state, long version) {
+        synchronized (locks[stripe(uuid)]) {
+            if (versions.get(stripe(uuid)) == version) {
+                states.computeIfPresent(uuid, (key, cached) -> cached == STALE ? state : cached);
+            }
+        }
+    }
+
+    /**
+     * Runs a write and caches the state it returns, if the player is loaded.
+     * @return the state returned by the write
+     */
+    DatabaseManager.UpgradeState write(UUID uuid, Write write) throws SQLException {
+        long version = versions.get(stripe(uuid));
+        DatabaseManager.UpgradeState state;
+        try {
+            state = write.run();
+        } catch (SQLException e) {
+            // The statement may or may not have committed
+            synchronized (locks[stripe(uuid)]) {
+                versions.incrementAndGet(stripe(uuid));
+                states.computeIfPresent(uuid, (key, cached) -> STALE);
+            }
+            throw e;
+        }
+        synchronized (locks[stripe(uuid)]) {
+            boolean newest = versions.getAndIncrement(stripe(uuid)) == version;
+            states.computeIfPresent(uuid, (key, cached) -> newest ? state : STALE);
+        }
+        return state;
+    }
+
+    void remove(UUID uuid) {
+        synchronized (locks[stripe(uuid)]) {
+            versions.incrementAndGet(stripe(uuid));
+            states.remove(uuid);
+        }
+    }
+
+    int size() {
+        return states.size();
+    }
+
+    private static int stripe(UUID uuid) {
+        return uuid.hashCode() & (STRIPES - 1);
+    }
+
+    /**
+     * A single-statement write that returns the player's whole mine_to_earn row afterwards.
+     */
+    @FunctionalInterface
+    interface Write {
+        DatabaseManager.UpgradeState run() throws SQLException;
+    }
+}
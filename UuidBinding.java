@@ -0,0 +1,102 @@
+package com.minepath.login.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * How player UUIDs are stored, and therefore how they are bound and read.
+ *
+ * Installations created before the native uuid migration keep every key in VARCHAR(36) and bind strings.
+ * After {@link NativeUuidMigration} has run, keys are PostgreSQL {@code uuid} and are bound as
+ * {@link UUID} objects, which the driver sends as 16 bytes without building a String per bind.
+ */
+enum UuidBinding {
+
+    VARCHAR("VARCHAR(36)", "varchar") {
+        @Override
+        void bind(PreparedStatement pstmt, int index, UUID uuid) throws SQLException {
+            if (uuid != null) {
+                pstmt.setString(index, uuid.toString());
+            } else {
+                pstmt.setNull(index, Types.VARCHAR);
+            }
+        }
+
+        @Override
+        UUID read(ResultSet rs, String column) throws SQLException {
+            String value = rs.getString(column);
+            return value != null ? UUID.fromString(value) : null;
+        }
+
+        @Override
+        Object arrayElement(UUID uuid) {
+            return uuid.toString();
+        }
+    },
+
+    NATIVE("UUID", "uuid") {
+        @Override
+        void bind(PreparedStatement pstmt, int index, UUID uuid) throws SQLException {
+            if (uuid != null) {
+                pstmt.setObject(index, uuid);
+            } else {
+                pstmt.setNull(index, Types.OTHER);
+            }
+        }
+
+        @Override
+        UUID read(ResultSet rs, String column) throws SQLException {
+            return rs.getObject(column, UUID.class);
+        }
+
+        @Override
+        Object arrayElement(UUID uuid) {
+            return uuid;
+        }
+    };
+
+    /** Column type for new UUID columns, so they match the existing keys. */
+    final String columnType;
+    /** Element type name for {@link Connection#createArrayOf}. */
+    final String arrayType;
+
+    UuidBinding(String columnType, String arrayType) {
+        this.columnType = columnType;
+        this.arrayType = arrayType;
+    }
+
+    abstract void bind(PreparedStatement pstmt, int index, UUID uuid) throws SQLException;
+
+    abstract UUID read(ResultSet rs, String column) throws SQLException;
+
+    abstract Object arrayElement(UUID uuid);
+
+    /**
+     * @return an array parameter for {@code = ANY(?)} lookups against UUID columns
+     */
+    java.sql.Array createArray(Connection conn, Collection<UUID> uuids) throws SQLException {
+        Object[] elements = new Object[uuids.size()];
+        int i = 0;
+        for (UUID uuid : uuids) {
+            elements[i++] = arrayElement(uuid);
+        }
+        return conn.createArrayOf(arrayType, elements);
+    }
+
+    /**
+     * @return NATIVE if players.uuid is a PostgreSQL uuid column, otherwise VARCHAR (also when the table does not exist yet)
+     */
+    static UuidBinding detect(Connection conn) throws SQLException {
+        String sql = "SELECT data_type FROM information_schema.columns " +
+                     "WHERE table_schema = current_schema() AND table_name = 'players' AND column_name = 'uuid';";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql);
+             ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() && "uuid".equals(rs.getString("data_type")) ? NATIVE : VARCHAR;
+        }
+    }
+}
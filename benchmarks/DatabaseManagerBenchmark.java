@@ -0,0 +1,213 @@
+package com.minepath.login.db;
+
+import com.minepath.login.MinepathLogin;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * JMH benchmarks for the DatabaseManager hot paths against a throwaway embedded PostgreSQL
+ * (io.zonky.test:embedded-postgres), so results do not depend on a shared database.
+ *
+ * Every trial starts a fresh PostgreSQL, runs createTable() and seeds {@link Database#players} players
+ * arranged in referral chains of {@link Database#chainDepth} levels, all hanging off one KOL, with their
+ * ref_logs rows and a few transaction_logs rows each. Each benchmark runs in two modes: Throughput (ops/s)
+ * and SampleTime (latency percentiles, p99 included).
+ *
+ * This file is not part of the plugin build. benchmarks/pom.xml compiles it together with the plugin's database
+ * sources into a self-contained JMH jar. Embedded PostgreSQL refuses to run as root, so run it as a normal user:
+ * <pre>
+ * mvn -f benchmarks/pom.xml package
+ * java -jar benchmarks/target/benchmarks.jar DatabaseManagerBenchmark -rf json -rff db-bench.json
+ * java -jar benchmarks/target/benchmarks.jar DatabaseManagerBenchmark.batchAddPassiveIncome -p batchSize=1000 -p strategy=iterative
+ * </pre>
+ * Keep the JSON files next to each release to compare them run to run; summaries of past runs are in benchmarks/RESULTS.md.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class DatabaseManagerBenchmark {
+
+    // With the 0.9 rate, large enough that every chain level still earns a non-zero commission
+    private static final long COMMISSION_BASE_AMOUNT = 1_000_000_000_000L;
+    private static final double SEEDED_COMMISSION_RATE = 0.9;
+
+    @State(Scope.Benchmark)
+    public static class Database {
+
+        @Param({"10000"})
+        public int players;
+
+        @Param({"1", "10", "50"})
+        public int chainDepth;
+
+        @Param({"iterative", "recursive_cte"})
+        public String strategy;
+
+        // Off measures the chain walks against the database, where per-level statement reuse matters
+        @Param({"true", "false"})
+        public boolean referralCache;
+
+        EmbeddedPostgres postgres;
+        DatabaseManager databaseManager;
+        final List<UUID> uuids = new ArrayList<>();
+        // Deepest player of every chain, so commission walks cover the whole chain
+        final List<UUID> leaves = new ArrayList<>();
+        // Direct referrer of every chain top, the heaviest getReferralStats case
+        UUID kol;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            postgres = EmbeddedPostgres.start();
+
+            YamlConfiguration config = new YamlConfiguration();
+            config.set("database.host", "localhost");
+            config.set("database.port", postgres.getPort());
+            config.set("database.database", "postgres");
+            config.set("database.user", "postgres");
+            config.set("database.password", "postgres");
+            config.set("database.commission-strategy", strategy);
+            config.set("database.referral-cache.enabled", referralCache);
+            config.set("database.metrics.slow-query-ms", 0);
+
+            Logger logger = Logger.getLogger("DatabaseManagerBenchmark");
+            logger.setLevel(java.util.logging.Level.WARNING);
+            MinepathLogin plugin = mock(MinepathLogin.class);
+            when(plugin.getConfig()).thenReturn(config);
+            when(plugin.getLogger()).thenReturn(logger);
+
+            databaseManager = new DatabaseManager(plugin);
+            databaseManager.connect();
+            databaseManager.createTable();
+            seed();
+            databaseManager.reloadReferralGraph();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            databaseManager.disconnect();
+            postgres.close();
+        }
+
+        private void seed() throws Exception {
+            String sql = "INSERT INTO players (uuid, username, password, referred_by, commission_rate, ref_code) VALUES (?, ?, ?, ?, ?, ?);";
+            try (Connection conn = databaseManager.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                conn.setAutoCommit(false);
+                kol = UUID.randomUUID();
+                addPlayer(pstmt, kol, "benchkol", null, "kol");
+                UUID previous = kol;
+                for (int i = 0; i < players; i++) {
+                    UUID uuid = UUID.randomUUID();
+                    addPlayer(pstmt, uuid, "bench" + i, i % chainDepth == 0 ? kol : previous, Integer.toString(i, 36));
+                    uuids.add(uuid);
+                    if (i % chainDepth == chainDepth - 1 || i == players - 1) {
+                        leaves.add(uuid);
+                    }
+                    previous = uuid;
+                }
+                pstmt.executeBatch();
+                conn.commit();
+            }
+
+            try (Connection conn = databaseManager.getConnection();
+                 Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("INSERT INTO ref_logs (referrer_uuid, referred_uuid, ref_code) " +
+                        "SELECT p.referred_by, p.uuid, r.ref_code FROM players p JOIN players r ON r.uuid = p.referred_by;");
+                stmt.executeUpdate("INSERT INTO transaction_logs (player_uuid, transaction_type, method, amount, status, source_player_uuid) " +
+                        "SELECT p.uuid, 'IN', 'MINING', 1000, 'SUCCESS', p.uuid FROM players p, generate_series(1, 5);");
+                stmt.execute("ANALYZE;");
+            }
+        }
+
+        private void addPlayer(PreparedStatement pstmt, UUID uuid, String username, UUID referredBy, String refCode) throws java.sql.SQLException {
+            pstmt.setString(1, uuid.toString());
+            pstmt.setString(2, username);
+            pstmt.setString(3, "x");
+            pstmt.setString(4, referredBy != null ? referredBy.toString() : null);
+            pstmt.setDouble(5, SEEDED_COMMISSION_RATE);
+            pstmt.setString(6, refCode);
+            pstmt.addBatch();
+        }
+
+        UUID randomLeaf() {
+            return leaves.get(ThreadLocalRandom.current().nextInt(leaves.size()));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class PassiveIncome {
+
+        @Param({"100", "1000", "5000"})
+        public int batchSize;
+
+        Map<UUID, Integer> incomeMap;
+
+        @Setup(Level.Trial)
+        public void setUp(Database database) {
+            incomeMap = new HashMap<>();
+            // Spread the batch over the chains so it touches leaves as well as their ancestors
+            int step = Math.max(1, database.uuids.size() / batchSize);
+            for (int i = 0; i < database.uuids.size() && incomeMap.size() < batchSize; i += step) {
+                incomeMap.put(database.uuids.get(i), 10_000);
+            }
+        }
+    }
+
+    @Benchmark
+    public void addMineBalanceWithCommission(Database database) {
+        database.databaseManager.addMineBalanceWithCommission(database.randomLeaf(), COMMISSION_BASE_AMOUNT);
+    }
+
+    @Benchmark
+    public void batchAddPassiveIncome(Database database, PassiveIncome passiveIncome) {
+        database.databaseManager.batchAddPassiveIncome(passiveIncome.incomeMap);
+    }
+
+    @Benchmark
+    public boolean registerPlayerWithReferral(Database database) {
+        // Registers under the deepest player, so all_referred is updated along the whole chain
+        UUID referrer = database.randomLeaf();
+        return database.databaseManager.registerPlayerWithReferral(UUID.randomUUID(), "benchnew", "x", referrer, "bench");
+    }
+
+    @Benchmark
+    public void getReferralStats(Database database, Blackhole blackhole) {
+        blackhole.consume(database.databaseManager.getReferralStats(database.kol));
+    }
+
+    @Benchmark
+    public void getTransactionLogs(Database database, Blackhole blackhole) {
+        blackhole.consume(database.databaseManager.getTransactionLogs(database.randomLeaf(), 50));
+    }
+}
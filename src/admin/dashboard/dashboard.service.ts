@@ -31,8 +31,13 @@ export class DashboardService {
       .andWhere("log.method IN ('MINING', 'PASSIVE_INCOME', 'REFERRAL_REWARD')")
       .getRawOne();
 
-    // 3. Total Claims - Count of 'MINING' transactions
-    const totalClaims = await this.transactionLogRepository.count({ where: { method: 'MINING' } });
+    // 3. Total Claims - Count of 'MINING' transactions (entry_count, so ledger-mode aggregates count every claim)
+    const { totalClaims: totalClaimsRaw } = await this.transactionLogRepository
+      .createQueryBuilder('log')
+      .select('COALESCE(SUM(log.entryCount), 0)', 'totalClaims')
+      .where("log.method = 'MINING'")
+      .getRawOne();
+    const totalClaims = Number(totalClaimsRaw);
 
     // 4. Active Players (24h)
     const activePlayers = await this.playerRepository.count({ where: { lastLogin: MoreThan(twentyFourHoursAgo) } });
@@ -21,20 +21,12 @@ export class KolsService {
     private refLogRepository: Repository<RefLog>,
   ) {}
 
-  private getRecursiveReferralsQuery(kolUuid: string) {
-    return `
-      WITH RECURSIVE referral_chain AS (
-        SELECT uuid
-        FROM players
-        WHERE referred_by = '${kolUuid}'
-        UNION ALL
-        SELECT p.uuid
-        FROM players p
-        INNER JOIN referral_chain rc ON p.referred_by = rc.uuid
-      )
-      SELECT uuid FROM referral_chain;
-    `;
-  }
+  // Whole downline from the referral_ancestry closure table the plugin maintains; the KOL uuid is bound as $1
+  private readonly downlineQuery = `
+    SELECT descendant_uuid AS uuid
+    FROM referral_ancestry
+    WHERE ancestor_uuid = $1;
+  `;
 
   /**
    * Get KOL statistics for the dashboard
@@ -46,8 +38,7 @@ export class KolsService {
     let maxVolume = -1;
 
     for (const kol of kols) {
-      const referralsQuery = this.getRecursiveReferralsQuery(kol.uuid);
-      const referredUuidsResult = await this.playerRepository.query(referralsQuery);
+      const referredUuidsResult = await this.playerRepository.query(this.downlineQuery, [kol.uuid]);
       if (referredUuidsResult.length === 0) continue;
 
       const referredUuids = referredUuidsResult.map((r: { uuid: string }) => r.uuid);
@@ -119,8 +110,7 @@ export class KolsService {
 
     const kolsWithStats = await Promise.all(
       kols.map(async (kol) => {
-        const referralsQuery = this.getRecursiveReferralsQuery(kol.uuid);
-        const referredUuidsResult = await this.playerRepository.query(referralsQuery);
+        const referredUuidsResult = await this.playerRepository.query(this.downlineQuery, [kol.uuid]);
         const referredUuids = referredUuidsResult.map((r: { uuid: string }) => r.uuid);
 
         let totalVolume = 0;
@@ -163,8 +153,7 @@ export class KolsService {
       throw new NotFoundException('KOL not found');
     }
 
-    const referralsQuery = this.getRecursiveReferralsQuery(uuid);
-    const referredUuidsResult = await this.playerRepository.query(referralsQuery);
+    const referredUuidsResult = await this.playerRepository.query(this.downlineQuery, [uuid]);
     const referredUuids = referredUuidsResult.map((r: { uuid: string }) => r.uuid);
 
     let totalVolume = 0;
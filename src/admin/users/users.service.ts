@@ -82,12 +82,7 @@ export class UsersService {
 
     const data = await Promise.all(
       players.map(async (player) => {
-        const totalClaims = await this.transactionLogRepository.count({
-          where: {
-            playerUuid: player.uuid,
-            method: 'MINING',
-          },
-        });
+        const totalClaims = await this.countMiningClaims(player.uuid);
 
         const volumeResult = await this.transactionLogRepository
           .createQueryBuilder('tx')
@@ -137,12 +132,7 @@ export class UsersService {
       return null;
     }
 
-    const totalClaims = await this.transactionLogRepository.count({
-      where: {
-        playerUuid: uuid,
-        method: 'MINING',
-      },
-    });
+    const totalClaims = await this.countMiningClaims(uuid);
 
     let referredByUsername = null;
     if (player.referredBy) {
@@ -208,6 +198,17 @@ export class UsersService {
     };
   }
 
+  // Ledger-mode rows stand for several claims, so claims are counted by entry_count rather than by row
+  private async countMiningClaims(playerUuid: string): Promise<number> {
+    const { total } = await this.transactionLogRepository
+      .createQueryBuilder('tx')
+      .select('COALESCE(SUM(tx.entryCount), 0)', 'total')
+      .where('tx.playerUuid = :uuid', { uuid: playerUuid })
+      .andWhere("tx.method = 'MINING'")
+      .getRawOne();
+    return Number(total);
+  }
+
   private async buildReferralTree(referrerUuid: string) {
     const referrals = await this.playerRepository.find({
       where: { referredBy: referrerUuid },
@@ -6,7 +6,7 @@ export class CommissionLog {
   @PrimaryGeneratedColumn()
   id: number;
 
-  @Column({ name: 'kol_uuid', type: 'varchar', length: 36, nullable: true })
+  @Column({ name: 'kol_uuid', type: 'uuid', nullable: true })
   kolUuid: string;
 
   @ManyToOne(() => Player)
@@ -25,7 +25,7 @@ export class CommissionLog {
   @Column({ name: 'tx_hash', type: 'varchar', length: 255, nullable: true })
   txHash: string;
 
-  @Column({ name: 'paid_by', type: 'varchar', length: 36, nullable: true })
+  @Column({ name: 'paid_by', type: 'uuid', nullable: true })
   paidBy: string;
 
   @Column({ type: 'text', nullable: true })
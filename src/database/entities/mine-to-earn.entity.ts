@@ -3,7 +3,7 @@ import { Player } from './player.entity';
 
 @Entity('mine_to_earn')
 export class MineToEarn {
-  @PrimaryColumn({ name: 'player_uuid', type: 'varchar', length: 36 })
+  @PrimaryColumn({ name: 'player_uuid', type: 'uuid' })
   playerUuid: string;
 
   @OneToOne(() => Player)
@@ -2,7 +2,7 @@ import { Entity, PrimaryColumn, Column, ManyToOne, JoinColumn, OneToMany, OneToO
 
 @Entity('players')
 export class Player {
-  @PrimaryColumn({ type: 'varchar', length: 36 })
+  @PrimaryColumn({ type: 'uuid' })
   uuid: string;
 
   @Column({ type: 'varchar', length: 16, nullable: true })
@@ -29,7 +29,7 @@ export class Player {
   @Column({ name: 'ref_code', type: 'varchar', length: 6, nullable: true })
   refCode: string;
 
-  @Column({ name: 'referred_by', type: 'varchar', length: 36, nullable: true })
+  @Column({ name: 'referred_by', type: 'uuid', nullable: true })
   referredBy: string;
 
   @Column({ name: 'total_ref_reward', type: 'bigint', default: 0 })
@@ -6,14 +6,14 @@ export class RefLog {
   @PrimaryGeneratedColumn()
   id: number;
 
-  @Column({ name: 'referrer_uuid', type: 'varchar', length: 36 })
+  @Column({ name: 'referrer_uuid', type: 'uuid' })
   referrerUuid: string;
 
   @ManyToOne(() => Player)
   @JoinColumn({ name: 'referrer_uuid' })
   referrer: Player;
 
-  @Column({ name: 'referred_uuid', type: 'varchar', length: 36 })
+  @Column({ name: 'referred_uuid', type: 'uuid' })
   referredUuid: string;
 
   @ManyToOne(() => Player)
@@ -6,7 +6,7 @@ export class TransactionLog {
   @PrimaryGeneratedColumn()
   id: number;
 
-  @Column({ name: 'player_uuid', type: 'varchar', length: 36 })
+  @Column({ name: 'player_uuid', type: 'uuid' })
   playerUuid: string;
 
   @ManyToOne(() => Player)
@@ -31,13 +31,16 @@ export class TransactionLog {
   @Column({ type: 'varchar', length: 20, default: 'PENDING' })
   status: string;
 
-  @Column({ name: 'source_player_uuid', type: 'varchar', length: 36, nullable: true })
+  @Column({ name: 'source_player_uuid', type: 'uuid', nullable: true })
   sourcePlayerUuid: string;
 
   @ManyToOne(() => Player)
   @JoinColumn({ name: 'source_player_uuid' })
   sourcePlayer: Player;
 
+  @Column({ name: 'entry_count', type: 'integer', default: 1 })
+  entryCount: number;
+
   @CreateDateColumn({ name: 'created_at', type: 'timestamptz' })
   createdAt: Date;
 }
@@ -0,0 +1,150 @@
+package com.minepath.login.db;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Converts a populated transaction_logs table, shaped the way {@link SchemaMigrator} leaves it on an
+ * existing installation, and checks that every row, key and foreign key survives the swap.
+ */
+class TransactionLogPartitionsTest {
+
+    private static final int PLAYERS = 50;
+    private static final int MONTHS = 6;
+    private static final Logger LOGGER = Logger.getLogger("TransactionLogPartitionsTest");
+
+    private static EmbeddedPostgres postgres;
+    private static int databases;
+
+    @TempDir
+    File archiveDirectory;
+
+    private Connection conn;
+
+    @BeforeAll
+    static void startPostgres() throws Exception {
+        postgres = EmbeddedPostgres.start();
+    }
+
+    @AfterAll
+    static void stopPostgres() throws Exception {
+        postgres.close();
+    }
+
+    @BeforeEach
+    void createPopulatedDatabase() throws SQLException {
+        String database = "partitions_" + (++databases);
+        try (Connection admin = postgres.getPostgresDatabase().getConnection();
+             Statement statement = admin.createStatement()) {
+            statement.execute("CREATE DATABASE " + database + ";");
+        }
+        conn = postgres.getDatabase("postgres", database).getConnection();
+        new SchemaMigrator(LOGGER, false, UuidBinding.VARCHAR).migrate(conn);
+
+        try (Statement statement = conn.createStatement()) {
+            statement.executeUpdate("INSERT INTO players (uuid, username, password) " +
+                    "SELECT gen_random_uuid()::text, 'player' || i, 'x' FROM generate_series(1, " + PLAYERS + ") i;");
+            // One row per player and month, reaching back before the partitioned months
+            statement.executeUpdate("INSERT INTO transaction_logs (player_uuid, transaction_type, method, amount, status, source_player_uuid, created_at) " +
+                    "SELECT p.uuid, 'IN', 'MINING', 100, 'SUCCESS', p.uuid, now() - make_interval(months => m) " +
+                    "FROM players p, generate_series(0, " + (MONTHS - 1) + ") m;");
+        }
+    }
+
+    @AfterEach
+    void closeConnection() throws SQLException {
+        conn.close();
+    }
+
+    @Test
+    void convertsPopulatedTable() throws SQLException {
+        long maxId = queryLong("SELECT MAX(id) FROM transaction_logs;");
+
+        assertTrue(partitions().convert(conn));
+
+        assertTrue(TransactionLogPartitions.isPartitioned(conn));
+        assertEquals(PLAYERS * MONTHS, queryLong("SELECT COUNT(*) FROM transaction_logs;"));
+        assertEquals(PLAYERS * MONTHS * 100L, queryLong("SELECT SUM(amount) FROM transaction_logs;"));
+        assertEquals(PLAYERS * MONTHS, queryLong("SELECT COUNT(*) FROM " + TransactionLogPartitions.LEGACY_PARTITION + ";"));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM pg_inherits WHERE inhparent = 'transaction_logs'::regclass;"));
+        // The legacy table's own key is gone, the partitioned table's (id, created_at) key covers it
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM pg_constraint WHERE conrelid = '" + TransactionLogPartitions.LEGACY_PARTITION + "'::regclass " +
+                "AND contype = 'p' AND conparentid = 0;"));
+        assertEquals("PRIMARY KEY (id, created_at)", queryString("SELECT pg_get_constraintdef(oid) FROM pg_constraint " +
+                "WHERE conrelid = 'transaction_logs'::regclass AND contype = 'p';"));
+        // The range check only existed to let ATTACH PARTITION skip its scan
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM pg_constraint WHERE conrelid = '" + TransactionLogPartitions.LEGACY_PARTITION + "'::regclass " +
+                "AND contype = 'c';"));
+
+        // New rows keep drawing ids from the old sequence and still go through the player foreign key
+        try (Statement statement = conn.createStatement()) {
+            statement.executeUpdate("INSERT INTO transaction_logs (player_uuid, transaction_type, method, amount, status) " +
+                    "SELECT uuid, 'IN', 'MINING', 1, 'SUCCESS' FROM players LIMIT 1;");
+        }
+        assertTrue(queryLong("SELECT MAX(id) FROM transaction_logs;") > maxId);
+        try (Statement statement = conn.createStatement()) {
+            statement.executeUpdate("DELETE FROM players WHERE uuid = (SELECT MIN(player_uuid) FROM transaction_logs);");
+        }
+        assertEquals(PLAYERS * MONTHS + 1 - MONTHS, queryLong("SELECT COUNT(*) FROM transaction_logs;"));
+    }
+
+    @Test
+    void convertIsIdempotent() throws SQLException {
+        TransactionLogPartitions partitions = partitions();
+        assertTrue(partitions.convert(conn));
+        assertFalse(partitions.convert(conn));
+        assertEquals(PLAYERS * MONTHS, queryLong("SELECT COUNT(*) FROM transaction_logs;"));
+    }
+
+    @Test
+    void maintainCreatesMonthsAhead() throws SQLException {
+        TransactionLogPartitions partitions = partitions();
+        partitions.convert(conn);
+
+        assertEquals(2, partitions.maintain(conn));
+        assertEquals(0, partitions.maintain(conn));
+        assertEquals(3, queryLong("SELECT COUNT(*) FROM pg_inherits WHERE inhparent = 'transaction_logs'::regclass;"));
+
+        try (Statement statement = conn.createStatement()) {
+            statement.executeUpdate("INSERT INTO transaction_logs (player_uuid, transaction_type, method, amount, status, created_at) " +
+                    "SELECT uuid, 'IN', 'MINING', 1, 'SUCCESS', now() + interval '3 months' FROM players LIMIT 1;");
+        }
+        assertEquals(PLAYERS * MONTHS, queryLong("SELECT COUNT(*) FROM " + TransactionLogPartitions.LEGACY_PARTITION + ";"));
+    }
+
+    private TransactionLogPartitions partitions() {
+        return new TransactionLogPartitions(LOGGER, 3, 0, archiveDirectory);
+    }
+
+    private long queryLong(String sql) throws SQLException {
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private String queryString(String sql) throws SQLException {
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery(sql)) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+}